@@ -0,0 +1,39 @@
+package com.aivean.grid2d;
+
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * Reducer of the grid values for {@link GridReadOnlyView#aggregate(int, int, int, int, Aggregator)},
+ * see {@link Grid#enableAggregates(Aggregator)}.
+ * <p>
+ * {@link #combine} must be associative and commutative (the order of the elements is not defined),
+ * aggregates must be non-null and immutable, as they are cached and shared with the snapshots.
+ *
+ * @param <T> value type
+ * @param <A> aggregate type
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public interface Aggregator<T, A> {
+
+    /**
+     * @return aggregate of the single value
+     */
+    A of(T value);
+
+    A combine(A a, A b);
+
+    static <T, A> Aggregator<T, A> of(Function<? super T, ? extends A> of, BinaryOperator<A> combine) {
+        return new Aggregator<T, A>() {
+            @Override
+            public A of(T value) {
+                return of.apply(value);
+            }
+
+            @Override
+            public A combine(A a, A b) {
+                return combine.apply(a, b);
+            }
+        };
+    }
+}
@@ -0,0 +1,112 @@
+package com.aivean.grid2d;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.aivean.grid2d.Grid.BITS;
+import static com.aivean.grid2d.Grid.MASK;
+
+/**
+ * Set of the changed coordinates of the {@link Grid}, see {@link Grid#setChangeTracking(boolean)}.
+ * <p>
+ * Dirty bits are stored in the {@link IntGrid} keyed by {@code (i, j >> BITS)}:
+ * every value is the bitmask of the changed {@code j & MASK}, so marking is a single (usually cached)
+ * row lookup and a bitwise or, and the leaf rows of the journal correspond to the 32x32 blocks of the grid.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+final class ChangeJournal {
+
+    private IntGrid dirty = new IntGrid();
+
+    void mark(int i, int j) {
+        int jh = j >> BITS;
+        IntGrid.IntRow row = dirty.getOrCreateRow(i, jh);
+        int k = jh & MASK;
+        row.v[k] |= 1 << (j & MASK);
+        row.bits |= 1 << k;
+    }
+
+    boolean isEmpty() {
+        return dirty.getDepth() == 0;
+    }
+
+    /**
+     * Calls {@code cb} for every changed coordinate with the current value and clears the journal.
+     * Changes made by the callback are recorded for the next drain.
+     */
+    <T> void drain(Grid<T> grid, Grid.QueryFun<T> cb) {
+        if (isEmpty()) return;
+        IntGrid changes = dirty;
+        dirty = new IntGrid();
+        changes.query(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, (i, jh, bits) -> {
+            for (; bits != 0; bits &= bits - 1) {
+                int j = jh << BITS | Integer.numberOfTrailingZeros(bits);
+                cb.apply(i, j, grid.get(i, j));
+            }
+        });
+    }
+
+    /**
+     * Changed 32x32 blocks, coalesced into rectangles: horizontal runs of blocks are merged first,
+     * then runs of the same width that are on top of each other.
+     */
+    void regions(Grid.RegionFun cb) {
+        if (isEmpty()) return;
+
+        long[][] buf = {new long[16]};
+        int[] size = {0};
+        dirty.query(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, (i, jh, bits) -> {
+            if (size[0] == buf[0].length) buf[0] = Arrays.copyOf(buf[0], size[0] * 2);
+            buf[0][size[0]++] = (long) (i >> BITS) << 32 | ((jh ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+        });
+        long[] blocks = buf[0];
+        int n = size[0];
+        /* (bi, bj) pairs in the signed order, sign bit of bj is flipped to keep its order in the low half */
+        Arrays.sort(blocks, 0, n);
+
+        /* open rectangles of the previous row of blocks by their [bj0, bj1] */
+        Map<Long, int[]> open = new HashMap<>();
+        Map<Long, int[]> next = new HashMap<>();
+        int k = 0;
+        while (k < n) {
+            int bi = (int) (blocks[k] >> 32);
+            if (!open.isEmpty() && open.values().iterator().next()[1] != bi - 1) {
+                for (int[] r : open.values()) emit(r, cb);
+                open.clear();
+            }
+            while (k < n && (int) (blocks[k] >> 32) == bi) {
+                int bj0 = (int) blocks[k] ^ Integer.MIN_VALUE;
+                int bj1 = bj0;
+                k++;
+                while (k < n) {
+                    long b = blocks[k];
+                    if ((int) (b >> 32) != bi || ((int) b ^ Integer.MIN_VALUE) > bj1 + 1) break;
+                    bj1 = (int) b ^ Integer.MIN_VALUE;
+                    k++;
+                }
+
+                long key = (long) bj0 << 32 | (bj1 & 0xFFFFFFFFL);
+                int[] r = open.remove(key);
+                if (r != null) {
+                    r[1] = bi;
+                } else {
+                    r = new int[]{bi, bi, bj0, bj1};
+                }
+                next.put(key, r);
+            }
+
+            for (int[] r : open.values()) emit(r, cb);
+            open.clear();
+            Map<Long, int[]> t = open;
+            open = next;
+            next = t;
+        }
+        for (int[] r : open.values()) emit(r, cb);
+    }
+
+    private static void emit(int[] r, Grid.RegionFun cb) {
+        cb.apply(r[0] << BITS, r[2] << BITS, r[1] << BITS | MASK, r[3] << BITS | MASK);
+    }
+}
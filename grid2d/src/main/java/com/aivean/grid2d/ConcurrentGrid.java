@@ -0,0 +1,142 @@
+package com.aivean.grid2d;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * Thread safe persistent version of {@link Grid}.
+ * <p>
+ * Nodes of the published grid are never modified: every write copies the nodes on the path
+ * to the changed element (2 * depth + 1 nodes, most of them are compressed 2-element nodes)
+ * and publishes the new root with a CAS.
+ * <ul>
+ *  <li>reads never lock and never block writers</li>
+ *  <li>every read (including AABB queries) sees a consistent version of the grid, i.e. all writes
+ *  that were published before the read started and none of the writes that were published after</li>
+ *  <li>concurrent writers don't lock either, but retry when another writer published first</li>
+ * </ul>
+ * Writes are several times slower than {@link Grid#set}, as each of them allocates the new path
+ * and there is no row cache. Dense tiles are not supported.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public class ConcurrentGrid<T> implements GridReadOnlyView<T> {
+
+    private final AtomicReference<Grid<T>> state = new AtomicReference<>(new Grid<>(false, 1));
+
+    @Override
+    public T get(int i, int j) {
+        return state.get().getUncached(i, j);
+    }
+
+    /**
+     * Same as {@link Grid#set}, the change is visible to all reads that start after this method returns
+     */
+    public void set(int i, int j, T value) {
+        Grid<T> cur, next;
+        do {
+            cur = state.get();
+            next = cur.copyWith(i, j, value);
+        } while (next != cur && !state.compareAndSet(cur, next));
+    }
+
+    /**
+     * Atomically sets the value if there is no value at (i, j)
+     *
+     * @param value non-null value
+     * @return existing value or the given one, if it was absent
+     */
+    public T putIfAbsent(int i, int j, T value) {
+        Grid<T> cur;
+        do {
+            cur = state.get();
+            T old = cur.getUncached(i, j);
+            if (old != null) return old;
+        } while (!state.compareAndSet(cur, cur.copyWith(i, j, value)));
+        return value;
+    }
+
+    public void clear() {
+        state.set(new Grid<>(false, 1));
+    }
+
+    /**
+     * Same as {@link #clear()}, but returns the immutable view of the replaced version,
+     * i.e. every element that was removed
+     */
+    public GridReadOnlyView<T> snapshotAndClear() {
+        return state.getAndSet(new Grid<>(false, 1)).createReadOnlyView();
+    }
+
+    public int getDepth() {
+        return state.get().getDepth();
+    }
+
+    /**
+     * @return immutable view of the current version of the grid, O(1).
+     * Like {@link Grid#createReadOnlyView()}, the view has its own cache, so it should not be shared between threads
+     */
+    public GridReadOnlyView<T> snapshot() {
+        return state.get().createReadOnlyView();
+    }
+
+    @Override
+    public void query(int i0, int j0, int i1, int j1, Grid.QueryFun<T> cb) {
+        state.get().query(i0, j0, i1, j1, cb);
+    }
+
+    @Override
+    public void query(int i0, int j0, int i1, int j1, TraversalOrder order, Grid.QueryFun<T> cb) {
+        state.get().query(i0, j0, i1, j1, order, cb);
+    }
+
+    @Override
+    public boolean queryWhile(int i0, int j0, int i1, int j1, Grid.QueryWhileFun<T> cb) {
+        return state.get().queryWhile(i0, j0, i1, j1, cb);
+    }
+
+    @Override
+    public void neighbors(int i, int j, int radius, Grid.QueryFun<T> cb) {
+        state.get().neighbors(i, j, radius, cb);
+    }
+
+    @Override
+    public void withinRadius(int i, int j, int r, Grid.QueryFun<T> cb) {
+        state.get().withinRadius(i, j, r, cb);
+    }
+
+    @Override
+    public void nearest(int i, int j, int k, Predicate<? super T> filter, Grid.QueryFun<T> cb) {
+        state.get().nearest(i, j, k, filter, cb);
+    }
+
+    @Override
+    public void forEachWithNeighbors(int i0, int j0, int i1, int j1, int radius, Grid.NeighborsFun<T> kernel) {
+        state.get().forEachWithNeighbors(i0, j0, i1, j1, radius, kernel);
+    }
+
+    @Override
+    public long count(int i0, int j0, int i1, int j1) {
+        return state.get().count(i0, j0, i1, j1);
+    }
+
+    @Override
+    public <A> A aggregate(int i0, int j0, int i1, int j1, Aggregator<? super T, A> aggregator) {
+        return state.get().aggregate(i0, j0, i1, j1, aggregator);
+    }
+
+    @Override
+    public void parallelQuery(int i0, int j0, int i1, int j1, Grid.QueryFun<T> cb) {
+        state.get().parallelQuery(i0, j0, i1, j1, cb);
+    }
+
+    @Override
+    public GridCursor<T> cursor(int i0, int j0, int i1, int j1) {
+        return state.get().cursor(i0, j0, i1, j1);
+    }
+
+    @Override
+    public GridSpliterator<T> spliterator(int i0, int j0, int i1, int j1) {
+        return state.get().spliterator(i0, j0, i1, j1);
+    }
+}
@@ -0,0 +1,103 @@
+package com.aivean.grid2d;
+
+import static com.aivean.grid2d.Grid.MASK;
+import static com.aivean.grid2d.Grid.SIZE;
+
+/**
+ * {@link Grid} specialized for {@code float} values.
+ * <p>
+ * Values are stored unboxed in 32-element {@code float[]} rows with the occupancy bitmask
+ * instead of nulls, so {@code 0f} is a valid value, use {@link #contains(int, int)} to check the presence.
+ * <p>
+ * Same thread safety rules as for {@link Grid} apply.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public class FloatGrid extends PrimitiveGrid<FloatGrid.FloatRow, FloatGrid.QueryFun> {
+
+    static final class FloatRow extends PrimitiveGrid.Row {
+        final float[] v = new float[SIZE];
+    }
+
+    @Override
+    FloatRow newRow() {
+        return new FloatRow();
+    }
+
+    /**
+     * @return value or {@code 0f} if absent
+     */
+    public float get(int i, int j) {
+        return getOrDefault(i, j, 0);
+    }
+
+    public float getOrDefault(int i, int j, float defaultValue) {
+        FloatRow row = getRowOrNull(i, j);
+        if (row == null) return defaultValue;
+        int k = j & MASK;
+        return (row.bits >>> k & 1) != 0 ? row.v[k] : defaultValue;
+    }
+
+    /**
+     * Batch version of {@link #getOrDefault}, see {@link Grid#getAll}
+     *
+     * @param out results in the order of the keys, must have at least {@code is.length} elements
+     */
+    public void getAll(int[] is, int[] js, float[] out, float defaultValue) {
+        if (out.length < is.length) throw new IllegalArgumentException("Expected " + is.length + " results, got " + out.length);
+        getAllRows(is, js, (x, row) -> {
+            int k = js[x] & MASK;
+            out[x] = row != null && (row.bits >>> k & 1) != 0 ? row.v[k] : defaultValue;
+        });
+    }
+
+    public boolean contains(int i, int j) {
+        FloatRow row = getRowOrNull(i, j);
+        return row != null && (row.bits >>> (j & MASK) & 1) != 0;
+    }
+
+    public void set(int i, int j, float value) {
+        FloatRow row = getOrCreateRow(i, j);
+        int k = j & MASK;
+        row.v[k] = value;
+        row.bits |= 1 << k;
+    }
+
+    /**
+     * @return true if the element was present
+     */
+    public boolean remove(int i, int j) {
+        FloatRow row = getRowOrNull(i, j);
+        if (row == null) return false;
+        int bit = 1 << (j & MASK);
+        if ((row.bits & bit) == 0) return false;
+        row.bits &= ~bit;
+        if (row.bits == 0) removeEmptyRow(i, j);
+        return true;
+    }
+
+    /**
+     * AABB query, see {@link GridReadOnlyView#query(int, int, int, int, Grid.QueryFun)}
+     */
+    public void query(int i0, int j0, int i1, int j1, QueryFun cb) {
+        queryRegion(i0, j0, i1, j1, cb);
+    }
+
+    @Override
+    void queryRow(FloatRow row, int i, int jBase, int s, int e, QueryFun cb) {
+        int bits = row.bits & (-1 >>> (MASK - e)) & (-1 << s);
+        while (bits != 0) {
+            int k = Integer.numberOfTrailingZeros(bits);
+            cb.apply(i, jBase + k, row.v[k]);
+            bits &= bits - 1;
+        }
+    }
+
+    /**
+     * Callback interface for AABB query
+     */
+    @FunctionalInterface
+    public interface QueryFun {
+        void apply(int i, int j, float v);
+    }
+}
@@ -1,12 +1,25 @@
 package com.aivean.grid2d;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
 /**
  * On thread safety:
  * <ul>
  *  <li>not thread safe for both writing AND READING</li>
  *  <li>to read from another thread, create a {@link Grid#createReadOnlyView()}</li>
- *  <li>when new keys are added, previously created views (GridReadOnlyView) might not see the added elements (but removed and changed elements should be visible)</li>
+ *  <li>when new keys are added, previously created views (GridReadOnlyView) might not see the added elements (but removed and changed elements should be visible,
+ *  unless the node pooling is enabled, see {@link Grid#setNodePooling(boolean)})</li>
+ *  <li>{@link Grid#snapshot()} creates an immutable view that is not affected by the subsequent writes</li>
  *  <li>access has to be explicitly synchronized to write from multiple threads</li>
+ *  <li>{@link ConcurrentGrid} allows lock-free reads concurrently with writes</li>
+ *  <li>{@link StripedGrid} allows concurrent writes to the different regions</li>
  * </ul>
  *
  * @author Ivan Zaitsev https://github.com/Aivean/grid2d
@@ -16,8 +29,20 @@ public class Grid<T> implements GridReadOnlyView<T> {
     public static final int SIZE = 1 << BITS;
     public static final int MASK = SIZE - 1;
 
+    /**
+     * Number of elements in a 32x32 block at which it's converted to the dense {@link Tile}
+     */
+    static final int TILE_PROMOTE_THRESHOLD = SIZE * SIZE / 4;
+    /**
+     * Number of elements in a {@link Tile} below which it's converted back to nodes
+     */
+    static final int TILE_DEMOTE_THRESHOLD = TILE_PROMOTE_THRESHOLD / 4;
+
+    private final boolean denseTiles;
+
     private Node root = null;
-    private Node cache = null;
+    /* lowest cached block: either Node or Tile */
+    private Object cache = null;
     private int i0;
     private int j0;
     private int depth;
@@ -27,395 +52,2348 @@ public class Grid<T> implements GridReadOnlyView<T> {
     // -1 indicates unset cache
     private int cachei0 = -1;
     private int cachej0 = -1;
+    /* generation of the cached block, the block can be modified only if it's equal to gen */
+    private int cacheGen;
+
+    /*
+     * Second level of the block cache, checked when the last used block (above) doesn't match:
+     * direct-mapped by the block key, so alternating between several blocks (column-major sweeps,
+     * vertical neighbors) doesn't retraverse the hierarchy.
+     * Keys are adjusted block starts (like cachei0, cachej0), i and j of the slot are interleaved,
+     * only existing blocks are cached. Null when disabled.
+     */
+    static final int DEFAULT_BLOCK_CACHE_SIZE = 16;
+    private final Object[] blockCache;
+    private final int[] blockCacheKeys;
+
+    /* scratch state of #getAll, created on the first use */
+    private BatchLookup batch;
+
+    /*
+     * Generation of the grid, incremented by every snapshot.
+     * Nodes and tiles of the older generations are shared with the snapshots and are never modified,
+     * they are copied (together with the path from the root) on the first write.
+     */
+    private int gen;
+
+    /* null when the change tracking is disabled */
+    private ChangeJournal journal;
+
+    /* free nodes and arrays, null when the pooling is disabled, see #setNodePooling */
+    private NodePool pool;
+
+    /*
+     * Aggregates of the subtrees are cached in the column nodes and tiles, see #enableAggregates.
+     * Cached aggregate is valid only if its epoch is equal to aggEpoch (0 when disabled).
+     * Invariant: if the aggregate of the node is not valid, aggregates of all its ancestors are not valid,
+     * so the write only has to reset the aggregates of the path when the aggregate of the block is set.
+     */
+    private static final AtomicInteger AGG_EPOCHS = new AtomicInteger();
+    private int aggEpoch;
+    private Aggregator<? super T, ?> aggregator;
+
+    public Grid() {
+        this(false);
+    }
+
+    /**
+     * @param denseTiles when true, 32x32 blocks that are at least 1/4 full are stored as dense {@link Tile}s
+     *                   instead of the column node with 32 row nodes
+     *                   (faster sequential access and smaller memory footprint for dense data)
+     */
+    public Grid(boolean denseTiles) {
+        this(denseTiles, DEFAULT_BLOCK_CACHE_SIZE);
+    }
+
+    /**
+     * @param denseTiles     see {@link #Grid(boolean)}
+     * @param blockCacheSize number of the recently used 32x32 blocks that are resolved without the traversal,
+     *                       power of 2, 1 to cache only the last used block
+     */
+    public Grid(boolean denseTiles, int blockCacheSize) {
+        if (blockCacheSize < 1 || (blockCacheSize & (blockCacheSize - 1)) != 0) {
+            throw new IllegalArgumentException("Block cache size must be a power of 2, got " + blockCacheSize);
+        }
+        this.denseTiles = denseTiles;
+        if (blockCacheSize > 1) {
+            this.blockCache = new Object[blockCacheSize];
+            this.blockCacheKeys = new int[blockCacheSize * 2];
+            Arrays.fill(blockCacheKeys, -1);
+        } else {
+            this.blockCache = null;
+            this.blockCacheKeys = null;
+        }
+    }
 
+    /**
+     * Node of the hierarchy (HAMT-style): {@code bitmap} marks the present children, c holds only them
+     * in the ascending order of the keys, i.e. child i is {@code c[bitCount(bitmap & ((1 << i) - 1))]}.
+     * <p>
+     * c has 2, 4, 8, 16 or 32 elements: it's doubled when full and halved only when it becomes less than half full,
+     * so the adds and removes at the boundary don't reallocate it every time.
+     */
     static class Node {
-        Object[] c = new Object[2];
-        int keys;
+        Object[] c;
+        int bitmap;
         int n;
+        /* generation of the grid in which the node was created (or copied), see #snapshot() */
+        int gen;
+        /* cached aggregate of the subtree (only for column nodes), see #enableAggregates */
+        Agg agg;
+        /* number of elements of the block (only for the lowest column nodes of Grid), see #promoteIfDense */
+        int count;
+
+        Node() {
+            c = new Object[2];
+        }
+
+        Node(int gen) {
+            this();
+            this.gen = gen;
+        }
+
+        /**
+         * @param bitmap keys of the children
+         * @param c      children in the ascending order of the keys, at least bitCount(bitmap) elements
+         *               (the array is used as is if it's at least half full)
+         */
+        Node(int bitmap, Object[] c, int gen) {
+            this.c = c;
+            this.bitmap = bitmap;
+            this.n = Integer.bitCount(bitmap);
+            this.gen = gen;
+            shrink(null);
+        }
+
+        /**
+         * @param pool pool to take the node from, or null
+         */
+        static Node create(int gen, NodePool pool) {
+            return pool == null ? new Node(gen) : pool.node(gen);
+        }
+
+        /**
+         * @return length of c for n children
+         */
+        static int capacity(int n) {
+            return Math.max(2, Integer.highestOneBit(n * 2 - 1));
+        }
+
+        /**
+         * @return position of child i in c (or of the first child with the greater key if absent)
+         */
+        int index(int i) {
+            return Integer.bitCount(bitmap & ((1 << i) - 1));
+        }
 
         /**
          * @return index or -1 if not found
          */
         int firstNonNullIndex() {
-            if (n <= 2) return keys & MASK;
-            else {
+            return bitmap == 0 ? -1 : Integer.numberOfTrailingZeros(bitmap);
+        }
+
+        /**
+         * @return bitmask of the non-null children
+         */
+        int mask() {
+            return bitmap;
+        }
+
+        Object getOrNull(int i) {
+            int bit = 1 << i;
+            return (bitmap & bit) == 0 ? null : c[Integer.bitCount(bitmap & (bit - 1))];
+        }
+
+        Object setNotNull(int i, Object v) {
+            return setNotNull(i, v, null);
+        }
+
+        /**
+         * @param pool pool for the reallocated arrays, or null
+         */
+        Object setNotNull(int i, Object v, NodePool pool) {
+            int bit = 1 << i;
+            int x = Integer.bitCount(bitmap & (bit - 1));
+            if ((bitmap & bit) != 0) {
+                Object tmp = c[x];
+                c[x] = v;
+                return tmp;
+            }
+            if (n == c.length) resize(n * 2, pool);
+            System.arraycopy(c, x, c, x + 1, n - x);
+            c[x] = v;
+            bitmap |= bit;
+            n++;
+            return null;
+        }
+
+        Object setNull(int i) {
+            return setNull(i, null);
+        }
+
+        /**
+         * @param pool pool for the reallocated arrays, or null
+         */
+        Object setNull(int i, NodePool pool) {
+            int bit = 1 << i;
+            if ((bitmap & bit) == 0) return null;
+            int x = Integer.bitCount(bitmap & (bit - 1));
+            Object tmp = c[x];
+            System.arraycopy(c, x + 1, c, x, n - x - 1);
+            c[--n] = null;
+            bitmap &= ~bit;
+            shrink(pool);
+            return tmp;
+        }
+
+        /**
+         * Removes all elements with indices in [s, e], reallocates c at most once
+         */
+        void clearRange(int s, int e) {
+            removeAll(rangeMask(s, e));
+        }
+
+        /**
+         * Removes all children with keys in the bitmask, reallocates c at most once
+         */
+        void removeAll(int keys) {
+            removeAll(keys, null);
+        }
+
+        void removeAll(int keys, NodePool pool) {
+            keys &= bitmap;
+            if (keys == 0) return;
+            int m = 0;
+            for (int rest = bitmap, x = 0; rest != 0; rest &= rest - 1, x++) {
+                if ((keys & rest & -rest) == 0) c[m++] = c[x];
+            }
+            Arrays.fill(c, m, n, null);
+            bitmap &= ~keys;
+            n = m;
+            shrink(pool);
+        }
+
+        /**
+         * Halves c while it's less than half full
+         */
+        private void shrink(NodePool pool) {
+            int len = c.length;
+            while (len > 2 && n < len / 2) len /= 2;
+            if (len != c.length) resize(len, pool);
+        }
+
+        private void resize(int len, NodePool pool) {
+            Object[] c0 = pool == null ? new Object[len] : pool.array(len);
+            System.arraycopy(c, 0, c0, 0, n);
+            if (pool != null) pool.release(c);
+            c = c0;
+        }
+
+        Node copy(int gen) {
+            Node res = new Node(bitmap, c.clone(), gen);
+            res.count = count;
+            return res;
+        }
+
+        /**
+         * Replaces the child node with its copy (or with a new node if absent)
+         *
+         * @return the copy
+         */
+        Node copyChild(int i) {
+            Node el = (Node) getOrNull(i);
+            Node res = el == null ? new Node(gen) : el.copy(gen);
+            setNotNull(i, res);
+            return res;
+        }
+
+        /**
+         * @return child (Node or Tile) of the given generation: existing child or its copy
+         * that replaces the child of the older generation, or null if absent
+         */
+        Object getOwnChild(int i, int gen) {
+            Object el = getOrNull(i);
+            if (el == null || genOf(el) == gen) return el;
+            el = el instanceof Tile ? ((Tile) el).copy(gen) : ((Node) el).copy(gen);
+            setNotNull(i, el);
+            return el;
+        }
+
+        /**
+         * Same as {@link #getOwnChild}, but creates new Node if absent
+         */
+        Object getOrCreateOwnChild(int i, int gen, NodePool pool) {
+            Object el = getOwnChild(i, gen);
+            if (el != null) return el;
+
+            Node node = create(gen, pool);
+            setNotNull(i, node, pool);
+            return node;
+        }
+
+        Node getOrCreateChildNode(int i) {
+            return (Node) getOrCreateChild(i, null);
+        }
+
+        Node getOrCreateChildNode(int i, NodePool pool) {
+            return (Node) getOrCreateChild(i, pool);
+        }
+
+        /**
+         * @return existing child (Node or Tile) or newly created Node
+         */
+        Object getOrCreateChild(int i, NodePool pool) {
+            Object el = getOrNull(i);
+            if (el != null) return el;
+
+            Node node = create(gen, pool);
+            setNotNull(i, node, pool);
+
+            return node;
+        }
+    }
+
+    /**
+     * Batch lookup of {@link #getAll} and {@link PrimitiveGrid#getAllRows}: partitions the keys by their path
+     * in the hierarchy (radix sort by the digits of the levels, i.e. Z-order of the blocks) while descending,
+     * so the shared prefixes of the paths are traversed once per batch instead of once per key.
+     * Holds the scratch arrays, one instance per grid.
+     */
+    static final class BatchLookup {
+        /* smaller groups of keys are resolved one by one by the leaf */
+        static final int MIN_PARTITION = 8;
+
+        /* permutation of the keys and bucket bounds of every level, grown on demand */
+        private int[] idx = new int[0];
+        private int[] tmp = new int[0];
+        private int[] buckets = new int[0];
+
+        /* arguments of the current lookup */
+        private int[] is, js;
+        private int i0, j0;
+        private Leaf leaf;
+
+        /**
+         * Resolves a group of keys that share the path to the subtree
+         */
+        @FunctionalInterface
+        interface Leaf {
+            /**
+             * @param o   subtree that contains the keys: the row (d == 1, !col), the tile (d == 1, col)
+             *            or a node with at most {@link #MIN_PARTITION} keys; null if the keys are absent
+             * @param idx indices of the keys are idx[from, to)
+             */
+            void apply(Object o, int d, boolean col, int[] idx, int from, int to);
+        }
+
+        /**
+         * Calls {@code leaf} for the groups of the keys (is[x], js[x]), every key is in exactly one group
+         *
+         * @param root  root of the grid or null
+         * @param i0    start of the range of the grid
+         * @param j0    start of the range of the grid
+         * @param depth depth of the grid
+         */
+        void lookup(Node root, int i0, int j0, int depth, int[] is, int[] js, Leaf leaf) {
+            int n = is.length;
+            if (idx.length < n) {
+                idx = new int[n];
+                tmp = new int[n];
+            }
+            if (buckets.length < 2 * depth * (SIZE + 1)) buckets = new int[2 * depth * (SIZE + 1)];
+
+            /* keys in range go to the start of idx, the rest to the end */
+            int m = 0, absent = n;
+            for (int x = 0; x < n; x++) {
+                int i = is[x], j = js[x];
+                if (root != null && i >= i0 && j >= j0
+                        && ((i - i0) >>> (depth * BITS) == 0) && ((j - j0) >>> (depth * BITS) == 0)) idx[m++] = x;
+                else idx[--absent] = x;
+            }
+            if (absent < n) leaf.apply(null, depth, true, idx, absent, n);
+            if (m == 0) return;
+
+            this.is = is;
+            this.js = js;
+            this.i0 = i0;
+            this.j0 = j0;
+            this.leaf = leaf;
+            try {
+                lookupRec(root, 0, m, depth, true, 0);
+            } finally {
+                this.is = this.js = null;
+                this.leaf = null;
+            }
+        }
+
+        /**
+         * Resolves the keys idx[from, to) in the subtree o, partitioning them by the child index
+         *
+         * @param level index of the bucket bounds of this node in {@link #buckets}
+         */
+        private void lookupRec(Object o, int from, int to, int d, boolean col, int level) {
+            if (d == 1 && (!col || o instanceof Tile) || to - from <= MIN_PARTITION) {
+                leaf.apply(o, d, col, idx, from, to);
+                return;
+            }
+            Node n = (Node) o;
+
+            int[] keys = col ? is : js;
+            int origin = col ? i0 : j0;
+            int bits = BITS * (d - 1);
+            int nextD = col ? d : d - 1;
+
+            int first = ((keys[idx[from]] - origin) >>> bits) & MASK;
+            int[] b = buckets;
+            int b0 = level * (SIZE + 1);
+            Arrays.fill(b, b0, b0 + SIZE + 1, 0);
+            for (int y = from; y < to; y++) {
+                b[b0 + (((keys[idx[y]] - origin) >>> bits) & MASK) + 1]++;
+            }
+
+            if (b[b0 + first + 1] == to - from) { /* all keys go to the same child */
+                Object child = n.getOrNull(first);
+                if (child != null) lookupRec(child, from, to, nextD, !col, level + 1);
+                else leaf.apply(null, nextD, !col, idx, from, to);
+                return;
+            }
+
+            /* counting sort: b[b0 + k] is the start of the k-th bucket, after the scatter it's the end */
+            for (int k = 1; k <= SIZE; k++) b[b0 + k] += b[b0 + k - 1];
+            for (int y = from; y < to; y++) {
+                int x = idx[y];
+                tmp[from + b[b0 + (((keys[x] - origin) >>> bits) & MASK)]++] = x;
+            }
+            System.arraycopy(tmp, from, idx, from, to - from);
+
+            int s = from;
+            for (int k = 0; k < SIZE; k++) {
+                int e = from + b[b0 + k];
+                if (s == e) continue;
+                Object child = n.getOrNull(k);
+                if (child != null) lookupRec(child, s, e, nextD, !col, level + 1);
+                else leaf.apply(null, nextD, !col, idx, s, e);
+                s = e;
+            }
+        }
+    }
+
+    /**
+     * Free nodes and arrays of the children of the grid, see {@link #setNodePooling}.
+     * Keeps at most {@link #LIMIT} nodes and {@link #LIMIT} arrays of every length, the rest is left to GC.
+     */
+    static final class NodePool {
+        static final int LIMIT = 1024;
+
+        private final Node[] nodes = new Node[LIMIT];
+        private int nodeCount;
+        /* arrays by log2(length) - 1, i.e. lengths 2, 4, ..., SIZE */
+        private final Object[][][] arrays = new Object[BITS][LIMIT][];
+        private final int[] arrayCount = new int[BITS];
+
+        Node node(int gen) {
+            if (nodeCount == 0) return new Node(gen);
+            Node n = nodes[--nodeCount];
+            nodes[nodeCount] = null;
+            n.gen = gen;
+            return n;
+        }
+
+        /**
+         * Node must be detached and not shared with snapshots, its children are dropped
+         */
+        void release(Node n) {
+            n.removeAll(n.bitmap, this);
+            n.agg = null;
+            n.count = 0;
+            if (nodeCount < LIMIT) nodes[nodeCount++] = n;
+        }
+
+        Object[] array(int len) {
+            int k = Integer.numberOfTrailingZeros(len) - 1;
+            if (arrayCount[k] == 0) return new Object[len];
+            Object[] a = arrays[k][--arrayCount[k]];
+            arrays[k][arrayCount[k]] = null;
+            return a;
+        }
+
+        void release(Object[] a) {
+            int len = a.length;
+            if (len < 2 || len > SIZE || (len & (len - 1)) != 0) return;
+            int k = Integer.numberOfTrailingZeros(len) - 1;
+            if (arrayCount[k] == LIMIT) return;
+            Arrays.fill(a, null);
+            arrays[k][arrayCount[k]++] = a;
+        }
+    }
+
+    /**
+     * Dense replacement for the lowest column node and its 32 rows,
+     * values are stored in one contiguous array, row-major
+     */
+    static final class Tile {
+        final Object[] v = new Object[SIZE * SIZE];
+        /* occupancy bitmask of every row */
+        final int[] rows = new int[SIZE];
+        int n;
+        final int gen;
+        Agg agg;
+
+        Tile(int gen) {
+            this.gen = gen;
+        }
+
+        Tile copy(int gen) {
+            Tile t = new Tile(gen);
+            System.arraycopy(v, 0, t.v, 0, v.length);
+            System.arraycopy(rows, 0, t.rows, 0, SIZE);
+            t.n = n;
+            return t;
+        }
+
+        Object get(int i, int j) {
+            return v[i << BITS | j];
+        }
+
+        void set(int i, int j, Object value) {
+            int idx = i << BITS | j;
+            if (v[idx] == null) {
+                n++;
+                rows[i] |= 1 << j;
+            }
+            v[idx] = value;
+        }
+
+        /**
+         * Removes all elements with indices in [i0, i1] x [j0, j1]
+         */
+        void clear(int i0, int j0, int i1, int j1) {
+            int mask = (-1 >>> (MASK - j1)) & (-1 << j0);
+            for (int i = i0; i <= i1; i++) {
+                int bits = rows[i] & mask;
+                if (bits == 0) continue;
+                rows[i] &= ~bits;
+                n -= Integer.bitCount(bits);
+                while (bits != 0) {
+                    v[i << BITS | Integer.numberOfTrailingZeros(bits)] = null;
+                    bits &= bits - 1;
+                }
+            }
+        }
+
+        Object remove(int i, int j) {
+            int idx = i << BITS | j;
+            Object tmp = v[idx];
+            if (tmp != null) {
+                v[idx] = null;
+                rows[i] &= ~(1 << j);
+                n--;
+            }
+            return tmp;
+        }
+
+        static Tile of(Node col, int gen) {
+            Tile t = new Tile(gen);
+            for (int i = 0; i < SIZE; i++) {
+                Node row = (Node) col.getOrNull(i);
+                if (row == null) continue;
                 for (int j = 0; j < SIZE; j++) {
-                    if (c[j] != null) return j;
+                    Object el = row.getOrNull(j);
+                    if (el != null) t.set(i, j, el);
+                }
+            }
+            return t;
+        }
+
+        Node toNode(int gen) {
+            Node col = new Node(gen);
+            for (int i = 0; i < SIZE; i++) {
+                int bits = rows[i];
+                if (bits == 0) continue;
+                Node row = col.getOrCreateChildNode(i);
+                while (bits != 0) {
+                    int j = Integer.numberOfTrailingZeros(bits);
+                    row.setNotNull(j, v[i << BITS | j]);
+                    bits &= bits - 1;
+                }
+            }
+            col.count = n;
+            return col;
+        }
+    }
+
+    /**
+     * Immutable, so it can be safely published through the data race (snapshots share the nodes)
+     */
+    static final class Agg {
+        final int epoch;
+        final long count;
+        final Object value;
+
+        Agg(int epoch, long count, Object value) {
+            this.epoch = epoch;
+            this.count = count;
+            this.value = value;
+        }
+    }
+
+    static Agg aggOf(Object block) {
+        return block instanceof Tile ? ((Tile) block).agg : ((Node) block).agg;
+    }
+
+    static void resetAgg(Object block) {
+        if (block instanceof Tile) ((Tile) block).agg = null;
+        else ((Node) block).agg = null;
+    }
+
+    static int genOf(Object block) {
+        return block instanceof Tile ? ((Tile) block).gen : ((Node) block).gen;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    Node getRoot() {
+        return root;
+    }
+
+    int getI0() {
+        return i0;
+    }
+
+    int getJ0() {
+        return j0;
+    }
+
+    /**
+     * Replaces the content of the grid with the given hierarchy, see {@link GridSerializer}
+     */
+    void init(Node root, int i0, int j0, int depth) {
+        clear();
+        this.root = root;
+        this.i0 = i0;
+        this.j0 = j0;
+        this.depth = depth;
+    }
+
+    public void set(int i, int j, T value) {
+        if (value != null) {
+            if (journal != null) journal.mark(i, j);
+            ensureBoundaries(i, j);
+            Object block = getOrCreateBlock(i, j);
+            if (block instanceof Tile) {
+                ((Tile) block).set(i & MASK, j & MASK, value);
+            } else {
+                Node col = (Node) block;
+                Node row = (Node) col.getOrCreateOwnChild(i & MASK, gen, pool);
+                if (row.setNotNull(j & MASK, value, pool) == null) {
+                    col.count++;
+                    if (denseTiles) promoteIfDense(i, j, col);
+                }
+            }
+        } else {
+            Object block = getBlockOrNull(i, j);
+            if (block == null) return;
+            if (block instanceof Tile) {
+                if (((Tile) block).get(i & MASK, j & MASK) == null) return;
+                if (journal != null) journal.mark(i, j);
+                Tile tile = (Tile) getOrCreateBlock(i, j);
+                tile.remove(i & MASK, j & MASK);
+                if (tile.n < TILE_DEMOTE_THRESHOLD) {
+                    replaceBlock(i, j, tile.toNode(gen));
                 }
-                return -1;
+            } else {
+                Node row = (Node) ((Node) block).getOrNull(i & MASK);
+                if (row == null || row.getOrNull(j & MASK) == null) return;
+                if (journal != null) journal.mark(i, j);
+                Node col = (Node) getOrCreateBlock(i, j);
+                row = (Node) col.getOwnChild(i & MASK, gen);
+                row.setNull(j & MASK, pool);
+                col.count--;
+                if (row.n == 0) {
+                    if (clearNodes(i, j)) {
+                        collapseHierarchy();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Bulk version of {@link #set} for the rectangular region, values are taken from the row-major array:
+     * {@code value(i, j) = values[(i - i0) * jSize + (j - j0)]}.
+     * Null values are skipped, i.e. previous values at those coordinates are left intact.
+     *
+     * @param i0    starting value for i
+     * @param j0    starting value for j
+     * @param iSize number of rows
+     * @param jSize number of columns
+     * @param values at least iSize * jSize values
+     */
+    public void setBlock(int i0, int j0, int iSize, int jSize, T[] values) {
+        if ((long) iSize * jSize > values.length) {
+            throw new IllegalArgumentException("Expected at least " + (long) iSize * jSize + " values, got " + values.length);
+        }
+        setBlock(i0, j0, iSize, jSize, (i, j) -> values[(i - i0) * jSize + (j - j0)]);
+    }
+
+    /**
+     * Bulk version of {@link #set} for the rectangular region.
+     * <p>
+     * Boundaries are expanded once, each 32x32 block is resolved once
+     * and new rows are built directly in their final (uncompressed) form.
+     * Null values are skipped, i.e. previous values at those coordinates are left intact.
+     *
+     * @param i0    starting value for i
+     * @param j0    starting value for j
+     * @param iSize number of rows
+     * @param jSize number of columns
+     * @param f     value supplier, called exactly once for every (i, j) in the region
+     */
+    public void setBlock(int i0, int j0, int iSize, int jSize, BlockFun<? extends T> f) {
+        if (iSize < 0 || jSize < 0 ||
+                (long) i0 + iSize - 1 > Integer.MAX_VALUE || (long) j0 + jSize - 1 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid block size: " + iSize + "x" + jSize);
+        }
+        if (iSize == 0 || jSize == 0) return;
+        if (journal != null) {
+            BlockFun<? extends T> values = f;
+            f = (i, j) -> {
+                T v = values.get(i, j);
+                if (v != null) journal.mark(i, j);
+                return v;
+            };
+        }
+
+        int i1 = i0 + iSize - 1;
+        int j1 = j0 + jSize - 1;
+        ensureBoundaries(i0, j0);
+        ensureBoundaries(i1, j1);
+
+        boolean hasEmpty = false;
+        for (long bi = i0; bi <= i1; ) {
+            int bi0 = (int) bi;
+            int bi1 = (int) Math.min(bi + (MASK - ((bi0 - this.i0) & MASK)), i1);
+            for (long bj = j0; bj <= j1; ) {
+                int bj0 = (int) bj;
+                int bj1 = (int) Math.min(bj + (MASK - ((bj0 - this.j0) & MASK)), j1);
+                if (!setBlockRec(bi0, bj0, bi1, bj1, f)) hasEmpty = true;
+                bj = (long) bj1 + 1;
+            }
+            bi = (long) bi1 + 1;
+        }
+
+        if (hasEmpty) {
+            /* remove blocks that were created, but left empty */
+            for (long bi = i0; bi <= i1; bi = bi + SIZE - ((bi - this.i0) & MASK)) {
+                for (long bj = j0; bj <= j1; bj = bj + SIZE - ((bj - this.j0) & MASK)) {
+                    Object block = getBlockOrNull((int) bi, (int) bj);
+                    if (block instanceof Node && ((Node) block).n == 0) clearNodes((int) bi, (int) bj);
+                }
+            }
+        }
+        collapseHierarchy();
+    }
+
+    /**
+     * Sets values of the region that lies within single 32x32 block
+     *
+     * @return false if the block is left empty
+     */
+    private boolean setBlockRec(int bi0, int bj0, int bi1, int bj1, BlockFun<? extends T> f) {
+        Object block = getOrCreateBlock(bi0, bj0);
+        if (block instanceof Tile) {
+            Tile tile = (Tile) block;
+            for (int i = bi0; i <= bi1; i++) {
+                for (int j = bj0; j <= bj1; j++) {
+                    T v = f.get(i, j);
+                    if (v != null) tile.set(i & MASK, j & MASK, v);
+                }
+            }
+            return true;
+        }
+
+        Node col = (Node) block;
+        if (denseTiles && depth >= 2 && col.n == 0 &&
+                (bi1 - bi0 + 1) * (bj1 - bj0 + 1) >= TILE_PROMOTE_THRESHOLD) {
+            /* fresh block that is likely to be dense, build the tile directly */
+            Tile tile = new Tile(gen);
+            for (int i = bi0; i <= bi1; i++) {
+                for (int j = bj0; j <= bj1; j++) {
+                    T v = f.get(i, j);
+                    if (v != null) tile.set(i & MASK, j & MASK, v);
+                }
+            }
+            if (tile.n == 0) return false;
+            replaceBlock(bi0, bj0, tile.n >= TILE_PROMOTE_THRESHOLD ? tile : tile.toNode(gen));
+            return true;
+        }
+
+        for (int i = bi0; i <= bi1; i++) {
+            Object[] values = null;
+            int keys = 0;
+            int n = 0;
+            for (int j = bj0; j <= bj1; j++) {
+                T v = f.get(i, j);
+                if (v != null) {
+                    if (values == null) values = new Object[SIZE];
+                    values[n++] = v;
+                    keys |= 1 << (j & MASK);
+                }
+            }
+            if (n == 0) continue;
+
+            Node row = (Node) col.getOwnChild(i & MASK, gen);
+            if (row == null) {
+                col.setNotNull(i & MASK, new Node(keys, values, gen));
+                col.count += n;
+            } else {
+                for (int x = 0; keys != 0; keys &= keys - 1, x++) {
+                    if (row.setNotNull(Integer.numberOfTrailingZeros(keys), values[x]) == null) col.count++;
+                }
+            }
+        }
+        if (col.n == 0) return false;
+        if (denseTiles) promoteIfDense(bi0, bj0, col);
+        return true;
+    }
+
+    /**
+     * Removes all elements in the AABB region, i.e. every (i, j) such as:
+     * i0 ≤ i ≤ i1
+     * j0 ≤ j ≤ j1
+     * <p>
+     * Equivalent to calling {@code set(i, j, null)} for every element of the region, but
+     * subtrees that lie fully inside the region are detached without visiting them,
+     * only the nodes on the region boundary are cleared element-wise.
+     */
+    public void clearRegion(int i0, int j0, int i1, int j1) {
+        if (root == null) return;
+        if (i1 < i0 || j1 < j0) return;
+
+        long range = (1L << (BITS * depth)) - 1;
+        long ai0 = Math.max((long) i0 - this.i0, 0);
+        long aj0 = Math.max((long) j0 - this.j0, 0);
+        long ai1 = Math.min((long) i1 - this.i0, range);
+        long aj1 = Math.min((long) j1 - this.j0, range);
+        if (ai0 > ai1 || aj0 > aj1) return;
+
+        if (journal != null) query(i0, j0, i1, j1, (i, j, v) -> journal.mark(i, j));
+
+        if (ai0 == 0 && aj0 == 0 && ai1 == range && aj1 == range) {
+            clear();
+            return;
+        }
+
+        invalidateCache();
+
+        if (root.gen != gen) root = root.copy(gen);
+        clearRegionRec(root, (int) ai0, (int) aj0, (int) ai1, (int) aj1, this.depth, true);
+        collapseHierarchy();
+    }
+
+    /**
+     * Same traversal as in {@link #queryRec}, children that become empty are detached from n
+     */
+    private void clearRegionRec(Node n, int i0, int j0, int i1, int j1, int d, boolean col) {
+        n.agg = null;
+        if (d == 1 && !col) {
+            n.clearRange(i0 & MASK, i1 & MASK);
+            return;
+        }
+
+        int bits = BITS * (d - 1);
+        int s = (i0 >>> bits) & MASK;
+        int e = (i1 >>> bits) & MASK;
+        int mask = (1 << bits) - 1;
+        int start = i0 & ((~MASK) << bits);
+
+        /* children span the whole [0, otherMask] range of the other dimension */
+        int otherMask = col ? (BITS * d >= 32 ? -1 : (1 << (BITS * d)) - 1) : mask;
+        boolean otherFull = (j0 & otherMask) == 0 && (j1 & otherMask) == otherMask;
+
+        int removed = 0;
+        for (int m = n.bitmap & rangeMask(s, e), x = n.index(s); m != 0; m &= m - 1, x++) {
+            int k = Integer.numberOfTrailingZeros(m);
+            Object res = clearChild(n.c[x], k == s ? i0 : start | (k << bits),
+                    k == e ? i1 : start | (k << bits) | mask, j0, j1, mask, otherFull, d, col);
+            if (res == null) removed |= 1 << k;
+            else n.c[x] = res;
+        }
+        n.removeAll(removed);
+        if (d == 1 && col) { /* block, recount the remaining rows */
+            int count = 0;
+            for (int x = 0; x < n.n; x++) count += ((Node) n.c[x]).n;
+            n.count = count;
+        }
+    }
+
+    /**
+     * @param lo   start of the child's range in the parent's dimension
+     * @param hi   end of the child's range in the parent's dimension
+     * @param mask covers the child's full range in the parent's dimension
+     * @return null if the child became empty, otherwise the child or its replacement
+     */
+    private Object clearChild(Object child, int lo, int hi, int j0, int j1, int mask, boolean otherFull,
+                              int d, boolean col) {
+        if (otherFull && (lo & mask) == 0 && (hi & mask) == mask) return null; /* fully covered */
+
+        if (child instanceof Tile) {
+            Tile tile = (Tile) child;
+            if (tile.gen != gen) tile = tile.copy(gen);
+            tile.agg = null;
+            /* tile is the child of the j-indexed node, i.e. lo, hi are j and j0, j1 are i */
+            tile.clear(j0 & MASK, lo & MASK, j1 & MASK, hi & MASK);
+            if (tile.n == 0) return null;
+            if (tile.n < TILE_DEMOTE_THRESHOLD) return tile.toNode(gen);
+            return tile;
+        }
+
+        Node node = (Node) child;
+        if (node.gen != gen) node = node.copy(gen);
+        clearRegionRec(node, j0, lo, j1, hi, col ? d : d - 1, !col);
+        return node.n == 0 ? null : node;
+    }
+
+    /**
+     * Converts the block to the {@link Tile} if it has enough elements.
+     * Called after every insertion into a column node, so the count is checked whenever it can cross the threshold.
+     * The count is kept by the block ({@link Node#count}), so the check doesn't visit the rows.
+     *
+     * @param i   (unshifted) index inside the block
+     * @param j   (unshifted) index inside the block
+     * @param col lowest column node of the block
+     */
+    private void promoteIfDense(int i, int j, Node col) {
+        if (depth >= 2 && col.count >= TILE_PROMOTE_THRESHOLD) {
+            replaceBlock(i, j, Tile.of(col, gen));
+        }
+    }
+
+    /**
+     * Replaces the lowest block (column Node or Tile) that contains (i, j) and points the cache to it.
+     * Block must exist and depth must be ≥ 2 (root is never a Tile).
+     *
+     * @param i (unshifted) index inside the block
+     * @param j (unshifted) index inside the block
+     */
+    private void replaceBlock(int i, int j, Object block) {
+        i -= i0;
+        j -= j0;
+        int bits = BITS * (depth - 1);
+        Node el = root;
+        for (int d = depth; d > 2; --d) {
+            el = (Node) el.getOrNull((i >>> bits) & MASK);
+            el = (Node) el.getOrNull((j >>> bits) & MASK);
+            bits -= BITS;
+        }
+        el = (Node) el.getOrNull((i >>> BITS) & MASK);
+        el.setNotNull((j >>> BITS) & MASK, block);
+
+        this.cachei0 = i >>> BITS << BITS;
+        this.cachej0 = j >>> BITS << BITS;
+        this.cache = block;
+        this.cacheGen = gen;
+        putBlockCache(this.cachei0, this.cachej0, block);
+    }
+
+    private void collapseHierarchy() {
+        while (this.depth > 0 && this.root.n <= 1) {
+            if (this.root.n == 0) {
+                clear();
+                return;
+            }
+
+            int i = this.root.firstNonNullIndex();
+            if (i < 0) throw new IllegalStateException("WTF? Should have at least one non-null element");
+            Node col = (Node) this.root.getOrNull(i);
+
+            if (col.n > 1) return;
+            if (col.n == 0) { // collection has only one empty column
+                clear();
+                return;
+            }
+            // col.n == 1
+            int j = col.firstNonNullIndex();
+            if (j < 0) throw new IllegalStateException("WTF? Should have at least one non-null element");
+
+            if (depth == 1) return; /* cannot do anything, there's still one element left  */
+            int shift = BITS * (depth - 1);
+            i0 += i << shift;
+            j0 += j << shift;
+            Object newRoot = col.getOrNull(j);
+            if (newRoot instanceof Tile) { /* root is never a Tile */
+                newRoot = ((Tile) newRoot).toNode(gen);
+            }
+            recycle(this.root);
+            recycle(col);
+            this.root = (Node) newRoot;
+            this.depth--;
+            invalidateCache(); /* adjusted coordinates of the cached blocks have changed */
+        }
+    }
+
+    public void clear() {
+        if (journal != null && root != null) {
+            query(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                    (i, j, v) -> journal.mark(i, j));
+        }
+        invalidateCache();
+        this.depth = 0;
+        this.root = null;
+    }
+
+    /**
+     * Note: assumes that there is a null at the end of the path!
+     * otherwise will throw cast exception
+     *
+     * @param i (unshifted) target index
+     * @param j (unshifted) target index
+     * @return
+     */
+    private boolean clearNodes(int i, int j) {
+        int shift = 32 - depth * BITS;
+        if (clearNodesRec(root, (i - i0) << shift, (j - j0) << shift)) {
+            invalidateCache();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean clearNodesRec(Node parent, int i, int j) {
+        int idx = (i >>> (32 - BITS)) & MASK;
+        Object el = parent.getOrNull(idx);
+        if (el instanceof Tile) {
+            if (((Tile) el).n == 0) {
+                parent.setNull(idx, pool);
+                return true;
+            }
+            return false;
+        }
+        Node child = (Node) el; // cast won't fail if last el is null
+        if (child != null) {
+            boolean res = clearNodesRec(child, j, i << BITS);
+            if (child.n == 0) {
+                parent.setNull(idx, pool);
+                recycle(child);
+                return true;
+            }
+            return res;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the detached node to the pool, nodes shared with the snapshots are left to GC
+     */
+    private void recycle(Node n) {
+        if (pool != null && n.gen == gen) pool.release(n);
+    }
+
+    /**
+     * @return lowest block (column Node or Tile) that contains (i, j) or null
+     */
+    Object getBlockOrNull(int i, int j) {
+        if (!inRange(i, j)) return null;
+        i -= i0;
+        j -= j0;
+
+        if (this.depth > 1 && this.cachei0 != -1 /* is this needed?*/ &&
+                this.cachei0 >>> BITS == i >>> BITS &&
+                this.cachej0 >>> BITS == j >>> BITS
+        ) {
+            return this.cache;
+        }
+
+        this.cachei0 = i >>> BITS << BITS;
+        this.cachej0 = j >>> BITS << BITS;
+
+        if (blockCache != null) {
+            int slot = blockCacheSlot(this.cachei0, this.cachej0);
+            if (blockCacheKeys[slot << 1] == this.cachei0 && blockCacheKeys[slot << 1 | 1] == this.cachej0) {
+                Object block = blockCache[slot];
+                this.cache = block;
+                this.cacheGen = genOf(block);
+                return block;
+            }
+        }
+
+        int d = this.depth;
+        int bits = BITS * (d - 1);
+
+        Object el;
+        for (el = root; d > 1; --d) {
+            el = ((Node) el).getOrNull((i >>> bits) & MASK);
+            if (el == null) {
+                this.cache = null;
+                return null;
+            }
+
+            el = ((Node) el).getOrNull((j >>> bits) & MASK);
+            if (el == null) {
+                this.cache = null;
+                return null;
+            }
+            bits -= BITS;
+        }
+
+        this.cache = el;
+        if (el != null) {
+            this.cacheGen = genOf(el);
+            putBlockCache(this.cachei0, this.cachej0, el);
+        }
+        return el;
+    }
+
+    /**
+     * Same as {@link #get}, but doesn't read or update the cache,
+     * so it's safe to call concurrently on the unchanging grid
+     */
+    @SuppressWarnings("unchecked")
+    T getUncached(int i, int j) {
+        Object el = getBlockUncached(i, j);
+        if (el == null) return null;
+        if (el instanceof Tile) return (T) ((Tile) el).get(i & MASK, j & MASK);
+        Node row = (Node) ((Node) el).getOrNull(i & MASK);
+        return row == null ? null : (T) row.getOrNull(j & MASK);
+    }
+
+    /**
+     * Same as {@link #getBlockOrNull}, but doesn't read or update the cache,
+     * so it is safe for the concurrent readers of the unchanging grid
+     */
+    Object getBlockUncached(int i, int j) {
+        if (root == null || !inRange(i, j)) return null;
+        i -= i0;
+        j -= j0;
+
+        int bits = BITS * (depth - 1);
+        Object el = root;
+        for (int d = depth; d > 1 && el != null; --d) {
+            el = ((Node) el).getOrNull((i >>> bits) & MASK);
+            if (el != null) el = ((Node) el).getOrNull((j >>> bits) & MASK);
+            bits -= BITS;
+        }
+        return el;
+    }
+
+    /**
+     * Persistent version of {@link #set}: this grid is not modified,
+     * returned grid shares all the nodes with this one, except for the (copied) path to (i, j).
+     * <p>
+     * Grid must not contain dense tiles.
+     *
+     * @return new grid or this, if nothing was changed
+     */
+    Grid<T> copyWith(int i, int j, T value) {
+        if (value == null && getUncached(i, j) == null) return this;
+
+        Grid<T> g = new Grid<T>(false, 1);
+        g.root = this.root;
+        g.i0 = this.i0;
+        g.j0 = this.j0;
+        g.depth = this.depth;
+
+        if (value != null) {
+            g.ensureBoundaries(i, j);
+            Node col = g.copyPath(i, j);
+            if (col.copyChild(i & MASK).setNotNull(j & MASK, value) == null) col.count++;
+        } else {
+            Node col = g.copyPath(i, j);
+            Node row = col.copyChild(i & MASK);
+            row.setNull(j & MASK);
+            col.count--;
+            if (row.n == 0 && g.clearNodes(i, j)) {
+                g.collapseHierarchy();
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Replaces the root and the nodes on the path to the lowest block that contains (i, j) with their copies,
+     * missing nodes are created.
+     * Must ensure that (i, j) is in range (doesn't do checks), doesn't touch the cache.
+     *
+     * @return copy of the lowest block
+     */
+    private Node copyPath(int i, int j) {
+        i -= i0;
+        j -= j0;
+        int bits = BITS * (depth - 1);
+
+        Node el = root = root.copy(gen);
+        for (int d = depth; d > 1; --d) {
+            el = el.copyChild((i >>> bits) & MASK);
+            el = el.copyChild((j >>> bits) & MASK);
+            bits -= BITS;
+        }
+        return el;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int i, int j) {
+        Object block = getBlockOrNull(i, j);
+        if (block == null) return null;
+        if (block instanceof Tile) return (T) ((Tile) block).get(i & MASK, j & MASK);
+        Node row = (Node) ((Node) block).getOrNull(i & MASK);
+        if (row == null) return null;
+        return (T) row.getOrNull(j & MASK);
+    }
+
+    /**
+     * Batch version of {@link #get}: {@code out[x] = get(is[x], js[x])} for every {@code x < is.length}.
+     * <p>
+     * Keys are grouped by their path in the hierarchy (radix sort by the digits of the levels,
+     * i.e. Z-order of the blocks) while descending, so the shared prefixes of the paths are traversed once
+     * per batch instead of once per key. Doesn't read or update the cache of the single lookups.
+     *
+     * @param out results in the order of the keys, must have at least {@code is.length} elements
+     */
+    @SuppressWarnings("unchecked")
+    public void getAll(int[] is, int[] js, T[] out) {
+        int n = is.length;
+        if (js.length != n || out.length < n) {
+            throw new IllegalArgumentException("Expected " + n + " keys and results, got " + js.length + " and " + out.length);
+        }
+        if (batch == null) batch = new BatchLookup();
+        int i0 = this.i0, j0 = this.j0;
+        batch.lookup(root, i0, j0, depth, is, js, (o, d, col, idx, from, to) -> {
+            for (int y = from; y < to; y++) {
+                int x = idx[y];
+                out[x] = o == null ? null : (T) getFrom(o, is[x] - i0, js[x] - j0, d, col);
+            }
+        });
+    }
+
+    /**
+     * @param i adjusted index
+     * @param j adjusted index
+     * @return element (i, j) of the subtree o or null
+     */
+    private static Object getFrom(Object o, int i, int j, int d, boolean col) {
+        int bits = BITS * (d - 1);
+        Object el = o;
+        if (!col) {
+            el = ((Node) el).getOrNull((j >>> bits) & MASK);
+            if (el == null || d == 1) return el;
+            bits -= BITS;
+            d--;
+        }
+        for (; d > 1; --d) {
+            el = ((Node) el).getOrNull((i >>> bits) & MASK);
+            if (el == null) return null;
+            el = ((Node) el).getOrNull((j >>> bits) & MASK);
+            if (el == null) return null;
+            bits -= BITS;
+        }
+        if (el instanceof Tile) return ((Tile) el).get(i & MASK, j & MASK);
+        el = ((Node) el).getOrNull(i & MASK);
+        return el == null ? null : ((Node) el).getOrNull(j & MASK);
+    }
+
+    @Override
+    public void query(int i0, int j0, int i1, int j1, QueryFun<T> cb) {
+        if (root == null) return;
+        if (i1 < i0 || j1 < j0) return;
+        long range = (1L << (BITS * depth)) - 1;
+        long ai0 = Math.max((long) i0 - this.i0, 0);
+        long aj0 = Math.max((long) j0 - this.j0, 0);
+        long ai1 = Math.min((long) i1 - this.i0, range);
+        long aj1 = Math.min((long) j1 - this.j0, range);
+        if (ai0 > ai1 || aj0 > aj1) return;
+        queryRec(root, (int) ai0, (int) aj0, (int) ai1, (int) aj1, this.depth, true, cb);
+    }
+
+    /**
+     * Doesn't allocate: keys of the compressed nodes are unpacked in place
+     */
+    @SuppressWarnings("unchecked")
+    private void queryRec(Object o, int i0, int j0, int i1, int j1, int d, boolean col, QueryFun<T> cb) {
+        if (d == 1 && col && o instanceof Tile) {
+            queryTile((Tile) o, i0, j0, i1, j1, cb);
+            return;
+        }
+        Node n = (Node) o;
+        int bits = BITS * (d - 1);
+        int s = (i0 >>> bits) & MASK;
+        int e = (i1 >>> bits) & MASK;
+
+        if (d == 1 && !col) {
+            int jBase = this.j0 + (i0 & ~MASK);
+            for (int m = n.bitmap & rangeMask(s, e), x = n.index(s); m != 0; m &= m - 1, x++) {
+                cb.apply(this.i0 + j0, jBase + Integer.numberOfTrailingZeros(m), (T) n.c[x]);
+            }
+            return;
+        }
+
+        int nextD = col ? d : d - 1;
+        if (s == e) {
+            Object el = n.getOrNull(s);
+            if (el != null) queryRec(el, j0, i0, j1, i1, nextD, !col, cb);
+            return;
+        }
+
+        int mask = (1 << bits) - 1;
+        int start = i0 & ((~MASK) << bits);
+        for (int m = n.bitmap & rangeMask(s, e), x = n.index(s); m != 0; m &= m - 1, x++) {
+            int k = Integer.numberOfTrailingZeros(m);
+            queryRec(n.c[x], j0, k == s ? i0 : start | (k << bits),
+                    j1, k == e ? i1 : start | (k << bits) | mask, nextD, !col, cb);
+        }
+    }
+
+    @Override
+    public void query(int i0, int j0, int i1, int j1, TraversalOrder order, QueryFun<T> cb) {
+        if (order == TraversalOrder.Z_ORDER) {
+            query(i0, j0, i1, j1, cb);
+            return;
+        }
+        if (root == null) return;
+        if (i1 < i0 || j1 < j0) return;
+        long range = (1L << (BITS * depth)) - 1;
+        long ai0 = Math.max((long) i0 - this.i0, 0);
+        long aj0 = Math.max((long) j0 - this.j0, 0);
+        long ai1 = Math.min((long) i1 - this.i0, range);
+        long aj1 = Math.min((long) j1 - this.j0, range);
+        if (ai0 > ai1 || aj0 > aj1) return;
+
+        Frontier[] fs = new Frontier[depth + 1];
+        for (int d = 1; d <= depth; d++) fs[d] = new Frontier();
+        int bits = BITS * (depth - 1);
+        if (order == TraversalOrder.ROW_MAJOR) {
+            fs[depth].add(root, (int) aj0, (int) aj1);
+            rowMajorRec(fs, (int) ai0, (int) ai1, depth, cb);
+        } else {
+            fs[depth].addChildren(root, (int) ai0, (int) ai1, bits);
+            if (fs[depth].size > 0) columnMajorRec(fs, (int) aj0, (int) aj1, depth, cb);
+        }
+    }
+
+    /**
+     * Subtrees of the same level that intersect the current row (column) of the region, ordered by the other key.
+     * Entries are column nodes of the level with their j range for the row-major traversal
+     * and row nodes with their i range for the column-major one, at the lowest level the entry can be a {@link Tile}.
+     */
+    private static final class Frontier {
+        Object[] nodes = new Object[8];
+        /* adjusted range of the other key, clipped to the region */
+        int[] lo = new int[8];
+        int[] hi = new int[8];
+        int size;
+
+        void add(Object node, int lo, int hi) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                this.lo = Arrays.copyOf(this.lo, size * 2);
+                this.hi = Arrays.copyOf(this.hi, size * 2);
+            }
+            nodes[size] = node;
+            this.lo[size] = lo;
+            this.hi[size] = hi;
+            size++;
+        }
+
+        /**
+         * Adds the children of n with keys in [lo, hi] in the ascending order
+         *
+         * @param bits shift of the key of n
+         */
+        void addChildren(Node n, int lo, int hi, int bits) {
+            int s = (lo >>> bits) & MASK;
+            int e = (hi >>> bits) & MASK;
+            int mask = (1 << bits) - 1;
+            int start = lo & ((~MASK) << bits);
+            for (int m = n.bitmap & rangeMask(s, e), x = n.index(s); m != 0; m &= m - 1, x++) {
+                int k = Integer.numberOfTrailingZeros(m);
+                add(n.c[x], k == s ? lo : start | (k << bits), k == e ? hi : start | (k << bits) | mask);
+            }
+        }
+    }
+
+    /**
+     * Row-major traversal: i digit of the level is fixed for all subtrees of the frontier (fs[d]) at once,
+     * then the frontier of the next level is collected from the matching rows
+     *
+     * @param i0 adjusted start of the i range
+     * @param i1 adjusted end of the i range
+     */
+    @SuppressWarnings("unchecked")
+    private void rowMajorRec(Frontier[] fs, int i0, int i1, int d, QueryFun<T> cb) {
+        Frontier f = fs[d];
+        int bits = BITS * (d - 1);
+        int s = (i0 >>> bits) & MASK;
+        int e = (i1 >>> bits) & MASK;
+
+        if (d == 1) {
+            int iBase = this.i0 + (i0 & ~MASK);
+            for (int k = s; k <= e; k++) {
+                for (int x = 0; x < f.size; x++) {
+                    Object o = f.nodes[x];
+                    int lo = f.lo[x] & MASK;
+                    int hi = f.hi[x] & MASK;
+                    int jBase = this.j0 + (f.lo[x] & ~MASK);
+                    if (o instanceof Tile) {
+                        Tile t = (Tile) o;
+                        int m = t.rows[k] & (-1 >>> (MASK - hi)) & (-1 << lo);
+                        while (m != 0) {
+                            int j = Integer.numberOfTrailingZeros(m);
+                            cb.apply(iBase + k, jBase + j, (T) t.v[k << BITS | j]);
+                            m &= m - 1;
+                        }
+                        continue;
+                    }
+                    Node row = (Node) ((Node) o).getOrNull(k);
+                    if (row == null) continue;
+                    for (int m = row.bitmap & rangeMask(lo, hi), y = row.index(lo); m != 0; m &= m - 1, y++) {
+                        cb.apply(iBase + k, jBase + Integer.numberOfTrailingZeros(m), (T) row.c[y]);
+                    }
+                }
+            }
+            return;
+        }
+
+        Frontier next = fs[d - 1];
+        int mask = (1 << bits) - 1;
+        int start = i0 & ((~MASK) << bits);
+        for (int k = s; k <= e; k++) {
+            next.size = 0;
+            for (int x = 0; x < f.size; x++) {
+                Node row = (Node) ((Node) f.nodes[x]).getOrNull(k);
+                if (row != null) next.addChildren(row, f.lo[x], f.hi[x], bits);
+            }
+            if (next.size > 0) {
+                rowMajorRec(fs, k == s ? i0 : start | (k << bits), k == e ? i1 : start | (k << bits) | mask, d - 1, cb);
+            }
+        }
+    }
+
+    /**
+     * Column-major traversal: j digit of the level is fixed for all row nodes of the frontier (fs[d]) at once,
+     * then the frontier of the next level is collected from the matching columns
+     *
+     * @param j0 adjusted start of the j range
+     * @param j1 adjusted end of the j range
+     */
+    @SuppressWarnings("unchecked")
+    private void columnMajorRec(Frontier[] fs, int j0, int j1, int d, QueryFun<T> cb) {
+        Frontier f = fs[d];
+        int bits = BITS * (d - 1);
+        int s = (j0 >>> bits) & MASK;
+        int e = (j1 >>> bits) & MASK;
+
+        if (d == 1) {
+            int jBase = this.j0 + (j0 & ~MASK);
+            for (int k = s; k <= e; k++) {
+                for (int x = 0; x < f.size; x++) {
+                    Object o = f.nodes[x];
+                    if (o instanceof Tile) { /* tile in place of the rows [lo, hi] */
+                        Tile t = (Tile) o;
+                        int iBase = this.i0 + (f.lo[x] & ~MASK);
+                        for (int i = f.lo[x] & MASK, hi = f.hi[x] & MASK; i <= hi; i++) {
+                            if ((t.rows[i] >>> k & 1) != 0) cb.apply(iBase + i, jBase + k, (T) t.v[i << BITS | k]);
+                        }
+                        continue;
+                    }
+                    Object el = ((Node) o).getOrNull(k);
+                    if (el != null) cb.apply(this.i0 + f.lo[x], jBase + k, (T) el);
+                }
+            }
+            return;
+        }
+
+        Frontier next = fs[d - 1];
+        int mask = (1 << bits) - 1;
+        int start = j0 & ((~MASK) << bits);
+        int nextBits = bits - BITS;
+        for (int k = s; k <= e; k++) {
+            next.size = 0;
+            for (int x = 0; x < f.size; x++) {
+                Object col = ((Node) f.nodes[x]).getOrNull(k);
+                if (col == null) continue;
+                if (col instanceof Tile) next.add(col, f.lo[x], f.hi[x]);
+                else next.addChildren((Node) col, f.lo[x], f.hi[x], nextBits);
+            }
+            if (next.size > 0) {
+                columnMajorRec(fs, k == s ? j0 : start | (k << bits), k == e ? j1 : start | (k << bits) | mask, d - 1, cb);
+            }
+        }
+    }
+
+    @Override
+    public void parallelQuery(int i0, int j0, int i1, int j1, QueryFun<T> cb) {
+        parallelQuery(i0, j0, i1, j1, 1, cb);
+    }
+
+    /**
+     * Parallel AABB query, see {@link GridReadOnlyView#parallelQuery(int, int, int, int, QueryFun)}
+     *
+     * @param granularity subtrees on the hierarchy levels ≤ granularity are traversed by a single task,
+     *                    i.e. 1 - task per 32x32 block, 2 - task per 1024x1024 block, etc.
+     */
+    public void parallelQuery(int i0, int j0, int i1, int j1, int granularity, QueryFun<T> cb) {
+        if (granularity < 1) throw new IllegalArgumentException("granularity must be ≥ 1: " + granularity);
+        if (root == null) return;
+        if (i1 < i0 || j1 < j0) return;
+        long range = (1L << (BITS * depth)) - 1;
+        long ai0 = Math.max((long) i0 - this.i0, 0);
+        long aj0 = Math.max((long) j0 - this.j0, 0);
+        long ai1 = Math.min((long) i1 - this.i0, range);
+        long aj1 = Math.min((long) j1 - this.j0, range);
+        if (ai0 > ai1 || aj0 > aj1) return;
+        new QueryTask(root, (int) ai0, (int) aj0, (int) ai1, (int) aj1,
+                this.depth, true, granularity, cb).invoke();
+    }
+
+    @Override
+    public GridCursor<T> cursor(int i0, int j0, int i1, int j1) {
+        return iterator(i0, j0, i1, j1);
+    }
+
+    @Override
+    public GridSpliterator<T> spliterator(int i0, int j0, int i1, int j1) {
+        return iterator(i0, j0, i1, j1);
+    }
+
+    private GridIterator<T> iterator(int i0, int j0, int i1, int j1) {
+        long range = (1L << (BITS * depth)) - 1;
+        long ai0 = Math.max((long) i0 - this.i0, 0);
+        long aj0 = Math.max((long) j0 - this.j0, 0);
+        long ai1 = Math.min((long) i1 - this.i0, range);
+        long aj1 = Math.min((long) j1 - this.j0, range);
+        Node root = ai0 > ai1 || aj0 > aj1 ? null : this.root;
+        return new GridIterator<>(root, depth, this.i0, this.j0, (int) ai0, (int) aj0, (int) ai1, (int) aj1);
+    }
+
+    /**
+     * Splits the {@link #queryRec} traversal into subtasks on the levels above the granularity.
+     * Doesn't use the cache, so multiple tasks can traverse the same (unchanging) grid.
+     */
+    private final class QueryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Object n;
+        private final int i0, j0, i1, j1, d;
+        private final boolean col;
+        private final int granularity;
+        private final QueryFun<T> cb;
+
+        QueryTask(Object n, int i0, int j0, int i1, int j1, int d, boolean col, int granularity, QueryFun<T> cb) {
+            this.n = n;
+            this.i0 = i0;
+            this.j0 = j0;
+            this.i1 = i1;
+            this.j1 = j1;
+            this.d = d;
+            this.col = col;
+            this.granularity = granularity;
+            this.cb = cb;
+        }
+
+        @Override
+        protected void compute() {
+            if (d <= granularity) {
+                queryRec(n, i0, j0, i1, j1, d, col, cb);
+                return;
+            }
+
+            Node node = (Node) n;
+            int bits = BITS * (d - 1);
+            int s = (i0 >>> bits) & MASK;
+            int e = (i1 >>> bits) & MASK;
+            int mask = (1 << bits) - 1;
+            int start = i0 & ((~MASK) << bits);
+            int nextD = col ? d : d - 1;
+
+            List<QueryTask> tasks = new ArrayList<>();
+            for (int k = s; k <= e; k++) {
+                Object el = node.getOrNull(k);
+                if (el == null) continue;
+                tasks.add(new QueryTask(el, j0, k == s ? i0 : start | (k << bits),
+                        j1, k == e ? i1 : start | (k << bits) | mask, nextD, !col, granularity, cb));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void queryTile(Tile t, int i0, int j0, int i1, int j1, QueryFun<T> cb) {
+        int mask = (-1 >>> (MASK - (j1 & MASK))) & (-1 << (j0 & MASK));
+        int iBase = this.i0 + (i0 & ~MASK);
+        int jBase = this.j0 + (j0 & ~MASK);
+        for (int i = i0 & MASK; i <= (i1 & MASK); i++) {
+            int bits = t.rows[i] & mask;
+            while (bits != 0) {
+                int j = Integer.numberOfTrailingZeros(bits);
+                cb.apply(iBase + i, jBase + j, (T) t.v[i << BITS | j]);
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    @Override
+    public void neighbors(int i, int j, int radius, QueryFun<T> cb) {
+        if (radius < 0) throw new IllegalArgumentException("Negative radius: " + radius);
+        if (root == null) return;
+        int ia = clamp((long) i - radius);
+        int ja = clamp((long) j - radius);
+        int ib = clamp((long) i + radius);
+        int jb = clamp((long) j + radius);
+
+        if (radius > SIZE) {
+            /* too many blocks to resolve them one by one, the center is cut out by splitting the region */
+            if (i > ia) query(ia, ja, i - 1, jb, cb);
+            if (j > ja) query(i, ja, i, j - 1, cb);
+            if (j < jb) query(i, j + 1, i, jb, cb);
+            if (i < ib) query(i + 1, ja, ib, jb, cb);
+            return;
+        }
+
+        long range = (1L << (BITS * depth)) - 1;
+        long ai0 = Math.max((long) ia - this.i0, 0);
+        long aj0 = Math.max((long) ja - this.j0, 0);
+        long ai1 = Math.min((long) ib - this.i0, range);
+        long aj1 = Math.min((long) jb - this.j0, range);
+        for (long bi = ai0; bi <= ai1; bi = (bi | MASK) + 1) {
+            for (long bj = aj0; bj <= aj1; bj = (bj | MASK) + 1) {
+                Object block = getBlockUncached((int) (this.i0 + bi), (int) (this.j0 + bj));
+                if (block == null) continue;
+                neighborsInBlock(block, bi, bj, Math.min(ai1, bi | MASK), Math.min(aj1, bj | MASK), i, j, cb);
+            }
+        }
+    }
+
+    /**
+     * Reads the rows of the block directly, the region [bi, ei] x [bj, ej] (adjusted) must be inside of the block
+     *
+     * @param i center, skipped
+     * @param j center, skipped
+     */
+    @SuppressWarnings("unchecked")
+    private void neighborsInBlock(Object block, long bi, long bj, long ei, long ej, int i, int j, QueryFun<T> cb) {
+        int iBase = (int) (this.i0 + (bi & ~MASK));
+        int jBase = (int) (this.j0 + (bj & ~MASK));
+        int s = (int) bj & MASK;
+        int e = (int) ej & MASK;
+        if (block instanceof Tile) {
+            Tile t = (Tile) block;
+            int mask = rangeMask(s, e);
+            for (int ki = (int) bi & MASK; ki <= ((int) ei & MASK); ki++) {
+                for (int bits = t.rows[ki] & mask; bits != 0; bits &= bits - 1) {
+                    int kj = Integer.numberOfTrailingZeros(bits);
+                    if (iBase + ki != i || jBase + kj != j) cb.apply(iBase + ki, jBase + kj, (T) t.v[ki << BITS | kj]);
+                }
+            }
+            return;
+        }
+        Node col = (Node) block;
+        int si = (int) bi & MASK;
+        for (int m = col.bitmap & rangeMask(si, (int) ei & MASK), x = col.index(si); m != 0; m &= m - 1, x++) {
+            int ki = Integer.numberOfTrailingZeros(m);
+            Node row = (Node) col.c[x];
+            for (int mj = row.bitmap & rangeMask(s, e), y = row.index(s); mj != 0; mj &= mj - 1, y++) {
+                int kj = Integer.numberOfTrailingZeros(mj);
+                if (iBase + ki != i || jBase + kj != j) cb.apply(iBase + ki, jBase + kj, (T) row.c[y]);
+            }
+        }
+    }
+
+    @Override
+    public void withinRadius(int i, int j, int r, QueryFun<T> cb) {
+        if (r < 0) throw new IllegalArgumentException("Negative radius: " + r);
+        if (root == null) return;
+        long pi = (long) i - this.i0;
+        long pj = (long) j - this.j0;
+        long r2 = (long) r * r;
+        /* |i' - i| ≤ r and |j' - j| ≤ r are checked first, so the squares don't overflow */
+        QueryFun<T> filter = (x, y, v) -> {
+            long di = (long) x - i;
+            long dj = (long) y - j;
+            if (di * di + dj * dj <= r2) cb.apply(x, y, v);
+        };
+        withinRadiusRec(root, 0, 0, this.depth, pi, pj, r, filter);
+    }
+
+    /**
+     * @param o  column node of the level d or Tile, its box is [bi, bi + 32^d) x [bj, bj + 32^d)
+     * @param pi adjusted center
+     * @param pj adjusted center
+     */
+    private void withinRadiusRec(Object o, long bi, long bj, int d, long pi, long pj, int r, QueryFun<T> cb) {
+        long side = 1L << (BITS * d);
+        /* intersection of the box with the bounding square of the circle */
+        long i0 = Math.max(bi, pi - r);
+        long j0 = Math.max(bj, pj - r);
+        long i1 = Math.min(bi + side - 1, pi + r);
+        long j1 = Math.min(bj + side - 1, pj + r);
+        if (i0 > i1 || j0 > j1) return;
+        if (d == 1) {
+            queryRec(o, (int) i0, (int) j0, (int) i1, (int) j1, 1, true, cb);
+            return;
+        }
+
+        Node col = (Node) o;
+        int bits = BITS * (d - 1);
+        long sub = 1L << bits;
+        long r2 = (long) r * r;
+        int iMask = rangeMask((int) ((i0 - bi) >>> bits), (int) ((i1 - bi) >>> bits));
+        int jMask = rangeMask((int) ((j0 - bj) >>> bits), (int) ((j1 - bj) >>> bits));
+        for (int m = col.mask() & iMask; m != 0; m &= m - 1) {
+            int ki = Integer.numberOfTrailingZeros(m);
+            Node row = (Node) col.getOrNull(ki);
+            long ci = bi + ki * sub;
+            long di = boxDistance(pi, ci, sub);
+            for (int mj = row.mask() & jMask; mj != 0; mj &= mj - 1) {
+                int kj = Integer.numberOfTrailingZeros(mj);
+                Object child = row.getOrNull(kj);
+                long cj = bj + kj * sub;
+                long dj = boxDistance(pj, cj, sub);
+                if (di * di + dj * dj <= r2) withinRadiusRec(child, ci, cj, d - 1, pi, pj, r, cb);
+            }
+        }
+    }
+
+    /**
+     * @return bitmask of the children with indices in [s, e]
+     */
+    static int rangeMask(int s, int e) {
+        return (-1 >>> (MASK - e)) & (-1 << s);
+    }
+
+    /**
+     * @return distance from p to the range [lo, lo + size)
+     */
+    private static long boxDistance(long p, long lo, long size) {
+        if (p < lo) return lo - p;
+        long hi = lo + size - 1;
+        return p > hi ? p - hi : 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void nearest(int i, int j, int k, Predicate<? super T> filter, QueryFun<T> cb) {
+        if (k < 0) throw new IllegalArgumentException("Negative k: " + k);
+        if (root == null || k == 0) return;
+        long pi = (long) i - this.i0;
+        long pj = (long) j - this.j0;
+
+        /* subtrees by the distance to their boxes and k best elements so far (farthest first) */
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        PriorityQueue<Candidate> found = new PriorityQueue<>(k, Comparator.reverseOrder());
+        QueryFun<T> collect = (x, y, v) -> {
+            if (filter != null && !filter.test(v)) return;
+            long di = Math.abs((long) x - i);
+            long dj = Math.abs((long) y - j);
+            if (found.size() < k) found.add(new Candidate(v, x, y, 0, di, dj));
+            else if (found.peek().compareTo(di, dj) > 0) {
+                found.poll();
+                found.add(new Candidate(v, x, y, 0, di, dj));
+            }
+        };
+
+        queue.add(new Candidate(root, 0, 0, this.depth, 0, 0));
+        Candidate c;
+        while ((c = queue.poll()) != null) {
+            if (found.size() == k && c.compareTo(found.peek()) >= 0) break;
+            if (c.d == 1) {
+                queryRec(c.o, (int) c.i, (int) c.j, (int) c.i + MASK, (int) c.j + MASK, 1, true, collect);
+                continue;
+            }
+
+            Node col = (Node) c.o;
+            int bits = BITS * (c.d - 1);
+            long sub = 1L << bits;
+            for (int m = col.mask(); m != 0; m &= m - 1) {
+                int ki = Integer.numberOfTrailingZeros(m);
+                Node row = (Node) col.getOrNull(ki);
+                long ci = c.i + ki * sub;
+                long di = boxDistance(pi, ci, sub);
+                for (int mj = row.mask(); mj != 0; mj &= mj - 1) {
+                    int kj = Integer.numberOfTrailingZeros(mj);
+                    Object child = row.getOrNull(kj);
+                    long cj = c.j + kj * sub;
+                    long dj = boxDistance(pj, cj, sub);
+                    if (found.size() < k || found.peek().compareTo(di, dj) > 0) {
+                        queue.add(new Candidate(child, ci, cj, c.d - 1, di, dj));
+                    }
+                }
+            }
+        }
+
+        Candidate[] res = found.toArray(new Candidate[0]);
+        Arrays.sort(res);
+        for (Candidate e : res) cb.apply((int) e.i, (int) e.j, (T) e.o);
+    }
+
+    /**
+     * Entry of {@link #nearest}: either a subtree (column node of the level d or Tile) with the adjusted start
+     * of its box, or an element (d == 0) with its coordinates
+     */
+    private static final class Candidate implements Comparable<Candidate> {
+        final Object o;
+        final long i;
+        final long j;
+        final int d;
+        /*
+         * squared distance to the element or to the box of the subtree, di^2 + dj^2 with di, dj < 2^32:
+         * it's up to 2^65, so it's kept exactly as the low 64 bits (unsigned) and the carry
+         */
+        final long dist;
+        final boolean carry;
+
+        Candidate(Object o, long i, long j, int d, long di, long dj) {
+            this.o = o;
+            this.i = i;
+            this.j = j;
+            this.d = d;
+            this.dist = di * di + dj * dj;
+            this.carry = carry(di, dj);
+        }
+
+        /**
+         * @return true if di^2 + dj^2 overflows 64 bits (unsigned)
+         */
+        static boolean carry(long di, long dj) {
+            long di2 = di * di;
+            return Long.compareUnsigned(di2 + dj * dj, di2) < 0;
+        }
+
+        /**
+         * @return comparison of the distance with the squared distance di^2 + dj^2
+         */
+        int compareTo(long di, long dj) {
+            boolean c = carry(di, dj);
+            if (carry != c) return carry ? 1 : -1;
+            return Long.compareUnsigned(dist, di * di + dj * dj);
+        }
+
+        @Override
+        public int compareTo(Candidate o) {
+            if (carry != o.carry) return carry ? 1 : -1;
+            return Long.compareUnsigned(dist, o.dist);
+        }
+    }
+
+    @Override
+    public void forEachWithNeighbors(int i0, int j0, int i1, int j1, int radius, NeighborsFun<T> kernel) {
+        if (radius < 0) throw new IllegalArgumentException("Negative radius: " + radius);
+        Window w = new Window(radius);
+        /* elements of the block are visited by the query contiguously, so the window is moved once per block */
+        query(i0, j0, i1, j1, (i, j, v) -> {
+            int bi = this.i0 + ((i - this.i0) & ~MASK);
+            int bj = this.j0 + ((j - this.j0) & ~MASK);
+            if (!w.filled || bi != w.bi || bj != w.bj) w.moveTo(bi, bj);
+            w.center(i, j);
+            kernel.apply(i, j, v, w);
+        });
+    }
+
+    private static int clamp(long i) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, i));
+    }
+
+    /**
+     * Dense copy of the block and its margin of the radius width, row-major.
+     * The window of the dense block is filled at once, in the sparse blocks only the neighborhood
+     * of the current element is filled, so the cost doesn't depend on the size of the window.
+     */
+    private final class Window implements Neighborhood<T> {
+        final int radius;
+        final int size;
+        final Object[] v;
+        boolean filled;
+        /* whole window is filled, otherwise only the neighborhood of the center */
+        boolean dense;
+        /* block start */
+        int bi, bj;
+        /* window start */
+        int oi, oj;
+        /* center relative to the window start */
+        int ci, cj;
+        /* 3x3 blocks around the current one, row-major, resolved on the first access */
+        final Object[] blocks = new Object[9];
+        int resolved;
+        /* used for radius > SIZE, where the margin can span more than one block */
+        final QueryFun<T> filler;
+
+        Window(int radius) {
+            this.radius = radius;
+            this.size = SIZE + 2 * radius;
+            this.v = new Object[size * size];
+            this.filler = (i, j, el) -> v[(i - oi) * size + (j - oj)] = el;
+        }
+
+        /**
+         * @param bi start of the block (unshifted)
+         * @param bj start of the block (unshifted)
+         */
+        void moveTo(int bi, int bj) {
+            filled = true;
+            this.bi = bi;
+            this.bj = bj;
+            /* can wrap around on the int boundary, offsets inside of the window are still correct */
+            oi = bi - radius;
+            oj = bj - radius;
+            resolved = 0;
+            /* dense when the neighborhoods of the elements are expected to cover every row of the window */
+            dense = count(block(1, 1)) * (2 * radius + 1) >= size;
+            if (dense) fill(0, size - 1, 0, size - 1);
+        }
+
+        void center(int i, int j) {
+            ci = i - oi;
+            cj = j - oj;
+            if (!dense) fill(ci - radius, ci + radius, cj - radius, cj + radius);
+        }
+
+        private long count(Object block) {
+            if (block instanceof Tile) return ((Tile) block).n;
+            Node col = (Node) block;
+            long count = 0;
+            for (int x = 0; x < col.n; x++) {
+                count += ((Node) col.c[x]).n;
+            }
+            return count;
+        }
+
+        /**
+         * Fills [wi0, wi1] x [wj0, wj1] region of the window (offsets from the window start)
+         */
+        private void fill(int wi0, int wi1, int wj0, int wj1) {
+            for (int wi = wi0; wi <= wi1; wi++) {
+                Arrays.fill(v, wi * size + wj0, wi * size + wj1 + 1, null);
+            }
+            if (radius > SIZE) {
+                long i0 = (long) bi - radius + wi0, i1 = (long) bi - radius + wi1;
+                long j0 = (long) bj - radius + wj0, j1 = (long) bj - radius + wj1;
+                if (i1 < Integer.MIN_VALUE || i0 > Integer.MAX_VALUE || j1 < Integer.MIN_VALUE
+                        || j0 > Integer.MAX_VALUE) return;
+                query(clamp(i0), clamp(j0), clamp(i1), clamp(j1), filler);
+                return;
+            }
+            for (int wi = wi0; wi <= wi1; wi++) {
+                int di = wi - radius;
+                int br = di < 0 ? 0 : di < SIZE ? 1 : 2;
+                for (int bc = 0; bc < 3; bc++) {
+                    /* window offset of the block column start */
+                    int o = radius + (bc - 1) * SIZE;
+                    int s = Math.max(wj0, o), e = Math.min(wj1, o + MASK);
+                    if (s <= e) fillRow(block(br, bc), di & MASK, s - o, e - o, wi * size + o);
+                }
+            }
+        }
+
+        /**
+         * Copies [s, e] elements of the row ki of the block to v, element kj goes to {@code v[base + kj]}
+         */
+        private void fillRow(Object block, int ki, int s, int e, int base) {
+            if (block == null) return;
+            if (block instanceof Tile) {
+                Tile t = (Tile) block;
+                for (int bits = t.rows[ki] & rangeMask(s, e); bits != 0; bits &= bits - 1) {
+                    int kj = Integer.numberOfTrailingZeros(bits);
+                    v[base + kj] = t.v[ki << BITS | kj];
+                }
+                return;
+            }
+            Node row = (Node) ((Node) block).getOrNull(ki);
+            if (row == null) return;
+            for (int m = row.bitmap & rangeMask(s, e), y = row.index(s); m != 0; m &= m - 1, y++) {
+                v[base + Integer.numberOfTrailingZeros(m)] = row.c[y];
+            }
+        }
+
+        /**
+         * @param br row of the block around the current one, 0..2
+         * @param bc column of the block around the current one, 0..2
+         */
+        private Object block(int br, int bc) {
+            int k = br * 3 + bc;
+            if ((resolved & (1 << k)) == 0) {
+                resolved |= 1 << k;
+                long i = (long) bi + (br - 1) * SIZE;
+                long j = (long) bj + (bc - 1) * SIZE;
+                blocks[k] = i < Integer.MIN_VALUE || i > Integer.MAX_VALUE || j < Integer.MIN_VALUE
+                        || j > Integer.MAX_VALUE ? null : getBlockUncached((int) i, (int) j);
+            }
+            return blocks[k];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int di, int dj) {
+            if (di < -radius || di > radius || dj < -radius || dj > radius) {
+                throw new IndexOutOfBoundsException("(" + di + ", " + dj + ") is outside of the radius " + radius);
+            }
+            return (T) v[(ci + di) * size + cj + dj];
+        }
+
+        @Override
+        public int radius() {
+            return radius;
+        }
+    }
+
+    @Override
+    public long count(int i0, int j0, int i1, int j1) {
+        AggAcc acc = aggregateRegion(i0, j0, i1, j1, null, aggEpoch != 0);
+        return acc.count;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A> A aggregate(int i0, int j0, int i1, int j1, Aggregator<? super T, A> aggregator) {
+        if (aggregator == null) throw new NullPointerException("aggregator");
+        AggAcc acc = aggregateRegion(i0, j0, i1, j1, (Aggregator<Object, Object>) aggregator,
+                aggEpoch != 0 && aggregator == this.aggregator);
+        return (A) acc.value;
+    }
+
+    /* running count and aggregate of the region */
+    private static final class AggAcc {
+        long count;
+        Object value;
+    }
+
+    /**
+     * @param ag     null to count only
+     * @param cached use (and populate) cached aggregates of the subtrees
+     */
+    private AggAcc aggregateRegion(int i0, int j0, int i1, int j1, Aggregator<Object, Object> ag, boolean cached) {
+        AggAcc acc = new AggAcc();
+        if (root == null) return acc;
+        if (i1 < i0 || j1 < j0) return acc;
+        long range = (1L << (BITS * depth)) - 1;
+        long ai0 = Math.max((long) i0 - this.i0, 0);
+        long aj0 = Math.max((long) j0 - this.j0, 0);
+        long ai1 = Math.min((long) i1 - this.i0, range);
+        long aj1 = Math.min((long) j1 - this.j0, range);
+        if (ai0 > ai1 || aj0 > aj1) return acc;
+        aggRec(root, (int) ai0, (int) aj0, (int) ai1, (int) aj1, this.depth, true, ag, cached, acc);
+        return acc;
+    }
+
+    /**
+     * Same traversal as {@link #queryRec}, column nodes and tiles that lie fully inside the region
+     * are taken from the cache (see {@link #subtreeAgg})
+     */
+    private void aggRec(Object o, int i0, int j0, int i1, int j1, int d, boolean col,
+                        Aggregator<Object, Object> ag, boolean cached, AggAcc acc) {
+        if (col && cached) {
+            int m = BITS * d >= 32 ? -1 : (1 << (BITS * d)) - 1;
+            if ((i0 & m) == 0 && (i1 & m) == m && (j0 & m) == 0 && (j1 & m) == m) {
+                Agg a = subtreeAgg(o, d);
+                acc.count += a.count;
+                if (ag != null) acc.value = combine(ag, acc.value, a.value);
+                return;
             }
         }
-
-        Object getOrNull(int i) {
-            if (n <= 2) {
-                if (n > 0 && (keys & MASK) == i) return c[0];
-                else if (n == 2 && ((keys >>> BITS) & MASK) == i) return c[1];
-                else return null;
-            } else return c[i];
-        }
-
-        Object setNotNull(int i, Object v) {
-            Object tmp;
-            if (n == 0) {
-                keys = i;
-                n = 1;
-                c[0] = v;
-                return null;
-            } else if (n == 1) {
-                if (keys == i) {
-                    tmp = c[0];
-                    c[0] = v;
-                    return tmp;
-                } else if (keys < i) {
-                    keys |= i << BITS;
-                    n++;
-                    c[1] = v;
-                    return null;
-                } else { /* keys > i */
-                    keys = (keys << BITS) | i;
-                    c[1] = c[0];
-                    c[0] = v;
-                    n++;
-                    return null;
-                }
-            } else if (n == 2) {
-                if ((keys & MASK) == i) {
-                    tmp = c[0];
-                    c[0] = v;
-                    return tmp;
-                } else if ((keys >>> BITS & MASK) == i) {
-                    tmp = c[1];
-                    c[1] = v;
-                    return tmp;
-                } else {
-                    /* promote */
-                    Object[] c0 = c;
-                    c = new Object[SIZE];
-                    c[keys & MASK] = c0[0];
-                    c[(keys >>> BITS) & MASK] = c0[1];
-                    keys = 0;
+        if (d == 1 && col && o instanceof Tile) {
+            Tile t = (Tile) o;
+            int mask = (-1 >>> (MASK - (j1 & MASK))) & (-1 << (j0 & MASK));
+            for (int i = i0 & MASK; i <= (i1 & MASK); i++) {
+                int bits = t.rows[i] & mask;
+                acc.count += Integer.bitCount(bits);
+                if (ag == null) continue;
+                for (; bits != 0; bits &= bits - 1) {
+                    acc.value = combine(ag, acc.value, ag.of(t.v[i << BITS | Integer.numberOfTrailingZeros(bits)]));
                 }
             }
-
-            tmp = c[i];
-            if (tmp == null) n++;
-            c[i] = v;
-            return tmp;
+            return;
         }
+        Node n = (Node) o;
+        int bits = BITS * (d - 1);
+        int s = (i0 >>> bits) & MASK;
+        int e = (i1 >>> bits) & MASK;
 
-        Object setNull(int i) {
-            Object tmp = getOrNull(i);
-            if (tmp == null) return null;
-
-            /* n cannot be 0 here or tmp would be null */
-            if (n == 1) {
-                c[0] = null;
-                keys = 0;
-            } else if (n == 2) {
-                if ((keys & MASK) == i) { /* 0 el */
-                    c[0] = c[1];
-                    c[1] = null;
-                    keys >>>= BITS;
-                } else {  /*  1st el */
-                    c[1] = null;
-                    keys &= MASK;
-                }
+        if (d == 1 && !col) {
+            if (ag == null && s == 0 && e == MASK) {
+                acc.count += n.n;
             } else {
-                c[i] = null;
-            }
-
-            n--;
-
-            if (n == 2) { // demote
-                int n0 = 0;
-                Object[] c0 = new Object[2];
-                keys = 0;
-                int bits = 0;
-                for (int j = 0; j < SIZE; j++) {
-                    if (c[j] != null) {
-                        c0[n0++] = c[j];
-                        keys |= j << bits;
-                        bits += BITS;
-                    }
+                for (int m = n.bitmap & rangeMask(s, e), x = n.index(s); m != 0; m &= m - 1, x++) {
+                    acc.count++;
+                    if (ag != null) acc.value = combine(ag, acc.value, ag.of(n.c[x]));
                 }
-                c = c0;
             }
-
-            return tmp;
+            return;
         }
 
-        Node getOrCreateChildNode(int i) {
-            Object el = getOrNull(i);
-            if (el != null) return (Node) el;
-
-            Node node = new Node();
-            setNotNull(i, node);
+        int nextD = col ? d : d - 1;
+        if (s == e) {
+            Object el = n.getOrNull(s);
+            if (el != null) aggRec(el, j0, i0, j1, i1, nextD, !col, ag, cached, acc);
+            return;
+        }
 
-            return node;
+        int mask = (1 << bits) - 1;
+        int start = i0 & ((~MASK) << bits);
+        for (int m = n.bitmap & rangeMask(s, e), x = n.index(s); m != 0; m &= m - 1, x++) {
+            int k = Integer.numberOfTrailingZeros(m);
+            aggRec(n.c[x], j0, k == s ? i0 : start | (k << bits),
+                    j1, k == e ? i1 : start | (k << bits) | mask, nextD, !col, ag, cached, acc);
         }
     }
 
-    public int getDepth() {
-        return depth;
+    private static Object combine(Aggregator<Object, Object> ag, Object acc, Object a) {
+        return acc == null ? a : a == null ? acc : ag.combine(acc, a);
     }
 
-    public void set(int i, int j, T value) {
-        if (value != null) {
-            ensureBoundaries(i, j);
-            Node row = getOrCreateRow(i, j, 0);
-            row.setNotNull(j & MASK, value);
-        } else {
-            Node row = getRowOrNull(i, j);
-            if (row != null && row.setNull(j & MASK) != null && row.n == 0) {
-                if (clearNodes(i, j)) {
-                    collapseHierarchy();
+    /**
+     * Cached count and aggregate (with {@link #aggregator}) of the column node or tile, computed on demand.
+     * Aggregates of the nested column nodes are cached as well, which keeps the invariant of {@link #aggEpoch}.
+     *
+     * @param o column node or tile
+     * @param d level of the column node
+     */
+    @SuppressWarnings("unchecked")
+    private Agg subtreeAgg(Object o, int d) {
+        Agg a = aggOf(o);
+        if (a != null && a.epoch == aggEpoch) return a;
+
+        Aggregator<Object, Object> ag = (Aggregator<Object, Object>) aggregator;
+        long count = 0;
+        Object value = null;
+        if (o instanceof Tile) {
+            Tile t = (Tile) o;
+            count = t.n;
+            if (ag != null) {
+                for (int i = 0; i < SIZE; i++) {
+                    for (int bits = t.rows[i]; bits != 0; bits &= bits - 1) {
+                        value = combine(ag, value, ag.of(t.v[i << BITS | Integer.numberOfTrailingZeros(bits)]));
+                    }
                 }
             }
+            t.agg = a = new Agg(aggEpoch, count, value);
+            return a;
         }
-    }
-
-    private void collapseHierarchy() {
-        while (this.depth > 0 && this.root.n <= 1) {
-            if (this.root.n == 0) {
-                clear();
-                return;
-            }
-
-            int i = this.root.firstNonNullIndex();
-            if (i < 0) throw new IllegalStateException("WTF? Should have at least one non-null element");
-            Node col = (Node) this.root.getOrNull(i);
 
-            if (col.n > 1) return;
-            if (col.n == 0) { // collection has only one empty column
-                clear();
-                return;
+        Node n = (Node) o;
+        for (int x = 0, k = 0; x < n.n; k++) {
+            Node child = (Node) n.c[k];
+            if (child == null) continue;
+            x++;
+            if (d == 1) {
+                count += child.n;
+                if (ag != null) {
+                    for (int y = 0, l = 0; y < child.n; l++) {
+                        Object el = child.c[l];
+                        if (el == null) continue;
+                        y++;
+                        value = combine(ag, value, ag.of(el));
+                    }
+                }
+            } else {
+                for (int y = 0, l = 0; y < child.n; l++) {
+                    Object el = child.c[l];
+                    if (el == null) continue;
+                    y++;
+                    Agg ca = subtreeAgg(el, d - 1);
+                    count += ca.count;
+                    if (ag != null) value = combine(ag, value, ca.value);
+                }
             }
-            // col.n == 1
-            int j = col.firstNonNullIndex();
-            if (j < 0) throw new IllegalStateException("WTF? Should have at least one non-null element");
-
-            if (depth == 1) return; /* cannot do anything, there's still one element left  */
-            int shift = BITS * (depth - 1);
-            i0 += i << shift;
-            j0 += j << shift;
-            this.root = (Node) col.getOrNull(j);
-            this.depth--;
         }
+        n.agg = a = new Agg(aggEpoch, count, value);
+        return a;
     }
 
-    public void clear() {
-        this.cache = null;
-        this.cachei0 = -1;
-        this.depth = 0;
-        this.root = null;
+    @Override
+    public boolean queryWhile(int i0, int j0, int i1, int j1, QueryWhileFun<T> cb) {
+        if (root == null) return true;
+        if (i1 < i0 || j1 < j0) return true;
+        long range = (1L << (BITS * depth)) - 1;
+        long ai0 = Math.max((long) i0 - this.i0, 0);
+        long aj0 = Math.max((long) j0 - this.j0, 0);
+        long ai1 = Math.min((long) i1 - this.i0, range);
+        long aj1 = Math.min((long) j1 - this.j0, range);
+        if (ai0 > ai1 || aj0 > aj1) return true;
+        return queryWhileRec(root, (int) ai0, (int) aj0, (int) ai1, (int) aj1, this.depth, true, cb);
     }
 
     /**
-     * Note: assumes that there is a null at the end of the path!
-     * otherwise will throw cast exception
+     * Same traversal as {@link #queryRec}, unwinds as soon as the callback returns false
      *
-     * @param i (unshifted) target index
-     * @param j (unshifted) target index
-     * @return
+     * @return false if the traversal was stopped
      */
-    private boolean clearNodes(int i, int j) {
-        int shift = 32 - depth * BITS;
-        if (clearNodesRec(root, (i - i0) << shift, (j - j0) << shift)) {
-            this.cache = null;
-            this.cachei0 = -1;
+    @SuppressWarnings("unchecked")
+    private boolean queryWhileRec(Object o, int i0, int j0, int i1, int j1, int d, boolean col, QueryWhileFun<T> cb) {
+        if (d == 1 && col && o instanceof Tile) {
+            return queryTileWhile((Tile) o, i0, j0, i1, j1, cb);
+        }
+        Node n = (Node) o;
+        int bits = BITS * (d - 1);
+        int s = (i0 >>> bits) & MASK;
+        int e = (i1 >>> bits) & MASK;
+
+        if (d == 1 && !col) {
+            int jBase = this.j0 + (i0 & ~MASK);
+            for (int m = n.bitmap & rangeMask(s, e), x = n.index(s); m != 0; m &= m - 1, x++) {
+                if (!cb.apply(this.i0 + j0, jBase + Integer.numberOfTrailingZeros(m), (T) n.c[x])) return false;
+            }
             return true;
         }
-        return false;
+
+        int mask = (1 << bits) - 1;
+        int start = i0 & ((~MASK) << bits);
+        int nextD = col ? d : d - 1;
+        for (int m = n.bitmap & rangeMask(s, e), x = n.index(s); m != 0; m &= m - 1, x++) {
+            int k = Integer.numberOfTrailingZeros(m);
+            if (!queryWhileRec(n.c[x], j0, k == s ? i0 : start | (k << bits),
+                    j1, k == e ? i1 : start | (k << bits) | mask, nextD, !col, cb)) return false;
+        }
+        return true;
     }
 
-    private boolean clearNodesRec(Node parent, int i, int j) {
-        int idx = (i >>> (32 - BITS)) & MASK;
-        Node child = (Node) parent.getOrNull(idx); // cast won't fail if last el is null
-        if (child != null) {
-            boolean res = clearNodesRec(child, j, i << BITS);
-            if (child.n == 0) {
-                parent.setNull(idx);
-                return true;
+    @SuppressWarnings("unchecked")
+    private boolean queryTileWhile(Tile t, int i0, int j0, int i1, int j1, QueryWhileFun<T> cb) {
+        int mask = (-1 >>> (MASK - (j1 & MASK))) & (-1 << (j0 & MASK));
+        int iBase = this.i0 + (i0 & ~MASK);
+        int jBase = this.j0 + (j0 & ~MASK);
+        for (int i = i0 & MASK; i <= (i1 & MASK); i++) {
+            int bits = t.rows[i] & mask;
+            while (bits != 0) {
+                int j = Integer.numberOfTrailingZeros(bits);
+                if (!cb.apply(iBase + i, jBase + j, (T) t.v[i << BITS | j])) return false;
+                bits &= bits - 1;
             }
-            return res;
         }
-        return false;
+        return true;
     }
 
-    private Node getRowOrNull(int i, int j) {
-        if (!inRange(i, j)) return null;
+    /**
+     * Must ensure that (i, j) is in range (doesn't do checks)
+     * always returns non-null block (column Node or Tile) that contains (i, j)
+     * <p>
+     * this.depth should be ≥ 1
+     */
+    private Object getOrCreateBlock(int i, int j) {
         i -= i0;
         j -= j0;
 
-        if (this.depth > 1 && this.cachei0 != -1 /* is this needed?*/ &&
+        if (this.cachei0 != -1 /* is this needed?*/ &&
                 this.cachei0 >>> BITS == i >>> BITS &&
-                this.cachej0 >>> BITS == j >>> BITS
+                this.cachej0 >>> BITS == j >>> BITS &&
+                this.cache != null &&
+                this.cacheGen == this.gen
         ) {
-            if (this.cache == null) return null;
-            return (Node) this.cache.getOrNull(i & MASK);
+            if (aggEpoch != 0 && aggOf(this.cache) != null) resetAggregates(i, j);
+            return this.cache;
+            // no need to invalidate cache otherwise, as it will be set at the bottom
         }
 
-        this.cachei0 = i >>> BITS << BITS;
-        this.cachej0 = j >>> BITS << BITS;
+        if (blockCache != null) {
+            int bi = i >>> BITS << BITS;
+            int bj = j >>> BITS << BITS;
+            int slot = blockCacheSlot(bi, bj);
+            Object block = blockCache[slot];
+            if (blockCacheKeys[slot << 1] == bi && blockCacheKeys[slot << 1 | 1] == bj && genOf(block) == gen) {
+                if (aggEpoch != 0 && aggOf(block) != null) resetAggregates(i, j);
+                this.cachei0 = bi;
+                this.cachej0 = bj;
+                this.cache = block;
+                this.cacheGen = gen;
+                return block;
+            }
+        }
 
         int d = this.depth;
         int bits = BITS * (d - 1);
 
-        Node el;
+        if (root.gen != gen) root = root.copy(gen);
+        Object el;
         for (el = root; d > 1; --d) {
-            el = (Node) el.getOrNull((i >>> bits) & MASK);
-            if (el == null) {
-                this.cache = null;
-                return null;
-            }
-
-            el = (Node) el.getOrNull((j >>> bits) & MASK);
-            if (el == null) {
-                this.cache = null;
-                return null;
-            }
+            if (aggEpoch != 0) ((Node) el).agg = null;
+            Node row = (Node) ((Node) el).getOrCreateOwnChild((i >>> bits) & MASK, gen, pool);
+            el = row.getOrCreateOwnChild((j >>> bits) & MASK, gen, pool);
             bits -= BITS;
         }
+        if (aggEpoch != 0) resetAgg(el);
 
+        this.cachei0 = i >>> BITS << BITS;
+        this.cachej0 = j >>> BITS << BITS;
         this.cache = el;
-        if (el == null) return null;
-        el = (Node) el.getOrNull(i & MASK);
+        this.cacheGen = gen;
+        putBlockCache(this.cachei0, this.cachej0, el);
+
         return el;
     }
 
-    @Override
-    @SuppressWarnings("unchecked")
-    public T get(int i, int j) {
-        Node row = getRowOrNull(i, j);
-        if (row == null) return null;
-        return (T) row.getOrNull(j & MASK);
+    /**
+     * Slot of the block in {@link #blockCache}: 3x3 blocks around any block map to distinct slots
+     * (when there are at least 16 of them), as well as the consecutive blocks of the same row or column
+     *
+     * @param bi adjusted start of the block
+     * @param bj adjusted start of the block
+     */
+    private int blockCacheSlot(int bi, int bj) {
+        return ((bi >>> BITS) * 3 + (bj >>> BITS)) & (blockCache.length - 1);
     }
 
-    @Override
-    public void query(int i0, int j0, int i1, int j1, QueryFun<T> cb) {
-        if (root == null) return;
-        if (i1 < i0 || j1 < j0) return;
-        int range = (1 << (BITS * depth)) - 1;
-        queryRec(root,
-                Math.max(i0 - this.i0, 0),
-                Math.max(j0 - this.j0, 0),
-                Math.min(i1 - this.i0, range),
-                Math.min(j1 - this.j0, range),
-                this.depth, true, cb);
+    private void putBlockCache(int bi, int bj, Object block) {
+        if (blockCache == null) return;
+        int slot = blockCacheSlot(bi, bj);
+        blockCacheKeys[slot << 1] = bi;
+        blockCacheKeys[slot << 1 | 1] = bj;
+        blockCache[slot] = block;
     }
 
-    @SuppressWarnings("unchecked")
-    private void queryRec(Node n, int i0, int j0, int i1, int j1, int d, boolean col, QueryFun<T> cb) {
-        if (d == 1 && !col) {
-            if (n.n <= 2) {
-                if (n.n == 0) return;
-                int k1 = n.keys & MASK;
-                if (k1 > (i1 & MASK)) return;
-                if (k1 >= (i0 & MASK)) cb.apply(this.i0 + j0, this.j0 + ((i0 & (~MASK)) | k1), (T) n.c[0]);
-                if (n.n == 2) {
-                    int k2 = (n.keys >>> BITS) & MASK;
-                    if (k2 <= (i1 & MASK) && k2 >= (i0 & MASK))
-                        cb.apply(this.i0 + j0, this.j0 + ((i0 & (~MASK)) | k2), (T) n.c[1]);
-                }
-            } else {
-                for (int i = i0 & MASK; i <= (i1 & MASK); i++) {
-                    Object el = n.getOrNull(i);
-                    if (el != null) cb.apply(
-                            this.i0 + j0, this.j0 + ((i0 & (~MASK)) | i), (T) el);
-                }
-            }
-        } else {
-            int bits = BITS * (d - 1);
-            int s = (i0 >>> bits) & MASK;
-            int e = (i1 >>> bits) & MASK;
-            int nextD = col ? d : d - 1;
-
-            if (s == e) {
-                Node el = (Node) n.getOrNull(s);
-                if (el == null) return;
-                queryRec(el, j0, i0, j1, i1, nextD, !col, cb);
-            } else {
-                int mask = (1 << bits) - 1;
-                int start = i0 & ((~MASK) << bits);
-
-                if (n.n <= 2) {
-                    if (n.n == 0) return;
-                    int[] keys;
-                    if (n.n == 1) keys = new int[]{n.keys};
-                    else keys = new int[]{n.keys & MASK, n.keys >>> BITS & MASK};
-
-                    for (int i = 0; i < keys.length; i++) {
-                        int k = keys[i];
-                        if (k == s) queryRec((Node) n.c[i], j0, i0, j1, i0 | mask, nextD, !col, cb);
-                        else if (k == e) queryRec((Node) n.c[i], j0, start | (e << bits), j1, i1, nextD, !col, cb);
-                        else if (k > s && k < e) {
-                            int j = start | (k << bits);
-                            queryRec((Node) n.c[i], j0, j, j1, j | mask, nextD, !col, cb);
-                        }
-                    }
-                } else {
-                    Node el = (Node) n.getOrNull(s);
-                    if (el != null) {
-                        queryRec(el, j0, i0, j1, i0 | mask, nextD, !col, cb);
-                    }
-
-                    for (int i = s + 1; i < e; i++) {
-                        el = (Node) n.getOrNull(i);
-                        if (el == null) continue;
-                        int j = start | (i << bits);
-                        queryRec(el, j0, j, j1, j | mask, nextD, !col, cb);
-                    }
+    /**
+     * Must be called when any cached block is detached or when the shift (i0, j0) changes
+     */
+    private void invalidateCache() {
+        this.cache = null;
+        this.cachei0 = -1;
+        if (blockCache != null) {
+            Arrays.fill(blockCache, null);
+            Arrays.fill(blockCacheKeys, -1);
+        }
+    }
 
-                    el = (Node) n.getOrNull(e);
-                    if (el != null) {
-                        queryRec(el, j0, start | (e << bits), j1, i1, nextD, !col, cb);
-                    }
-                }
-            }
+    /**
+     * Resets cached aggregates of the column nodes on the path to the existing block, see {@link #aggEpoch}
+     *
+     * @param i adjusted index
+     * @param j adjusted index
+     */
+    private void resetAggregates(int i, int j) {
+        int bits = BITS * (this.depth - 1);
+        Object el = root;
+        for (int d = this.depth; d > 1; --d) {
+            ((Node) el).agg = null;
+            el = ((Node) ((Node) el).getOrNull((i >>> bits) & MASK)).getOrNull((j >>> bits) & MASK);
+            bits -= BITS;
         }
+        resetAgg(el);
     }
 
     /**
-     * Must ensure that whole path exists (doesn't do checks)
-     * always returns non-null row value  (or fails)
+     * Must ensure that (i, j) is in range (doesn't do checks)
+     * always returns non-null node at the level above skipLevels (or fails)
      * <p>
-     * WARNING: skipLevels should be smaller than this.depth
+     * WARNING: skipLevels should be ≥ 1 and smaller than this.depth
      * <p>
-     * WARNING: be careful, if skipLevels != 0, cache might become invalid,
+     * WARNING: be careful, cache might become invalid,
      * but won't be invalidated automatically
-     * <p>
-     * this.depth should be ≥ 1
      */
-    private Node getOrCreateRow(int i, int j, int skipLevels) {
+    private Node getOrCreateNode(int i, int j, int skipLevels) {
         i -= i0;
         j -= j0;
 
-        if (skipLevels == 0 && this.cachei0 != -1 /* is this needed?*/ &&
-                this.cachei0 >>> BITS == i >>> BITS &&
-                this.cachej0 >>> BITS == j >>> BITS
-        ) {
-            if (this.cache != null) return this.cache.getOrCreateChildNode(i & MASK);
-            // no need to invalidate cache here, as it will be set at the bottom
-        }
-
         int d = this.depth;
         int bits = BITS * (d - 1);
 
         Node el;
         skipLevels++;
         for (el = root; d > skipLevels; --d) {
-            Node row = el.getOrCreateChildNode((i >>> bits) & MASK);
-            el = row.getOrCreateChildNode((j >>> bits) & MASK);
+            Node row = el.getOrCreateChildNode((i >>> bits) & MASK, pool);
+            el = row.getOrCreateChildNode((j >>> bits) & MASK, pool);
             bits -= BITS;
         }
 
-        if (skipLevels == 1) {
-            this.cachei0 = i >>> BITS << BITS;
-            this.cachej0 = j >>> BITS << BITS;
-            this.cache = el;
-        }
-
-        return el.getOrCreateChildNode((i >>> bits) & MASK);
+        return el.getOrCreateChildNode((i >>> bits) & MASK, pool);
     }
 
     /*
@@ -466,31 +2444,30 @@ public class Grid<T> implements GridReadOnlyView<T> {
 
     //      -2        -1       0         1
     // [-64 -32-1][-32  -1] [0..32-1] [32..64-1]
-    private static int index(int i) {
+    static int index(int i) {
         if (i >= 0) return i >>> BITS;
         else return -((-i - 1) >>> BITS) - 1;
     }
 
-    private static int startOfTheRange(int index) {
+    static int startOfTheRange(int index) {
         if (index >= 0) return index << BITS;
         else return -((-index) << BITS);
     }
 
     private void ensureBoundaries(int i, int j) {
         if (root == null) {
-            root = new Node();
+            root = Node.create(gen, pool);
             i0 = startOfTheRange(index(i));
             j0 = startOfTheRange(index(j));
-            cachei0 = -1;  // reset cache
-            cache = null;
+            invalidateCache();
             depth = 1;
         } else if (!inRange(i, j)) {
             /* need to expand */
 
-            Shift iShift = findNewShift(i, i0, depth, depth + 1);
-            Shift jShift = findNewShift(j, j0, depth, iShift.d);
-            if (jShift.d > iShift.d) {
-                iShift = findNewShift(i, i0, depth, jShift.d);
+            long iShift = findNewShift(i, i0, depth, depth + 1);
+            long jShift = findNewShift(j, j0, depth, shiftDepth(iShift));
+            if (shiftDepth(jShift) > shiftDepth(iShift)) {
+                iShift = findNewShift(i, i0, depth, shiftDepth(jShift));
             }
 
             int oldI0 = i0;
@@ -498,16 +2475,15 @@ public class Grid<T> implements GridReadOnlyView<T> {
             int oldDepth = depth;
             Node oldRoot = root;
 
-            root = new Node();
-            i0 = iShift.i;
-            j0 = jShift.i;
+            root = Node.create(gen, pool);
+            i0 = shiftI0(iShift);
+            j0 = shiftI0(jShift);
 
-            depth = Math.max(iShift.d, jShift.d);
+            depth = Math.max(shiftDepth(iShift), shiftDepth(jShift));
 
-            cachei0 = -1; // reset cache
-            cache = null;
+            invalidateCache();
 
-            Node row = getOrCreateRow(oldI0, oldJ0, oldDepth);
+            Node row = getOrCreateNode(oldI0, oldJ0, oldDepth);
             row.setNotNull((((oldJ0 - j0) >>> ((oldDepth) * BITS)) & MASK), oldRoot);
         }
     }
@@ -516,11 +2492,99 @@ public class Grid<T> implements GridReadOnlyView<T> {
         return i >= i0 && j >= j0 && ((i - i0) >>> (depth * BITS) == 0) && ((j - j0) >>> (depth * BITS) == 0);
     }
 
+    /**
+     * Enables or disables the change journal (disabled by default).
+     * <p>
+     * When enabled, coordinates changed by {@link #set}, {@link #setBlock}, {@link #clearRegion}
+     * and {@link #clear} are recorded (one dirty bit per element, stored in the same kind of 32x32 hierarchy
+     * as the grid itself), see {@link #drainChanges} and {@link #dirtyRegions}.
+     * Removal of the absent element is not a change, setting the same value is.
+     * Disabling the tracking discards recorded changes.
+     */
+    public void setChangeTracking(boolean enabled) {
+        if (!enabled) journal = null;
+        else if (journal == null) journal = new ChangeJournal();
+    }
+
+    public boolean isChangeTracking() {
+        return journal != null;
+    }
+
+    /**
+     * Enables or disables the pooling of the nodes (disabled by default).
+     * <p>
+     * When enabled, nodes that become empty on {@link #set} (and the arrays of the children
+     * that are replaced when the node grows or shrinks) are kept in the pool of this grid
+     * and reused by the subsequent writes, so the steady churn (e.g. the moving window:
+     * elements are added at one edge and removed at the other) doesn't allocate.
+     * Nodes shared with the snapshots are not pooled, dense tiles are not pooled.
+     * <p>
+     * Nodes that are reachable from the views are treated as shared as well: while the pooling is enabled,
+     * {@link #createReadOnlyView()} works like {@link #snapshot()} (the view doesn't see the subsequent writes),
+     * and enabling the pooling detaches the previously created views the same way.
+     * Disabling the pooling releases the pool.
+     */
+    public void setNodePooling(boolean enabled) {
+        if (!enabled) pool = null;
+        else if (pool == null) {
+            pool = new NodePool();
+            gen++; /* existing nodes may be reachable from the views */
+        }
+    }
+
+    public boolean isNodePooling() {
+        return pool != null;
+    }
+
+    /**
+     * Calls {@code cb} for every coordinate changed since the last drain with its current value
+     * ({@code null} if the element was removed), every coordinate is reported once.
+     * Changes made by the callback itself are recorded for the next drain.
+     */
+    public void drainChanges(QueryFun<T> cb) {
+        if (journal != null) journal.drain(this, cb);
+    }
+
+    /**
+     * AABBs that cover all the changes since the last {@link #drainChanges}:
+     * changed 32x32 blocks (aligned to the multiples of 32) coalesced into non-overlapping rectangles.
+     */
+    public void dirtyRegions(RegionFun cb) {
+        if (journal != null) journal.regions(cb);
+    }
+
+    /**
+     * Enables caching of the count and aggregate of every subtree, so {@link #count} and {@link #aggregate}
+     * take O(log) (number of the nodes on the region boundary) instead of visiting every element of the region.
+     * <p>
+     * Aggregates are computed on the first query and invalidated lazily: a write resets the cached aggregates
+     * on the path to the changed block (only the first write to the block after the query pays for it).
+     * Snapshots inherit the aggregator, {@link #createReadOnlyView()} doesn't.
+     * Replaces the previously enabled aggregator.
+     *
+     * @param aggregator aggregator of the values, or null to cache the counts only
+     */
+    public void enableAggregates(Aggregator<? super T, ?> aggregator) {
+        int epoch;
+        do epoch = AGG_EPOCHS.incrementAndGet(); while (epoch == 0);
+        this.aggEpoch = epoch;
+        this.aggregator = aggregator;
+    }
+
+    public void disableAggregates() {
+        this.aggEpoch = 0;
+        this.aggregator = null;
+    }
+
+    private int blockCacheSize() {
+        return blockCache == null ? 1 : blockCache.length;
+    }
+
     public GridReadOnlyView<T> createReadOnlyView() {
         // essentially a shallow copy
         // rationale: other thread will change the cache calling 'get'
 
-        Grid<T> g = new Grid<T>();
+        Grid<T> g = new Grid<T>(denseTiles, blockCacheSize());
         g.root = this.root;
         g.cache = this.cache;
         g.i0 = this.i0;
@@ -528,6 +2592,33 @@ public class Grid<T> implements GridReadOnlyView<T> {
         g.depth = this.depth;
         g.cachei0 = this.cachei0;
         g.cachej0 = this.cachej0;
+        g.cacheGen = this.cacheGen;
+        g.gen = this.gen;
+        /* the view shares the nodes, they must not be recycled, see #setNodePooling */
+        if (pool != null) this.gen++;
+        return g;
+    }
+
+    /**
+     * Immutable view of the current state of the grid, O(1).
+     * <p>
+     * Unlike {@link #createReadOnlyView()}, the view is not affected by the subsequent writes to this grid:
+     * nodes are shared with the view until the first write to them, which copies the node and the path to it
+     * (copy-on-write, tracked by the generation stamp of the node).
+     * The view can be used from another thread, but, like the grid itself, it's not safe to share
+     * a single view between multiple threads (as it has its own cache).
+     */
+    public GridReadOnlyView<T> snapshot() {
+        Grid<T> g = new Grid<T>(denseTiles, blockCacheSize());
+        g.root = this.root;
+        g.i0 = this.i0;
+        g.j0 = this.j0;
+        g.depth = this.depth;
+        g.gen = this.gen;
+        g.aggEpoch = this.aggEpoch;
+        g.aggregator = this.aggregator;
+
+        this.gen++;
         return g;
     }
 
@@ -538,9 +2629,9 @@ public class Grid<T> implements GridReadOnlyView<T> {
      * @param i0         current shift
      * @param curDepth   current depth (use to calculate correct shift)
      * @param startDepth start to search for new range from this depth
-     * @return Shift
+     * @return new depth and shift packed in long (no allocation), see {@link #shiftDepth} and {@link #shiftI0}
      */
-    static Shift findNewShift(int i, int i0, int curDepth, int startDepth) {
+    static long findNewShift(int i, int i0, int curDepth, int startDepth) {
         int min, max;
         int depthXbits = curDepth * BITS;
         if (i0 <= i) {
@@ -563,17 +2654,32 @@ public class Grid<T> implements GridReadOnlyView<T> {
         /* truncate to make a multiple of  (1 << depth) */
         int newI0 = ((mid - newRange / 2 - i0) >> depthXbits << depthXbits) + i0; // account for negatives
         while (newI0 + newRange <= max) newI0 += (1 << depthXbits);
-        return new Shift(newDepth, newI0);
+        return (long) newDepth << 32 | (newI0 & 0xFFFFFFFFL);
     }
 
-    static class Shift {
-        final int d;
-        final int i;
+    static int shiftDepth(long shift) {
+        return (int) (shift >>> 32);
+    }
 
-        public Shift(int d, int i) {
-            this.d = d;
-            this.i = i;
-        }
+    static int shiftI0(long shift) {
+        return (int) shift;
+    }
+
+    /**
+     * Callback interface for {@link #dirtyRegions(RegionFun)}, region is {@code [i0, i1] x [j0, j1]}
+     */
+    @FunctionalInterface
+    public interface RegionFun {
+        void apply(int i0, int j0, int i1, int j1);
+    }
+
+    /**
+     * Value supplier for {@link #setBlock(int, int, int, int, BlockFun)}
+     * @param <T> value type
+     */
+    @FunctionalInterface
+    public interface BlockFun<T> {
+        T get(int i, int j);
     }
 
     /**
@@ -584,4 +2690,28 @@ public class Grid<T> implements GridReadOnlyView<T> {
     public interface QueryFun<T> {
         void apply(int i, int j, T v);
     }
+
+    /**
+     * Kernel for {@link #forEachWithNeighbors}
+     * @param <T> value type
+     */
+    @FunctionalInterface
+    public interface NeighborsFun<T> {
+        /**
+         * @param neighbors neighborhood of (i, j), valid only during the call
+         */
+        void apply(int i, int j, T v, Neighborhood<T> neighbors);
+    }
+
+    /**
+     * Callback interface for short-circuiting AABB query
+     * @param <T> value type
+     */
+    @FunctionalInterface
+    public interface QueryWhileFun<T> {
+        /**
+         * @return true to continue the query, false to stop it
+         */
+        boolean apply(int i, int j, T v);
+    }
 }
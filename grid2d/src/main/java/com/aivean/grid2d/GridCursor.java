@@ -0,0 +1,39 @@
+package com.aivean.grid2d;
+
+/**
+ * Pull-based iterator over the elements of AABB region,
+ * see {@link GridReadOnlyView#cursor(int, int, int, int)}.
+ * <p>
+ * Usage:
+ * <pre>
+ * GridCursor&lt;T&gt; c = grid.cursor(i0, j0, i1, j1);
+ * while (c.next()) {
+ *     process(c.i(), c.j(), c.value());
+ * }
+ * </pre>
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public interface GridCursor<T> {
+    /**
+     * Advances to the next element
+     *
+     * @return false if there are no more elements
+     */
+    boolean next();
+
+    /**
+     * @return i of the current element
+     */
+    int i();
+
+    /**
+     * @return j of the current element
+     */
+    int j();
+
+    /**
+     * @return current element, never null
+     */
+    T value();
+}
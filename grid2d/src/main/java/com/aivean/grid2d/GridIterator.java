@@ -0,0 +1,262 @@
+package com.aivean.grid2d;
+
+import java.util.function.Consumer;
+
+import static com.aivean.grid2d.Grid.BITS;
+import static com.aivean.grid2d.Grid.MASK;
+
+/**
+ * Non-recursive version of the {@link Grid} AABB query traversal,
+ * implements both {@link GridCursor} and {@link GridSpliterator}.
+ * <p>
+ * Levels of the hierarchy are numbered from the root: level 0 is the root (indexes i),
+ * level 1 indexes j, ..., level {@code 2 * depth - 2} is the lowest block (column Node or Tile),
+ * {@code 2 * depth - 1} are rows.
+ * Upper levels (above the block) are kept on the explicit stack of frames, one frame per level,
+ * the block is traversed row by row using occupancy bitmasks.
+ * <p>
+ * Doesn't use the grid's cache, so it's safe to use from other threads as long as the grid is not modified.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+final class GridIterator<T> implements GridCursor<T>, GridSpliterator<T> {
+    private final int depth;
+    /* grid shifts */
+    private final int gi0;
+    private final int gj0;
+
+    /* frames, indexed by level; range of the dimension indexed by the node and of the other dimension */
+    private final Object[] nodes;
+    private final int[] k;
+    private final int[] e;
+    private final int[] ownLo;
+    private final int[] ownHi;
+    private final int[] otherLo;
+    private final int[] otherHi;
+    /* active frames are [bottom, top] */
+    private int bottom;
+    private int top;
+
+    /* current block (null if none) and position inside of it */
+    private Object block;
+    private int blockI;
+    private int blockJ;
+    private int r;
+    private int rEnd;
+    private int jMask;
+    private int bits;
+    private Grid.Node row;
+
+    /* current element */
+    private int ci;
+    private int cj;
+    private Object cv;
+
+    /**
+     * @param root          grid's root, nullable
+     * @param ai0..aj1      region in the adjusted (shifted) coordinates, already clipped to the grid range
+     */
+    GridIterator(Grid.Node root, int depth, int gi0, int gj0, int ai0, int aj0, int ai1, int aj1) {
+        this.depth = depth;
+        this.gi0 = gi0;
+        this.gj0 = gj0;
+        int levels = Math.max(2 * depth - 2, 1);
+        nodes = new Object[levels];
+        k = new int[levels];
+        e = new int[levels];
+        ownLo = new int[levels];
+        ownHi = new int[levels];
+        otherLo = new int[levels];
+        otherHi = new int[levels];
+        bottom = 0;
+        top = -1;
+
+        if (root == null) return;
+        if (depth == 1) enterBlock(root, ai0, ai1, aj0, aj1);
+        else push(0, root, ai0, ai1, aj0, aj1);
+    }
+
+    /**
+     * Split constructor, takes children [from, frame's e] of the frame on the given level
+     */
+    private GridIterator(GridIterator<T> it, int level, int from) {
+        this(null, it.depth, it.gi0, it.gj0, 0, 0, 0, 0);
+        nodes[level] = it.nodes[level];
+        k[level] = from;
+        e[level] = it.e[level];
+        ownLo[level] = it.ownLo[level];
+        ownHi[level] = it.ownHi[level];
+        otherLo[level] = it.otherLo[level];
+        otherHi[level] = it.otherHi[level];
+        bottom = level;
+        top = level;
+    }
+
+    private void push(int level, Object node, int lo, int hi, int oLo, int oHi) {
+        int bits = BITS * (depth - 1 - level / 2);
+        nodes[level] = node;
+        ownLo[level] = lo;
+        ownHi[level] = hi;
+        otherLo[level] = oLo;
+        otherHi[level] = oHi;
+        k[level] = (lo >>> bits) & MASK;
+        e[level] = (hi >>> bits) & MASK;
+        top = level;
+    }
+
+    private void enterBlock(Object block, int iLo, int iHi, int jLo, int jHi) {
+        this.block = block;
+        this.blockI = iLo & ~MASK;
+        this.blockJ = jLo & ~MASK;
+        this.r = (iLo & MASK) - 1;
+        this.rEnd = iHi & MASK;
+        this.jMask = (-1 >>> (MASK - (jHi & MASK))) & (-1 << (jLo & MASK));
+        this.bits = 0;
+    }
+
+    /**
+     * @return false if there are no more blocks
+     */
+    private boolean nextBlock() {
+        int blockLevel = 2 * depth - 2;
+        while (top >= bottom) {
+            int level = top;
+            if (k[level] > e[level]) {
+                top--;
+                continue;
+            }
+            int idx = k[level]++;
+            Object child = ((Grid.Node) nodes[level]).getOrNull(idx);
+            if (child == null) continue;
+
+            int bits = BITS * (depth - 1 - level / 2);
+            int lo = ownLo[level];
+            int hi = ownHi[level];
+            int start = lo & ((~MASK) << bits);
+            int childLo = idx == ((lo >>> bits) & MASK) ? lo : start | (idx << bits);
+            int childHi = idx == ((hi >>> bits) & MASK) ? hi : start | (idx << bits) | ((1 << bits) - 1);
+
+            if (level + 1 == blockLevel) {
+                enterBlock(child, otherLo[level], otherHi[level], childLo, childHi);
+                return true;
+            }
+            push(level + 1, child, otherLo[level], otherHi[level], childLo, childHi);
+        }
+        return false;
+    }
+
+    /**
+     * @return false if the current block has no more elements
+     */
+    private boolean nextInBlock() {
+        while (true) {
+            if (bits != 0) {
+                int j = Integer.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                ci = gi0 + blockI + r;
+                cj = gj0 + blockJ + j;
+                cv = row == null ? ((Grid.Tile) block).get(r, j) : row.getOrNull(j);
+                return true;
+            }
+            if (++r > rEnd) {
+                block = null;
+                row = null;
+                return false;
+            }
+            if (block instanceof Grid.Tile) {
+                bits = ((Grid.Tile) block).rows[r] & jMask;
+            } else {
+                row = (Grid.Node) ((Grid.Node) block).getOrNull(r);
+                bits = row == null ? 0 : row.mask() & jMask;
+            }
+        }
+    }
+
+    @Override
+    public boolean next() {
+        while (true) {
+            if (block != null && nextInBlock()) return true;
+            if (!nextBlock()) return false;
+        }
+    }
+
+    @Override
+    public int i() {
+        return ci;
+    }
+
+    @Override
+    public int j() {
+        return cj;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T value() {
+        return (T) cv;
+    }
+
+    @Override
+    public boolean tryAdvance(Grid.QueryFun<? super T> action) {
+        if (!next()) return false;
+        action.apply(ci, cj, value());
+        return true;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (!next()) return false;
+        action.accept(value());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Grid.QueryFun<? super T> action) {
+        while (next()) action.apply(ci, cj, value());
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        while (next()) action.accept(value());
+    }
+
+    /**
+     * Gives away the upper half of the remaining children of the frame closest to the root
+     */
+    @Override
+    public GridSpliterator<T> trySplit() {
+        for (int level = bottom; level <= top; level++) {
+            int rem = e[level] - k[level] + 1;
+            boolean busy = level < top || block != null;
+            if (rem >= 2 || (rem == 1 && busy)) {
+                int from = k[level] + rem / 2;
+                GridIterator<T> res = new GridIterator<>(this, level, from);
+                e[level] = from - 1;
+                return res;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Assumes that children of the remaining subtrees have about the same number of children
+     * as the nodes on the current path
+     */
+    @Override
+    public long estimateSize() {
+        double res = block == null ? 0 : Integer.bitCount(bits) + (double) (rEnd - r) * Integer.bitCount(jMask);
+        for (int level = bottom; level <= top; level++) {
+            int rem = e[level] - k[level] + 1;
+            if (rem <= 0) continue;
+            int fan = Math.max(((Grid.Node) nodes[level]).n, 1);
+            double area = ((double) ownHi[level] - ownLo[level] + 1) * ((double) otherHi[level] - otherLo[level] + 1);
+            res += Math.min(rem * Math.pow(fan, 2 * depth - 1 - level), area);
+        }
+        return res >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) res;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL;
+    }
+}
@@ -1,5 +1,9 @@
 package com.aivean.grid2d;
 
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
 /**
  * Read only view that allows safe read access from other threads
  *
@@ -30,4 +34,121 @@ public interface GridReadOnlyView<T> {
      *           NOTE: order in which indices are traversed is not specified
      */
     void query(int i0, int j0, int i1, int j1, Grid.QueryFun<T> cb);
+
+    /**
+     * Same as {@link #query(int, int, int, int, Grid.QueryFun)}, but the elements are visited in the given order.
+     * The result is not buffered: row-major and column-major traversals keep only the subtrees
+     * that intersect the current row (column) of the region.
+     */
+    void query(int i0, int j0, int i1, int j1, TraversalOrder order, Grid.QueryFun<T> cb);
+
+    /**
+     * Short-circuiting AABB query.
+     * Same as {@link #query(int, int, int, int, Grid.QueryFun)}, but the traversal is stopped
+     * as soon as the callback returns false, so only the subtrees up to the first hit are visited.
+     * <p>
+     * E.g. to check whether the region contains any element:
+     * {@code !grid.queryWhile(i0, j0, i1, j1, (i, j, v) -> false)}
+     *
+     * @param cb callback function, returns true to continue the query, false to stop it
+     * @return false if the query was stopped by the callback, true if all elements in range were visited
+     */
+    boolean queryWhile(int i0, int j0, int i1, int j1, Grid.QueryWhileFun<T> cb);
+
+    /**
+     * Calls the callback for every non-empty neighbor of (i, j), i.e. every element such as:
+     * {@code |i' - i| ≤ radius, |j' - j| ≤ radius, (i', j') ≠ (i, j)}.
+     * For {@code radius ≤ 32} the blocks that contain the neighborhood are resolved once and their rows are read
+     * directly, instead of the lookup per neighbor; larger neighborhoods are queried as the region.
+     *
+     * @param radius Chebyshev distance, 1 for the 8 nearest neighbors
+     */
+    void neighbors(int i, int j, int radius, Grid.QueryFun<T> cb);
+
+    /**
+     * Calls the callback for every element within the Euclidean distance r from (i, j), i.e. every element such as:
+     * {@code (i' - i)² + (j' - j)² ≤ r²}. Subtrees that don't intersect the circle are skipped.
+     * <p>
+     * NOTE: order in which indices are traversed is not specified
+     */
+    void withinRadius(int i, int j, int r, Grid.QueryFun<T> cb);
+
+    /**
+     * k nearest to (i, j) elements (by Euclidean distance) that are accepted by the filter,
+     * the callback is called in the order of increasing distance, (i, j) itself is included if present.
+     * <p>
+     * Best-first traversal: subtrees are visited in the order of the distance to their bounds,
+     * subtrees that cannot contain a closer element than the k found ones are pruned.
+     *
+     * @param filter null to accept any element
+     */
+    void nearest(int i, int j, int k, Predicate<? super T> filter, Grid.QueryFun<T> cb);
+
+    /**
+     * Stencil pass over the AABB region (e.g. the step of the cellular automaton):
+     * kernel is called for every element of the region with its {@link Neighborhood}.
+     * Neighborhoods are served from the window of the current 32x32 block together with its margin.
+     * The window of the dense block is filled once, in the sparse blocks (fewer than
+     * {@code (32 + 2 * radius) / (2 * radius + 1)} elements) only the neighborhood of every element is filled,
+     * so the cost per element is at most {@code O((32 + 2 * radius) * (2 * radius + 1))}.
+     * <p>
+     * NOTE: order in which indices are traversed is not specified,
+     * the grid must not be modified by the kernel (write the results to another grid)
+     *
+     * @param radius Chebyshev radius of the neighborhood, the window has {@code (32 + 2 * radius)²} elements
+     */
+    void forEachWithNeighbors(int i0, int j0, int i1, int j1, int radius, Grid.NeighborsFun<T> kernel);
+
+    /**
+     * Number of elements in the AABB region.
+     * Subtrees that lie fully inside the region are counted in O(1) when the aggregates are enabled
+     * (see {@link Grid#enableAggregates(Aggregator)}), otherwise all elements of the region are visited.
+     */
+    long count(int i0, int j0, int i1, int j1);
+
+    /**
+     * Aggregate of the values in the AABB region, see {@link #count(int, int, int, int)}.
+     * Cached aggregates of the subtrees are used only when {@code aggregator} is the one
+     * passed to {@link Grid#enableAggregates(Aggregator)}.
+     *
+     * @return aggregate or null if the region is empty
+     */
+    <A> A aggregate(int i0, int j0, int i1, int j1, Aggregator<? super T, A> aggregator);
+
+    /**
+     * Same as {@link #query(int, int, int, int, Grid.QueryFun)}, but the traversal is split
+     * into fork/join tasks on the upper levels of the hierarchy.
+     * Tasks are forked into the current {@link java.util.concurrent.ForkJoinPool}
+     * (or the common pool when called outside of one), the method returns when all elements are visited.
+     * <p>
+     * NOTE: callback is called concurrently from multiple threads and must be thread safe,
+     * the grid must not be modified during the query
+     */
+    void parallelQuery(int i0, int j0, int i1, int j1, Grid.QueryFun<T> cb);
+
+    /**
+     * Pull-based AABB query, elements of the region are traversed by calling {@link GridCursor#next()}.
+     * Unlike {@link #query(int, int, int, int, Grid.QueryFun)}, traversal can be stopped at any point
+     * and interleaved with other code.
+     * <p>
+     * NOTE: order in which indices are traversed is not specified,
+     * the grid must not be modified while the cursor is in use
+     */
+    GridCursor<T> cursor(int i0, int j0, int i1, int j1);
+
+    /**
+     * Spliterator over the elements of AABB region, splits by the subtrees of the hierarchy.
+     * <p>
+     * NOTE: the grid must not be modified while the spliterator is in use
+     */
+    GridSpliterator<T> spliterator(int i0, int j0, int i1, int j1);
+
+    /**
+     * Stream of the values of AABB region, see {@link #spliterator(int, int, int, int)}
+     *
+     * @param parallel whether the returned stream is parallel
+     */
+    default Stream<T> stream(int i0, int j0, int i1, int j1, boolean parallel) {
+        return StreamSupport.stream(spliterator(i0, j0, i1, j1), parallel);
+    }
 }
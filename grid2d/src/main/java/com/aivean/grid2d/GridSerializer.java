@@ -0,0 +1,291 @@
+package com.aivean.grid2d;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static com.aivean.grid2d.Grid.SIZE;
+
+/**
+ * Binary serialization of the {@link Grid} and {@link IntGrid} hierarchy.
+ * <p>
+ * Nodes are written as is (in the depth-first order), so the loader reconstructs the hierarchy
+ * in a single linear pass, without per-element {@code set}s and boundary expansions.
+ * All numbers are big-endian. Header:
+ * <pre>
+ * int magic, int format, int i0, int j0, int depth
+ * </pre>
+ * {@link Grid} format ({@link #write(Grid, DataOutput, ValueCodec)}), every node (including the row):
+ * <pre>
+ * int mask                       bitmask of the present children (values for the row)
+ * children / values              in the ascending order of their indices, values are written by {@link ValueCodec}
+ * </pre>
+ * {@link IntGrid} format ({@link #write(IntGrid, DataOutput)}) has an additional {@code int length}
+ * (total length in bytes) in the header and every non-row node is followed by the offsets of its children,
+ * so it can be read in place from the mapped file, see {@link #mapIntGrid(ByteBuffer)}:
+ * <pre>
+ * int mask
+ * int[bitCount(mask)]            offsets of the children (from the start of the header)
+ * children
+ * </pre>
+ * rows are {@code int mask} followed by {@code bitCount(mask)} int values.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public final class GridSerializer {
+    static final int MAGIC = 0x47324431; /* "G2D1" */
+    static final int FORMAT_GRID = 0;
+    static final int FORMAT_INT_GRID = 1;
+    static final int INT_GRID_HEADER_SIZE = 24;
+
+    private GridSerializer() {
+    }
+
+    public static <T> void write(Grid<T> grid, DataOutput out, ValueCodec<? super T> codec) throws IOException {
+        int depth = grid.getRoot() == null ? 0 : grid.getDepth();
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_GRID);
+        out.writeInt(grid.getI0());
+        out.writeInt(grid.getJ0());
+        out.writeInt(depth);
+        if (depth > 0) writeNode(grid.getRoot(), 0, 2 * depth - 1, out, codec);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void writeNode(Object o, int level, int rowLevel, DataOutput out, ValueCodec<? super T> codec)
+            throws IOException {
+        if (o instanceof Grid.Tile) {
+            Grid.Tile tile = (Grid.Tile) o;
+            int mask = 0;
+            for (int i = 0; i < SIZE; i++) {
+                if (tile.rows[i] != 0) mask |= 1 << i;
+            }
+            out.writeInt(mask);
+            for (int i = 0; i < SIZE; i++) {
+                int bits = tile.rows[i];
+                if (bits == 0) continue;
+                out.writeInt(bits);
+                for (; bits != 0; bits &= bits - 1) {
+                    codec.write(out, (T) tile.get(i, Integer.numberOfTrailingZeros(bits)));
+                }
+            }
+            return;
+        }
+
+        Grid.Node n = (Grid.Node) o;
+        int mask = n.mask();
+        out.writeInt(mask);
+        for (int bits = mask; bits != 0; bits &= bits - 1) {
+            Object el = n.getOrNull(Integer.numberOfTrailingZeros(bits));
+            if (level == rowLevel) codec.write(out, (T) el);
+            else writeNode(el, level + 1, rowLevel, out, codec);
+        }
+    }
+
+    /**
+     * Same as {@link #read(ByteBuffer, ValueCodec, boolean)} without dense tiles
+     */
+    public static <T> Grid<T> read(ByteBuffer in, ValueCodec<? extends T> codec) {
+        return read(in, codec, false);
+    }
+
+    /**
+     * Reads the grid written by {@link #write(Grid, DataOutput, ValueCodec)}
+     * from the current position of the buffer and advances the position past it
+     *
+     * @param denseTiles see {@link Grid#Grid(boolean)}
+     * @throws IllegalArgumentException if the data is not a serialized {@link Grid}
+     */
+    public static <T> Grid<T> read(ByteBuffer in, ValueCodec<? extends T> codec, boolean denseTiles) {
+        ByteBuffer buf = in.slice().order(ByteOrder.BIG_ENDIAN);
+        checkHeader(buf, FORMAT_GRID);
+        int i0 = buf.getInt();
+        int j0 = buf.getInt();
+        int depth = buf.getInt();
+
+        Grid<T> grid = new Grid<>(denseTiles);
+        if (depth > 0) {
+            int tileLevel = denseTiles && depth >= 2 ? 2 * depth - 2 : -1;
+            grid.init((Grid.Node) readNode(buf, 0, 2 * depth - 1, tileLevel, codec), i0, j0, depth);
+        }
+        in.position(in.position() + buf.position());
+        return grid;
+    }
+
+    private static Object readNode(ByteBuffer buf, int level, int rowLevel, int tileLevel, ValueCodec<?> codec) {
+        int mask = buf.getInt();
+        int n = Integer.bitCount(mask);
+        if (n == 0) throw new IllegalArgumentException("Corrupted grid data: empty node at " + (buf.position() - 4));
+
+        Object[] c = new Object[Grid.Node.capacity(n)];
+        for (int x = 0; x < n; x++) {
+            c[x] = readChild(buf, level, rowLevel, tileLevel, codec);
+        }
+        Grid.Node node = new Grid.Node(mask, c, 0);
+
+        if (level == rowLevel - 1) { /* block */
+            for (int x = 0; x < n; x++) node.count += ((Grid.Node) c[x]).n;
+            if (level == tileLevel && node.count >= Grid.TILE_PROMOTE_THRESHOLD) return Grid.Tile.of(node, 0);
+        }
+        return node;
+    }
+
+    private static Object readChild(ByteBuffer buf, int level, int rowLevel, int tileLevel, ValueCodec<?> codec) {
+        if (level < rowLevel) return readNode(buf, level + 1, rowLevel, tileLevel, codec);
+        Object v = codec.read(buf);
+        if (v == null) throw new IllegalArgumentException("Codec returned null at " + buf.position());
+        return v;
+    }
+
+    /**
+     * Writes the grid in the {@link IntGrid} format, see the class description
+     *
+     * @throws IllegalArgumentException if the data doesn't fit into 2 GB (offsets are int)
+     */
+    public static void write(IntGrid grid, DataOutput out) throws IOException {
+        int depth = grid.getRoot() == null ? 0 : grid.getDepth();
+        int rowLevel = 2 * depth - 1;
+        /* sizes of the non-row subtrees, computed once before the offsets are written */
+        Map<Object, Long> sizes = new IdentityHashMap<>();
+        long length = INT_GRID_HEADER_SIZE + (depth > 0 ? intNodeSize(grid.getRoot(), 0, rowLevel, sizes) : 0);
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Grid is too large for the int offsets: " + length + " bytes");
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_INT_GRID);
+        out.writeInt(grid.getI0());
+        out.writeInt(grid.getJ0());
+        out.writeInt(depth);
+        out.writeInt((int) length);
+        if (depth > 0) writeIntNode(grid.getRoot(), INT_GRID_HEADER_SIZE, 0, rowLevel, sizes, out);
+    }
+
+    /**
+     * @param sizes filled with the sizes of the non-row nodes of the subtree
+     * @return size of the subtree in bytes
+     */
+    private static long intNodeSize(Object o, int level, int rowLevel, Map<Object, Long> sizes) {
+        if (level == rowLevel) return intRowSize(o);
+        Grid.Node n = (Grid.Node) o;
+        long res = 4 + 4 * n.n;
+        for (int bits = n.mask(); bits != 0; bits &= bits - 1) {
+            res += intNodeSize(n.getOrNull(Integer.numberOfTrailingZeros(bits)), level + 1, rowLevel, sizes);
+        }
+        sizes.put(n, res);
+        return res;
+    }
+
+    private static int intRowSize(Object row) {
+        return 4 + 4 * Integer.bitCount(((IntGrid.IntRow) row).bits);
+    }
+
+    /**
+     * @param offset offset of this node from the start of the header
+     * @param sizes  sizes of the non-row nodes, see {@link #intNodeSize}
+     */
+    private static void writeIntNode(Object o, int offset, int level, int rowLevel, Map<Object, Long> sizes,
+                                     DataOutput out) throws IOException {
+        if (level == rowLevel) {
+            IntGrid.IntRow row = (IntGrid.IntRow) o;
+            out.writeInt(row.bits);
+            for (int bits = row.bits; bits != 0; bits &= bits - 1) {
+                out.writeInt(row.v[Integer.numberOfTrailingZeros(bits)]);
+            }
+            return;
+        }
+
+        Grid.Node n = (Grid.Node) o;
+        int mask = n.mask();
+        out.writeInt(mask);
+        boolean rows = level + 1 == rowLevel;
+        int childOffset = offset + 4 + 4 * n.n;
+        for (int bits = mask; bits != 0; bits &= bits - 1) {
+            Object el = n.getOrNull(Integer.numberOfTrailingZeros(bits));
+            out.writeInt(childOffset);
+            childOffset += rows ? intRowSize(el) : sizes.get(el);
+        }
+        childOffset = offset + 4 + 4 * n.n;
+        for (int bits = mask; bits != 0; bits &= bits - 1) {
+            Object el = n.getOrNull(Integer.numberOfTrailingZeros(bits));
+            writeIntNode(el, childOffset, level + 1, rowLevel, sizes, out);
+            childOffset += rows ? intRowSize(el) : sizes.get(el);
+        }
+    }
+
+    /**
+     * Reads the grid written by {@link #write(IntGrid, DataOutput)}
+     * from the current position of the buffer and advances the position past it
+     *
+     * @throws IllegalArgumentException if the data is not a serialized {@link IntGrid}
+     */
+    public static IntGrid readIntGrid(ByteBuffer in) {
+        ByteBuffer buf = intGridSlice(in);
+        int depth = buf.getInt(16);
+
+        IntGrid grid = new IntGrid();
+        if (depth > 0) {
+            grid.init((Grid.Node) readIntNode(buf, INT_GRID_HEADER_SIZE, 0, 2 * depth - 1),
+                    buf.getInt(8), buf.getInt(12), depth);
+        }
+        return grid;
+    }
+
+    private static Object readIntNode(ByteBuffer buf, int offset, int level, int rowLevel) {
+        int mask = buf.getInt(offset);
+        if (level == rowLevel) {
+            IntGrid.IntRow row = new IntGrid.IntRow();
+            row.bits = mask;
+            int p = offset + 4;
+            for (int bits = mask; bits != 0; bits &= bits - 1, p += 4) {
+                row.v[Integer.numberOfTrailingZeros(bits)] = buf.getInt(p);
+            }
+            return row;
+        }
+
+        int n = Integer.bitCount(mask);
+        if (n == 0) throw new IllegalArgumentException("Corrupted grid data: empty node at " + offset);
+        Object[] c = new Object[Grid.Node.capacity(n)];
+        for (int x = 0; x < n; x++) {
+            c[x] = readIntNode(buf, buf.getInt(offset + 4 + 4 * x), level + 1, rowLevel);
+        }
+        return new Grid.Node(mask, c, 0);
+    }
+
+    /**
+     * Zero-copy read-only view of the grid written by {@link #write(IntGrid, DataOutput)}.
+     * Nothing is copied to the heap, all the reads go directly to the buffer
+     * (e.g. {@link java.nio.MappedByteBuffer} of the file), so the view is available in O(1).
+     * Advances the position of the buffer past the grid.
+     *
+     * @throws IllegalArgumentException if the data is not a serialized {@link IntGrid}
+     */
+    public static MappedIntGrid mapIntGrid(ByteBuffer in) {
+        return new MappedIntGrid(intGridSlice(in));
+    }
+
+    /**
+     * @return big-endian slice of the buffer that contains serialized {@link IntGrid}
+     */
+    private static ByteBuffer intGridSlice(ByteBuffer in) {
+        ByteBuffer buf = in.slice().order(ByteOrder.BIG_ENDIAN);
+        checkHeader(buf, FORMAT_INT_GRID);
+        int length = buf.getInt(20);
+        if (length < INT_GRID_HEADER_SIZE || length > buf.limit()) {
+            throw new IllegalArgumentException("Corrupted grid data: invalid length " + length);
+        }
+        buf.position(0).limit(length);
+        in.position(in.position() + length);
+        return buf.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private static void checkHeader(ByteBuffer buf, int format) {
+        if (buf.remaining() < 20 || buf.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a grid2d data");
+        }
+        int f = buf.getInt();
+        if (f != format) throw new IllegalArgumentException("Expected format " + format + ", got " + f);
+    }
+}
@@ -0,0 +1,31 @@
+package com.aivean.grid2d;
+
+import java.util.Spliterator;
+
+/**
+ * Spliterator over the values of AABB region, see {@link GridReadOnlyView#spliterator(int, int, int, int)}.
+ * In addition to the values, coordinates can be consumed without allocation via {@link Grid.QueryFun}.
+ * <p>
+ * Size is only estimated (from the number of children of the nodes that are left to traverse).
+ * Order in which elements are traversed is not specified.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public interface GridSpliterator<T> extends Spliterator<T> {
+
+    /**
+     * Same as {@link #tryAdvance(java.util.function.Consumer)}, but also provides element's coordinates
+     */
+    boolean tryAdvance(Grid.QueryFun<? super T> action);
+
+    /**
+     * Same as {@link #forEachRemaining(java.util.function.Consumer)}, but also provides element's coordinates
+     */
+    default void forEachRemaining(Grid.QueryFun<? super T> action) {
+        //noinspection StatementWithEmptyBody
+        while (tryAdvance(action)) ;
+    }
+
+    @Override
+    GridSpliterator<T> trySplit();
+}
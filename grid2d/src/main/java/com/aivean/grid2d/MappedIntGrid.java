@@ -0,0 +1,139 @@
+package com.aivean.grid2d;
+
+import java.nio.ByteBuffer;
+
+import static com.aivean.grid2d.Grid.BITS;
+import static com.aivean.grid2d.Grid.MASK;
+
+/**
+ * Read-only {@link IntGrid} that works directly on top of its serialized form
+ * (see {@link GridSerializer#mapIntGrid(ByteBuffer)}), e.g. on the memory mapped file.
+ * <p>
+ * Lookup follows the offsets of the children stored in the nodes, child's offset is found by the popcount
+ * of the node's mask, so the cost of the operations is the same as for {@link IntGrid}, but nothing is loaded on heap.
+ * <p>
+ * Only absolute reads of the buffer are used, so the instance is safe for concurrent use.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public final class MappedIntGrid {
+
+    private final ByteBuffer buf;
+    private final int i0;
+    private final int j0;
+    private final int depth;
+
+    /**
+     * @param buf big-endian buffer that starts at the header of the serialized {@link IntGrid}
+     */
+    MappedIntGrid(ByteBuffer buf) {
+        this.buf = buf;
+        this.i0 = buf.getInt(8);
+        this.j0 = buf.getInt(12);
+        this.depth = buf.getInt(16);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return value or {@code 0} if absent
+     */
+    public int get(int i, int j) {
+        return getOrDefault(i, j, 0);
+    }
+
+    public int getOrDefault(int i, int j, int defaultValue) {
+        int row = rowOffset(i, j);
+        if (row < 0) return defaultValue;
+        int v = child(row, (j - j0) & MASK);
+        return v < 0 ? defaultValue : buf.getInt(v);
+    }
+
+    public boolean contains(int i, int j) {
+        int row = rowOffset(i, j);
+        return row >= 0 && (buf.getInt(row) >>> ((j - j0) & MASK) & 1) != 0;
+    }
+
+    /**
+     * @return offset of the row that contains (i, j) or -1 if it's absent
+     */
+    private int rowOffset(int i, int j) {
+        if (depth == 0) return -1;
+        long range = (1L << (BITS * depth)) - 1;
+        long di = (long) i - i0;
+        long dj = (long) j - j0;
+        if (di < 0 || dj < 0 || di > range || dj > range) return -1;
+
+        int off = GridSerializer.INT_GRID_HEADER_SIZE;
+        int bits = BITS * (depth - 1);
+        for (int d = depth; d > 1 && off >= 0; d--, bits -= BITS) {
+            off = childNode(off, (int) (di >>> bits) & MASK);
+            if (off >= 0) off = childNode(off, (int) (dj >>> bits) & MASK);
+        }
+        return off < 0 ? -1 : childNode(off, (int) di & MASK);
+    }
+
+    private int childNode(int off, int k) {
+        int p = child(off, k);
+        return p < 0 ? -1 : buf.getInt(p);
+    }
+
+    /**
+     * @return offset of the k-th child's offset (of the k-th value for the row) of the node
+     * at the given offset or -1 if it's absent
+     */
+    private int child(int off, int k) {
+        int mask = buf.getInt(off);
+        if ((mask >>> k & 1) == 0) return -1;
+        return childAt(off, mask, k);
+    }
+
+    private int childAt(int off, int mask, int k) {
+        return off + 4 + 4 * Integer.bitCount(mask & ((1 << k) - 1));
+    }
+
+    /**
+     * AABB query, see {@link GridReadOnlyView#query(int, int, int, int, Grid.QueryFun)}
+     */
+    public void query(int i0, int j0, int i1, int j1, IntGrid.QueryFun cb) {
+        if (depth == 0) return;
+        long range = (1L << (BITS * depth)) - 1;
+        long ai0 = Math.max((long) i0 - this.i0, 0);
+        long aj0 = Math.max((long) j0 - this.j0, 0);
+        long ai1 = Math.min((long) i1 - this.i0, range);
+        long aj1 = Math.min((long) j1 - this.j0, range);
+        if (ai0 > ai1 || aj0 > aj1) return;
+        queryRec(GridSerializer.INT_GRID_HEADER_SIZE, (int) ai0, (int) aj0, (int) ai1, (int) aj1, depth, true, cb);
+    }
+
+    private void queryRec(int off, int i0, int j0, int i1, int j1, int d, boolean col, IntGrid.QueryFun cb) {
+        int mask = buf.getInt(off);
+        int bits = BITS * (d - 1);
+        int s = (i0 >>> bits) & MASK;
+        int e = (i1 >>> bits) & MASK;
+        int sel = mask & (-1 >>> (MASK - e)) & (-1 << s);
+
+        if (d == 1 && !col) {
+            int i = this.i0 + j0;
+            int jBase = this.j0 + (i0 & (~MASK));
+            while (sel != 0) {
+                int k = Integer.numberOfTrailingZeros(sel);
+                cb.apply(i, jBase + k, buf.getInt(childAt(off, mask, k)));
+                sel &= sel - 1;
+            }
+            return;
+        }
+
+        int m = (1 << bits) - 1;
+        int start = i0 & ((~MASK) << bits);
+        int nextD = col ? d : d - 1;
+        while (sel != 0) {
+            int k = Integer.numberOfTrailingZeros(sel);
+            int j = start | (k << bits);
+            queryRec(buf.getInt(childAt(off, mask, k)), j0, k == s ? i0 : j, j1, k == e ? i1 : j | m, nextD, !col, cb);
+            sel &= sel - 1;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.aivean.grid2d;
+
+/**
+ * Square neighborhood of the element, see {@link GridReadOnlyView#forEachWithNeighbors}.
+ * <p>
+ * The instance is reused between the callbacks and is valid only during the callback it was passed to.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public interface Neighborhood<T> {
+    /**
+     * @param di offset from the center, {@code -radius() ≤ di ≤ radius()}
+     * @param dj offset from the center, {@code -radius() ≤ dj ≤ radius()}
+     * @return element at {@code (i + di, j + dj)} or null, {@code get(0, 0)} is the center element
+     */
+    T get(int di, int dj);
+
+    int radius();
+}
@@ -0,0 +1,492 @@
+package com.aivean.grid2d;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static com.aivean.grid2d.Grid.BITS;
+import static com.aivean.grid2d.Grid.MASK;
+import static com.aivean.grid2d.Grid.SIZE;
+
+/**
+ * {@link IntGrid} that stores the whole hierarchy off-heap, in the direct {@link ByteBuffer}s.
+ * <p>
+ * Addressing is the same as in {@link Grid} (interleaved 5 bit keys), but nodes and rows are fixed-size records
+ * in the arena and refer to each other by {@code int} references instead of the object references,
+ * so the heap footprint doesn't depend on the number of elements and GC doesn't have to trace the hierarchy.
+ * Every record (node or row) is {@code int mask} (bitmask of the present children / values) followed by the slots:
+ * <ul>
+ * <li>compressed record: 2 slots, the slot of the child {@code k} is {@code bitCount(mask & ((1 << k) - 1))}
+ * (same idea as the compressed {@link Grid.Node})</li>
+ * <li>full record: 32 slots, the slot of the child {@code k} is {@code k}</li>
+ * </ul>
+ * Record is promoted to the full one when the third child is added and demoted back when it has ≤ 2 children left.
+ * Slots of the nodes hold the references of the children, slots of the rows hold the values.
+ * Freed records are reused, memory is returned only by {@link #clear()}.
+ * <p>
+ * Same thread safety rules as for {@link Grid} apply.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public class OffHeapIntGrid {
+
+    /* reference is (index << 1) | FULL for full records and index << 1 for compressed ones, 0 is null */
+    private static final int FULL = 1;
+
+    private final Arena compressed = new Arena(4 * 3);
+    private final Arena full = new Arena(4 * (SIZE + 1));
+
+    private int root = 0;
+    private int i0;
+    private int j0;
+    private int depth;
+
+    // block is the node that contains rows, parent of the block and the key of the block in it
+    // are cached to update the reference when the block is promoted
+    // cachei0 and cachej0 are in already adjusted coords
+    // -1 indicates unset cache
+    private int cachei0 = -1;
+    private int cachej0 = -1;
+    private int cache = 0;
+    private int cacheParent = 0;
+    private int cacheKey = 0;
+
+    /**
+     * Fixed-size records in the direct buffers of {@code 1 << CHUNK_BITS} records each.
+     * Index 0 is reserved as null. Free records are linked through their first int.
+     */
+    static final class Arena {
+        static final int CHUNK_BITS = 14;
+        static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+        static final int MAX_INDEX = (1 << 30) - 1;
+
+        final int recordSize;
+        ByteBuffer[] chunks = new ByteBuffer[0];
+        int next = 1;
+        int free = 0;
+
+        Arena(int recordSize) {
+            this.recordSize = recordSize;
+        }
+
+        int alloc() {
+            int r = free;
+            if (r != 0) {
+                free = getInt(r, 0);
+                return r;
+            }
+            r = next;
+            if (r > MAX_INDEX) throw new IllegalStateException("Off-heap arena is full");
+            if (r >>> CHUNK_BITS == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunks.length + 1);
+                chunks[chunks.length - 1] = ByteBuffer.allocateDirect(recordSize << CHUNK_BITS)
+                        .order(ByteOrder.nativeOrder());
+            }
+            next++;
+            return r;
+        }
+
+        void release(int r) {
+            putInt(r, 0, free);
+            free = r;
+        }
+
+        int getInt(int r, int offset) {
+            return chunks[r >>> CHUNK_BITS].getInt((r & CHUNK_MASK) * recordSize + offset);
+        }
+
+        void putInt(int r, int offset, int v) {
+            chunks[r >>> CHUNK_BITS].putInt((r & CHUNK_MASK) * recordSize + offset, v);
+        }
+
+        long bytes() {
+            return (long) chunks.length * (recordSize << CHUNK_BITS);
+        }
+    }
+
+    private Arena arena(int ref) {
+        return (ref & FULL) != 0 ? full : compressed;
+    }
+
+    private int mask(int ref) {
+        return arena(ref).getInt(ref >>> 1, 0);
+    }
+
+    /**
+     * @return byte offset of the slot of the child k in the record (child must be present for the compressed record)
+     */
+    private static int slot(int ref, int mask, int k) {
+        return (ref & FULL) != 0 ? 4 + 4 * k : 4 + 4 * Integer.bitCount(mask & ((1 << k) - 1));
+    }
+
+    /**
+     * @return value of the slot k, or 0 if it's absent
+     */
+    private int child(int ref, int k) {
+        Arena a = arena(ref);
+        int mask = a.getInt(ref >>> 1, 0);
+        if ((mask >>> k & 1) == 0) return 0;
+        return a.getInt(ref >>> 1, slot(ref, mask, k));
+    }
+
+    private int newRecord(int k, int v) {
+        int r = compressed.alloc();
+        compressed.putInt(r, 0, 1 << k);
+        compressed.putInt(r, 4, v);
+        return r << 1;
+    }
+
+    /**
+     * Sets the slot k of the record, promotes the record if necessary
+     *
+     * @return reference of the record (new one if it was promoted)
+     */
+    private int putSlot(int ref, int k, int v) {
+        Arena a = arena(ref);
+        int r = ref >>> 1;
+        int mask = a.getInt(r, 0);
+        int bit = 1 << k;
+        if ((mask & bit) != 0 || (ref & FULL) != 0) {
+            a.putInt(r, 0, mask | bit);
+            a.putInt(r, slot(ref, mask | bit, k), v);
+            return ref;
+        }
+
+        int n = Integer.bitCount(mask);
+        if (n < 2) {
+            /* keep slots ordered by key */
+            if (n == 1 && Integer.numberOfTrailingZeros(mask) > k) a.putInt(r, 8, a.getInt(r, 4));
+            a.putInt(r, 0, mask | bit);
+            a.putInt(r, slot(ref, mask | bit, k), v);
+            return ref;
+        }
+
+        int f = full.alloc();
+        int low = Integer.numberOfTrailingZeros(mask);
+        int high = 31 - Integer.numberOfLeadingZeros(mask);
+        full.putInt(f, 0, mask | bit);
+        full.putInt(f, 4 + 4 * low, a.getInt(r, 4));
+        full.putInt(f, 4 + 4 * high, a.getInt(r, 8));
+        full.putInt(f, 4 + 4 * k, v);
+        a.release(r);
+        return f << 1 | FULL;
+    }
+
+    /**
+     * Removes the slot k of the record, demotes or releases the record if necessary
+     *
+     * @return reference of the record (new one if it was demoted, 0 if it was released)
+     */
+    private int removeSlot(int ref, int k) {
+        Arena a = arena(ref);
+        int r = ref >>> 1;
+        int mask = a.getInt(r, 0);
+        int bit = 1 << k;
+        if ((mask & bit) == 0) return ref;
+        mask &= ~bit;
+
+        if (mask == 0) {
+            a.release(r);
+            return 0;
+        }
+        if ((ref & FULL) == 0) {
+            if (Integer.numberOfTrailingZeros(mask) > k) a.putInt(r, 4, a.getInt(r, 8));
+            a.putInt(r, 0, mask);
+            return ref;
+        }
+        if (Integer.bitCount(mask) > 2) {
+            a.putInt(r, 0, mask);
+            return ref;
+        }
+
+        int c = compressed.alloc();
+        compressed.putInt(c, 0, mask);
+        int p = 4;
+        for (int bits = mask; bits != 0; bits &= bits - 1, p += 4) {
+            compressed.putInt(c, p, a.getInt(r, 4 + 4 * Integer.numberOfTrailingZeros(bits)));
+        }
+        a.release(r);
+        return c << 1;
+    }
+
+    private void relink(int parent, int key, int ref) {
+        if (parent == 0) root = ref;
+        else putSlot(parent, key, ref);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return number of bytes allocated off-heap
+     */
+    public long offHeapBytes() {
+        return compressed.bytes() + full.bytes();
+    }
+
+    /**
+     * Removes all elements and releases the off-heap memory
+     */
+    public void clear() {
+        this.compressed.chunks = new ByteBuffer[0];
+        this.compressed.next = 1;
+        this.compressed.free = 0;
+        this.full.chunks = new ByteBuffer[0];
+        this.full.next = 1;
+        this.full.free = 0;
+        this.root = 0;
+        this.depth = 0;
+        this.cachei0 = -1;
+        this.cache = 0;
+    }
+
+    /**
+     * @return value or {@code 0} if absent
+     */
+    public int get(int i, int j) {
+        return getOrDefault(i, j, 0);
+    }
+
+    public int getOrDefault(int i, int j, int defaultValue) {
+        int row = getRow(i, j);
+        if (row == 0) return defaultValue;
+        Arena a = arena(row);
+        int mask = a.getInt(row >>> 1, 0);
+        int k = (j - j0) & MASK;
+        return (mask >>> k & 1) != 0 ? a.getInt(row >>> 1, slot(row, mask, k)) : defaultValue;
+    }
+
+    public boolean contains(int i, int j) {
+        int row = getRow(i, j);
+        return row != 0 && (mask(row) >>> ((j - j0) & MASK) & 1) != 0;
+    }
+
+    public void set(int i, int j, int value) {
+        ensureBoundaries(i, j);
+        i -= i0;
+        j -= j0;
+
+        int block = getBlock(i, j, true);
+        int row = child(block, i & MASK);
+        if (row == 0) {
+            int newBlock = putSlot(block, i & MASK, newRecord(j & MASK, value));
+            if (newBlock != block) {
+                relink(cacheParent, cacheKey, newBlock);
+                cache = newBlock;
+            }
+        } else {
+            int newRow = putSlot(row, j & MASK, value);
+            if (newRow != row) putSlot(block, i & MASK, newRow);
+        }
+    }
+
+    /**
+     * @return true if the element was present
+     */
+    public boolean remove(int i, int j) {
+        if (!inRange(i, j)) return false;
+        int shift = 32 - depth * BITS;
+        int newRoot = removeRec(root, (i - i0) << shift, (j - j0) << shift, 2 * depth - 1);
+        if (newRoot == -1) return false;
+        if (this.cachei0 == -1) {
+            /* structure has changed */
+            this.cache = 0;
+            this.root = newRoot;
+            collapseHierarchy();
+        }
+        return true;
+    }
+
+    /**
+     * @param i     remaining key bits of this level, left-aligned
+     * @param j     remaining key bits of the next level, left-aligned
+     * @param level number of the levels below this record
+     * @return new reference of the record, or -1 if the element is absent
+     */
+    private int removeRec(int ref, int i, int j, int level) {
+        int k = (i >>> (32 - BITS)) & MASK;
+        if (level == 0) {
+            return (mask(ref) >>> k & 1) == 0 ? -1 : removeSlot(ref, k);
+        }
+        int c = child(ref, k);
+        if (c == 0) return -1;
+        int newC = removeRec(c, j, i << BITS, level - 1);
+        if (newC == c || newC == -1) return newC == -1 ? -1 : ref;
+        this.cachei0 = -1; // the block or the nodes above it might be replaced
+        return newC == 0 ? removeSlot(ref, k) : putSlot(ref, k, newC);
+    }
+
+    private void collapseHierarchy() {
+        if (this.root == 0) {
+            clear();
+            return;
+        }
+        while (this.depth > 1) {
+            int rootMask = mask(this.root);
+            if (Integer.bitCount(rootMask) > 1) return;
+            int i = Integer.numberOfTrailingZeros(rootMask);
+            int col = child(this.root, i);
+            int colMask = mask(col);
+            if (Integer.bitCount(colMask) > 1) return;
+            int j = Integer.numberOfTrailingZeros(colMask);
+
+            int shift = BITS * (depth - 1);
+            i0 += i << shift;
+            j0 += j << shift;
+            int newRoot = child(col, j);
+            arena(col).release(col >>> 1);
+            arena(this.root).release(this.root >>> 1);
+            this.root = newRoot;
+            this.depth--;
+        }
+    }
+
+    /**
+     * @param i adjusted i
+     * @param j adjusted j
+     * @return the node that contains the row of (i, j), or 0 if it's absent and create is false
+     */
+    private int getBlock(int i, int j, boolean create) {
+        if (this.cachei0 != -1 &&
+                this.cachei0 >>> BITS == i >>> BITS &&
+                this.cachej0 >>> BITS == j >>> BITS &&
+                (this.cache != 0 || !create)) {
+            return this.cache;
+        }
+
+        this.cachei0 = i >>> BITS << BITS;
+        this.cachej0 = j >>> BITS << BITS;
+
+        int parent = 0;
+        int key = 0;
+        int el = root;
+        int bits = BITS * (this.depth - 1);
+        for (int d = this.depth; d > 1; --d) {
+            for (int step = 0; step < 2; step++) {
+                int k = ((step == 0 ? i : j) >>> bits) & MASK;
+                int c = child(el, k);
+                if (c == 0) {
+                    if (!create) {
+                        this.cache = 0;
+                        return 0;
+                    }
+                    c = compressed.alloc() << 1;
+                    compressed.putInt(c >>> 1, 0, 0);
+                    int newEl = putSlot(el, k, c);
+                    if (newEl != el) {
+                        relink(parent, key, newEl);
+                        el = newEl;
+                    }
+                }
+                parent = el;
+                key = k;
+                el = c;
+            }
+            bits -= BITS;
+        }
+
+        this.cache = el;
+        this.cacheParent = parent;
+        this.cacheKey = key;
+        return el;
+    }
+
+    /**
+     * @return row that contains (i, j), or 0 if it's absent
+     */
+    private int getRow(int i, int j) {
+        if (!inRange(i, j)) return 0;
+        i -= i0;
+        j -= j0;
+        int block = getBlock(i, j, false);
+        return block == 0 ? 0 : child(block, i & MASK);
+    }
+
+    /**
+     * AABB query, see {@link GridReadOnlyView#query(int, int, int, int, Grid.QueryFun)}
+     */
+    public void query(int i0, int j0, int i1, int j1, IntGrid.QueryFun cb) {
+        if (root == 0) return;
+        long range = (1L << (BITS * depth)) - 1;
+        long ai0 = Math.max((long) i0 - this.i0, 0);
+        long aj0 = Math.max((long) j0 - this.j0, 0);
+        long ai1 = Math.min((long) i1 - this.i0, range);
+        long aj1 = Math.min((long) j1 - this.j0, range);
+        if (ai0 > ai1 || aj0 > aj1) return;
+        queryRec(root, (int) ai0, (int) aj0, (int) ai1, (int) aj1, depth, true, cb);
+    }
+
+    private void queryRec(int ref, int i0, int j0, int i1, int j1, int d, boolean col, IntGrid.QueryFun cb) {
+        Arena a = arena(ref);
+        int r = ref >>> 1;
+        int mask = a.getInt(r, 0);
+        int bits = BITS * (d - 1);
+        int s = (i0 >>> bits) & MASK;
+        int e = (i1 >>> bits) & MASK;
+        int sel = mask & (-1 >>> (MASK - e)) & (-1 << s);
+
+        if (d == 1 && !col) {
+            int i = this.i0 + j0;
+            int jBase = this.j0 + (i0 & (~MASK));
+            while (sel != 0) {
+                int k = Integer.numberOfTrailingZeros(sel);
+                cb.apply(i, jBase + k, a.getInt(r, slot(ref, mask, k)));
+                sel &= sel - 1;
+            }
+            return;
+        }
+
+        int m = (1 << bits) - 1;
+        int start = i0 & ((~MASK) << bits);
+        int nextD = col ? d : d - 1;
+        while (sel != 0) {
+            int k = Integer.numberOfTrailingZeros(sel);
+            int j = start | (k << bits);
+            queryRec(a.getInt(r, slot(ref, mask, k)), j0, k == s ? i0 : j, j1, k == e ? i1 : j | m, nextD, !col, cb);
+            sel &= sel - 1;
+        }
+    }
+
+    private void ensureBoundaries(int i, int j) {
+        if (root == 0) {
+            root = compressed.alloc() << 1;
+            compressed.putInt(root >>> 1, 0, 0);
+            i0 = Grid.startOfTheRange(Grid.index(i));
+            j0 = Grid.startOfTheRange(Grid.index(j));
+            cachei0 = -1;  // reset cache
+            cache = 0;
+            depth = 1;
+        } else if (!inRange(i, j)) {
+            /* need to expand, see Grid.ensureBoundaries */
+
+            long iShift = Grid.findNewShift(i, i0, depth, depth + 1);
+            long jShift = Grid.findNewShift(j, j0, depth, Grid.shiftDepth(iShift));
+            if (Grid.shiftDepth(jShift) > Grid.shiftDepth(iShift)) {
+                iShift = Grid.findNewShift(i, i0, depth, Grid.shiftDepth(jShift));
+            }
+
+            int oi = i0 - Grid.shiftI0(iShift);
+            int oj = j0 - Grid.shiftI0(jShift);
+            int oldDepth = depth;
+
+            i0 = Grid.shiftI0(iShift);
+            j0 = Grid.shiftI0(jShift);
+            depth = Math.max(Grid.shiftDepth(iShift), Grid.shiftDepth(jShift));
+
+            cachei0 = -1; // reset cache
+            cache = 0;
+
+            /* wrap the old root bottom-up */
+            for (int bits = BITS * oldDepth; bits < BITS * depth; bits += BITS) {
+                root = newRecord((oj >>> bits) & MASK, root);
+                root = newRecord((oi >>> bits) & MASK, root);
+            }
+        }
+    }
+
+    private boolean inRange(int i, int j) {
+        return root != 0 && i >= i0 && j >= j0 &&
+                ((i - i0) >>> (depth * BITS) == 0) && ((j - j0) >>> (depth * BITS) == 0);
+    }
+}
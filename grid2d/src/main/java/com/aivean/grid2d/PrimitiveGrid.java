@@ -0,0 +1,366 @@
+package com.aivean.grid2d;
+
+import static com.aivean.grid2d.Grid.BITS;
+import static com.aivean.grid2d.Grid.MASK;
+import static com.aivean.grid2d.Grid.SIZE;
+
+/**
+ * Shared trie machinery for the primitive-specialized grids ({@link IntGrid}, {@link LongGrid}, {@link FloatGrid}).
+ * <p>
+ * Upper levels of the hierarchy are regular {@link Grid.Node}s, exactly as in {@link Grid},
+ * but the bottom level (the row) is a {@link Row} that stores 32 primitive values in a plain array
+ * plus the occupancy bitmask (bit {@code k} is set when {@code j & MASK == k} is present).
+ * <p>
+ * Same thread safety rules as for {@link Grid} apply.
+ *
+ * @param <R> row (leaf) type
+ * @param <F> query callback type
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+abstract class PrimitiveGrid<R extends PrimitiveGrid.Row, F> {
+
+    private Grid.Node root = null;
+    private Grid.Node cache = null;
+    private int i0;
+    private int j0;
+    private int depth;
+
+    // cachei0 and cachej0 are in already adjusted coords
+    // -1 indicates unset cache
+    private int cachei0 = -1;
+    private int cachej0 = -1;
+
+    /* scratch state of #getAllRows, created on the first use */
+    private Grid.BatchLookup batch;
+
+    static abstract class Row {
+        /* occupancy bitmask, SIZE == 32 bits */
+        int bits;
+    }
+
+    abstract R newRow();
+
+    /**
+     * Calls {@code cb} for every present element of the row with {@code s ≤ (j & MASK) ≤ e}
+     *
+     * @param i     (unshifted) i of the row
+     * @param jBase (unshifted) j of the 0th row element
+     */
+    abstract void queryRow(R row, int i, int jBase, int s, int e, F cb);
+
+    public int getDepth() {
+        return depth;
+    }
+
+    Grid.Node getRoot() {
+        return root;
+    }
+
+    int getI0() {
+        return i0;
+    }
+
+    int getJ0() {
+        return j0;
+    }
+
+    /**
+     * Replaces the content of the grid with the given hierarchy, see {@link GridSerializer}
+     */
+    void init(Grid.Node root, int i0, int j0, int depth) {
+        clear();
+        this.root = root;
+        this.i0 = i0;
+        this.j0 = j0;
+        this.depth = depth;
+    }
+
+    public void clear() {
+        this.cache = null;
+        this.cachei0 = -1;
+        this.depth = 0;
+        this.root = null;
+    }
+
+    /**
+     * @return existing or newly created row for the (i, j); expands boundaries when necessary
+     */
+    @SuppressWarnings("unchecked")
+    final R getOrCreateRow(int i, int j) {
+        ensureBoundaries(i, j);
+        i -= i0;
+        j -= j0;
+
+        Grid.Node el;
+        if (this.cachei0 != -1 &&
+                this.cachei0 >>> BITS == i >>> BITS &&
+                this.cachej0 >>> BITS == j >>> BITS &&
+                this.cache != null) {
+            el = this.cache;
+        } else {
+            int bits = BITS * (this.depth - 1);
+            el = root;
+            for (int d = this.depth; d > 1; --d) {
+                el = el.getOrCreateChildNode((i >>> bits) & MASK).getOrCreateChildNode((j >>> bits) & MASK);
+                bits -= BITS;
+            }
+            this.cachei0 = i >>> BITS << BITS;
+            this.cachej0 = j >>> BITS << BITS;
+            this.cache = el;
+        }
+
+        Object row = el.getOrNull(i & MASK);
+        if (row == null) {
+            row = newRow();
+            el.setNotNull(i & MASK, row);
+        }
+        return (R) row;
+    }
+
+    @SuppressWarnings("unchecked")
+    final R getRowOrNull(int i, int j) {
+        if (!inRange(i, j)) return null;
+        i -= i0;
+        j -= j0;
+
+        if (this.depth > 1 && this.cachei0 != -1 &&
+                this.cachei0 >>> BITS == i >>> BITS &&
+                this.cachej0 >>> BITS == j >>> BITS
+        ) {
+            if (this.cache == null) return null;
+            return (R) this.cache.getOrNull(i & MASK);
+        }
+
+        this.cachei0 = i >>> BITS << BITS;
+        this.cachej0 = j >>> BITS << BITS;
+
+        int d = this.depth;
+        int bits = BITS * (d - 1);
+
+        Grid.Node el;
+        for (el = root; d > 1; --d) {
+            el = (Grid.Node) el.getOrNull((i >>> bits) & MASK);
+            if (el == null) {
+                this.cache = null;
+                return null;
+            }
+
+            el = (Grid.Node) el.getOrNull((j >>> bits) & MASK);
+            if (el == null) {
+                this.cache = null;
+                return null;
+            }
+            bits -= BITS;
+        }
+
+        this.cache = el;
+        if (el == null) return null;
+        return (R) el.getOrNull(i & MASK);
+    }
+
+    /**
+     * Must be called after the last element of the row at (i, j) was removed
+     */
+    final void removeEmptyRow(int i, int j) {
+        int shift = 32 - depth * BITS;
+        if (clearNodesRec(root, (i - i0) << shift, (j - j0) << shift)) {
+            this.cache = null;
+            this.cachei0 = -1;
+            collapseHierarchy();
+        }
+    }
+
+    private boolean clearNodesRec(Grid.Node parent, int i, int j) {
+        int idx = (i >>> (32 - BITS)) & MASK;
+        Object child = parent.getOrNull(idx);
+        if (child == null) return false;
+        if (child instanceof Row) {
+            if (((Row) child).bits == 0) {
+                parent.setNull(idx);
+                return true;
+            }
+            return false;
+        }
+        Grid.Node node = (Grid.Node) child;
+        boolean res = clearNodesRec(node, j, i << BITS);
+        if (node.n == 0) {
+            parent.setNull(idx);
+            return true;
+        }
+        return res;
+    }
+
+    private void collapseHierarchy() {
+        while (this.depth > 0 && this.root.n <= 1) {
+            if (this.root.n == 0) {
+                clear();
+                return;
+            }
+
+            /* on the depth 1 children of the root are non-empty rows, cannot do anything */
+            if (depth == 1) return;
+
+            int i = this.root.firstNonNullIndex();
+            Grid.Node col = (Grid.Node) this.root.getOrNull(i);
+
+            if (col.n > 1) return;
+            if (col.n == 0) {
+                clear();
+                return;
+            }
+            int j = col.firstNonNullIndex();
+
+            int shift = BITS * (depth - 1);
+            i0 += i << shift;
+            j0 += j << shift;
+            this.root = (Grid.Node) col.getOrNull(j);
+            this.depth--;
+        }
+    }
+
+    /**
+     * AABB query, see {@link GridReadOnlyView#query(int, int, int, int, Grid.QueryFun)}
+     */
+    final void queryRegion(int i0, int j0, int i1, int j1, F cb) {
+        if (root == null) return;
+        if (i1 < i0 || j1 < j0) return;
+        long range = (1L << (BITS * depth)) - 1;
+        long ai0 = Math.max((long) i0 - this.i0, 0);
+        long aj0 = Math.max((long) j0 - this.j0, 0);
+        long ai1 = Math.min((long) i1 - this.i0, range);
+        long aj1 = Math.min((long) j1 - this.j0, range);
+        if (ai0 > ai1 || aj0 > aj1) return;
+        queryRec(root, (int) ai0, (int) aj0, (int) ai1, (int) aj1, this.depth, true, cb);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void queryRec(Object o, int i0, int j0, int i1, int j1, int d, boolean col, F cb) {
+        if (d == 1 && !col) {
+            queryRow((R) o, this.i0 + j0, this.j0 + (i0 & (~MASK)), i0 & MASK, i1 & MASK, cb);
+            return;
+        }
+
+        Grid.Node n = (Grid.Node) o;
+        int bits = BITS * (d - 1);
+        int s = (i0 >>> bits) & MASK;
+        int e = (i1 >>> bits) & MASK;
+        int nextD = col ? d : d - 1;
+
+        if (s == e) {
+            Object el = n.getOrNull(s);
+            if (el != null) queryRec(el, j0, i0, j1, i1, nextD, !col, cb);
+            return;
+        }
+
+        int mask = (1 << bits) - 1;
+        int start = i0 & ((~MASK) << bits);
+
+        for (int m = n.bitmap & Grid.rangeMask(s, e), x = n.index(s); m != 0; m &= m - 1, x++) {
+            int k = Integer.numberOfTrailingZeros(m);
+            queryRec(n.c[x], j0, k == s ? i0 : start | (k << bits), j1, k == e ? i1 : start | (k << bits) | mask,
+                    nextD, !col, cb);
+        }
+    }
+
+    /**
+     * Batch lookup of the rows, see {@link Grid#getAll}: calls {@code cb} with the row of every (is[x], js[x])
+     * (or null if absent), keys are grouped by their path in the hierarchy
+     */
+    @SuppressWarnings("unchecked")
+    final void getAllRows(int[] is, int[] js, RowFun<R> cb) {
+        int n = is.length;
+        if (js.length != n) throw new IllegalArgumentException("Expected " + n + " keys, got " + js.length);
+        if (batch == null) batch = new Grid.BatchLookup();
+        int i0 = this.i0, j0 = this.j0;
+        batch.lookup(root, i0, j0, depth, is, js, (o, d, col, idx, from, to) -> {
+            for (int y = from; y < to; y++) {
+                int x = idx[y];
+                cb.apply(x, o == null ? null : (R) rowFrom(o, is[x] - i0, js[x] - j0, d, col));
+            }
+        });
+    }
+
+    /**
+     * @param i adjusted index
+     * @param j adjusted index
+     * @return row of the subtree o that contains (i, j) or null
+     */
+    private static Object rowFrom(Object o, int i, int j, int d, boolean col) {
+        if (d == 1 && !col) return o;
+        Grid.Node n = (Grid.Node) o;
+        int bits = BITS * (d - 1);
+        if (!col) {
+            n = (Grid.Node) n.getOrNull((j >>> bits) & MASK);
+            if (n == null) return null;
+            bits -= BITS;
+            d--;
+        }
+        for (; d > 1; --d) {
+            n = (Grid.Node) n.getOrNull((i >>> bits) & MASK);
+            if (n == null) return null;
+            n = (Grid.Node) n.getOrNull((j >>> bits) & MASK);
+            if (n == null) return null;
+            bits -= BITS;
+        }
+        return n.getOrNull(i & MASK);
+    }
+
+    /**
+     * Callback of {@link #getAllRows}
+     */
+    @FunctionalInterface
+    interface RowFun<R> {
+        /**
+         * @param x   index of the key
+         * @param row row that contains the key or null
+         */
+        void apply(int x, R row);
+    }
+
+    private void ensureBoundaries(int i, int j) {
+        if (root == null) {
+            root = new Grid.Node();
+            i0 = Grid.startOfTheRange(Grid.index(i));
+            j0 = Grid.startOfTheRange(Grid.index(j));
+            cachei0 = -1;  // reset cache
+            cache = null;
+            depth = 1;
+        } else if (!inRange(i, j)) {
+            /* need to expand, see Grid.ensureBoundaries */
+
+            long iShift = Grid.findNewShift(i, i0, depth, depth + 1);
+            long jShift = Grid.findNewShift(j, j0, depth, Grid.shiftDepth(iShift));
+            if (Grid.shiftDepth(jShift) > Grid.shiftDepth(iShift)) {
+                iShift = Grid.findNewShift(i, i0, depth, Grid.shiftDepth(jShift));
+            }
+
+            int oldI0 = i0;
+            int oldJ0 = j0;
+            int oldDepth = depth;
+            Grid.Node oldRoot = root;
+
+            root = new Grid.Node();
+            i0 = Grid.shiftI0(iShift);
+            j0 = Grid.shiftI0(jShift);
+
+            depth = Math.max(Grid.shiftDepth(iShift), Grid.shiftDepth(jShift));
+
+            cachei0 = -1; // reset cache
+            cache = null;
+
+            int oi = oldI0 - i0;
+            int oj = oldJ0 - j0;
+            int bits = BITS * (depth - 1);
+            Grid.Node el = root;
+            for (int d = depth; d > oldDepth + 1; --d) {
+                el = el.getOrCreateChildNode((oi >>> bits) & MASK).getOrCreateChildNode((oj >>> bits) & MASK);
+                bits -= BITS;
+            }
+            el.getOrCreateChildNode((oi >>> bits) & MASK).setNotNull((oj >>> bits) & MASK, oldRoot);
+        }
+    }
+
+    final boolean inRange(int i, int j) {
+        return i >= i0 && j >= j0 && ((i - i0) >>> (depth * BITS) == 0) && ((j - j0) >>> (depth * BITS) == 0);
+    }
+}
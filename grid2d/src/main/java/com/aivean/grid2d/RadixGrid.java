@@ -0,0 +1,561 @@
+package com.aivean.grid2d;
+
+/**
+ * Sparse grid with the configurable branching factor: nodes have {@code 2^bits} children
+ * ({@link Grid} has 5 bits, i.e. 32-way nodes).
+ * <p>
+ * Wider nodes (6 bits) cut the depth of the hierarchy on the dense data, narrower ones (3 and 4 bits)
+ * waste less slots of the promoted (uncompressed) nodes on the sparse data.
+ * <p>
+ * The implementation is shared: every variant ({@link Bits3}, {@link Bits4}, {@link Bits5}, {@link Bits6})
+ * passes its constant number of bits to the final methods of this class, so when they are inlined,
+ * shifts and masks of the get / set path are compile-time constants for the JIT.
+ * Use the concrete variant as the static type on the hot path to keep the call sites monomorphic.
+ * <p>
+ * Supports get, set and AABB query, but not the dense tiles, snapshots and other extensions of {@link Grid}.
+ * Same thread safety rules as for {@link Grid} apply.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public abstract class RadixGrid<T> {
+
+    /* keys of the compressed node are stored in bytes */
+    private static final int KEY_BITS = 8;
+    private static final int KEY_MASK = (1 << KEY_BITS) - 1;
+    private static final long NO_ORIGIN = Long.MAX_VALUE;
+
+    private Node root = null;
+    private int i0;
+    private int j0;
+    private int depth;
+    /* keys in range are [i0, i0 + span) x [j0, j0 + span), span = 2^(bits * depth), 0 when empty */
+    private long span;
+
+    /* lowest column node (block) of the last access, cachei and cachej are adjusted block coords (>>> bits) */
+    private Node cache = null;
+    private int cachei = -1;
+    private int cachej = -1;
+
+    /**
+     * @param bits 3, 4, 5 or 6
+     */
+    public static <T> RadixGrid<T> create(int bits) {
+        switch (bits) {
+            case 3:
+                return new Bits3<>();
+            case 4:
+                return new Bits4<>();
+            case 5:
+                return new Bits5<>();
+            case 6:
+                return new Bits6<>();
+            default:
+                throw new IllegalArgumentException("bits must be in [3, 6]: " + bits);
+        }
+    }
+
+    public abstract T get(int i, int j);
+
+    public abstract void set(int i, int j, T value);
+
+    /**
+     * AABB query, see {@link GridReadOnlyView#query(int, int, int, int, Grid.QueryFun)}
+     */
+    public abstract void query(int i0, int j0, int i1, int j1, Grid.QueryFun<T> cb);
+
+    public abstract int getBits();
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void clear() {
+        root = null;
+        depth = 0;
+        span = 0;
+        cache = null;
+        cachei = -1;
+    }
+
+    /**
+     * Same as {@link Grid.Node}, but the keys of the compressed node are stored in bytes,
+     * so the node supports any branching factor
+     */
+    static final class Node {
+        Object[] c = new Object[2];
+        int keys;
+        int n;
+
+        Object getOrNull(int k) {
+            if (n <= 2) {
+                if (n > 0 && (keys & KEY_MASK) == k) return c[0];
+                if (n == 2 && (keys >>> KEY_BITS) == k) return c[1];
+                return null;
+            }
+            return c[k];
+        }
+
+        /**
+         * @param size number of children of the uncompressed node
+         */
+        void setNotNull(int k, Object v, int size) {
+            if (n <= 2) {
+                if (n > 0 && (keys & KEY_MASK) == k) {
+                    c[0] = v;
+                    return;
+                }
+                if (n == 2 && (keys >>> KEY_BITS) == k) {
+                    c[1] = v;
+                    return;
+                }
+                if (n == 0) {
+                    keys = k;
+                    c[0] = v;
+                    n = 1;
+                    return;
+                }
+                if (n == 1) {
+                    if ((keys & KEY_MASK) < k) {
+                        keys |= k << KEY_BITS;
+                        c[1] = v;
+                    } else {
+                        keys = keys << KEY_BITS | k;
+                        c[1] = c[0];
+                        c[0] = v;
+                    }
+                    n = 2;
+                    return;
+                }
+                /* promote */
+                Object[] c0 = c;
+                c = new Object[size];
+                c[keys & KEY_MASK] = c0[0];
+                c[keys >>> KEY_BITS] = c0[1];
+                keys = 0;
+            }
+            if (c[k] == null) n++;
+            c[k] = v;
+        }
+
+        void setNull(int k) {
+            if (n <= 2) {
+                if (n > 0 && (keys & KEY_MASK) == k) {
+                    c[0] = c[1];
+                    c[1] = null;
+                    keys >>>= KEY_BITS;
+                    n--;
+                } else if (n == 2 && (keys >>> KEY_BITS) == k) {
+                    c[1] = null;
+                    keys &= KEY_MASK;
+                    n--;
+                }
+                return;
+            }
+            if (c[k] == null) return;
+            c[k] = null;
+            if (--n == 2) { /* demote */
+                Object[] c0 = new Object[2];
+                int x = 0;
+                for (int j = 0; j < c.length; j++) {
+                    if (c[j] != null) {
+                        keys |= j << (KEY_BITS * x);
+                        c0[x++] = c[j];
+                    }
+                }
+                c = c0;
+            }
+        }
+
+        /**
+         * @return the only child's key, n must be 1
+         */
+        int singleKey() {
+            return keys & KEY_MASK;
+        }
+
+        Node getOrCreateChild(int k, int size) {
+            Node el = (Node) getOrNull(k);
+            if (el == null) {
+                el = new Node();
+                setNotNull(k, el, size);
+            }
+            return el;
+        }
+    }
+
+    final boolean inRange(int i, int j) {
+        long ai = (long) i - i0;
+        long aj = (long) j - j0;
+        return ai >= 0 && aj >= 0 && ai < span && aj < span;
+    }
+
+    /**
+     * @param ai adjusted index
+     * @param aj adjusted index
+     * @return lowest column node that contains (ai, aj) or null
+     */
+    private Node blockOrNull(int ai, int aj, int bits) {
+        int bi = ai >>> bits;
+        int bj = aj >>> bits;
+        if (bi == cachei && bj == cachej) return cache;
+
+        int mask = (1 << bits) - 1;
+        int shift = bits * (depth - 1);
+        Node el = root;
+        for (int d = depth; d > 1 && el != null; --d) {
+            el = (Node) el.getOrNull((ai >>> shift) & mask);
+            if (el != null) el = (Node) el.getOrNull((aj >>> shift) & mask);
+            shift -= bits;
+        }
+        cachei = bi;
+        cachej = bj;
+        cache = el;
+        return el;
+    }
+
+    private Node blockOrCreate(int ai, int aj, int bits) {
+        int bi = ai >>> bits;
+        int bj = aj >>> bits;
+        if (bi == cachei && bj == cachej && cache != null) return cache;
+
+        int mask = (1 << bits) - 1;
+        int size = 1 << bits;
+        int shift = bits * (depth - 1);
+        Node el = root;
+        for (int d = depth; d > 1; --d) {
+            el = el.getOrCreateChild((ai >>> shift) & mask, size).getOrCreateChild((aj >>> shift) & mask, size);
+            shift -= bits;
+        }
+        cachei = bi;
+        cachej = bj;
+        cache = el;
+        return el;
+    }
+
+    @SuppressWarnings("unchecked")
+    final T getImpl(int i, int j, int bits) {
+        if (!inRange(i, j)) return null;
+        int ai = i - i0;
+        int aj = j - j0;
+        Node block = blockOrNull(ai, aj, bits);
+        if (block == null) return null;
+        int mask = (1 << bits) - 1;
+        Node row = (Node) block.getOrNull(ai & mask);
+        return row == null ? null : (T) row.getOrNull(aj & mask);
+    }
+
+    final void setImpl(int i, int j, T value, int bits) {
+        int mask = (1 << bits) - 1;
+        if (value == null) {
+            if (!inRange(i, j)) return;
+            int ai = i - i0;
+            int aj = j - j0;
+            Node block = blockOrNull(ai, aj, bits);
+            if (block == null) return;
+            Node row = (Node) block.getOrNull(ai & mask);
+            if (row == null) return;
+            row.setNull(aj & mask);
+            if (row.n == 0) removeEmptyPath(ai, aj, bits);
+            return;
+        }
+
+        ensureBoundaries(i, j, bits);
+        int ai = i - i0;
+        int aj = j - j0;
+        int size = 1 << bits;
+        blockOrCreate(ai, aj, bits).getOrCreateChild(ai & mask, size).setNotNull(aj & mask, value, size);
+    }
+
+    /**
+     * Removes the empty nodes on the path to (ai, aj) and collapses the hierarchy
+     */
+    private void removeEmptyPath(int ai, int aj, int bits) {
+        cache = null;
+        cachei = -1;
+        prune(root, ai, aj, depth, true, bits);
+        if (root.n == 0) {
+            clear();
+            return;
+        }
+
+        /* same as Grid#collapseHierarchy */
+        int mask = (1 << bits) - 1;
+        while (depth > 1 && root.n == 1) {
+            int ki = root.singleKey();
+            Node col = (Node) root.getOrNull(ki);
+            if (col.n != 1) return;
+            int kj = col.singleKey();
+            int shift = bits * (depth - 1);
+            i0 += ki << shift;
+            j0 += kj << shift;
+            root = (Node) col.getOrNull(kj);
+            depth--;
+            span = 1L << (bits * depth);
+        }
+    }
+
+    private void prune(Node n, int ai, int aj, int d, boolean col, int bits) {
+        if (d == 1 && !col) return; /* row, its emptiness is checked by the caller */
+        int key = ((col ? ai : aj) >>> (bits * (d - 1))) & ((1 << bits) - 1);
+        Node child = (Node) n.getOrNull(key);
+        if (child == null) return;
+        prune(child, ai, aj, col ? d : d - 1, !col, bits);
+        if (child.n == 0) n.setNull(key);
+    }
+
+    private void ensureBoundaries(int i, int j, int bits) {
+        if (root == null) {
+            root = new Node();
+            i0 = i >> bits << bits;
+            j0 = j >> bits << bits;
+            depth = 1;
+            span = 1L << bits;
+            cachei = -1;
+            return;
+        }
+        if (inRange(i, j)) return;
+
+        /* on the max depth the range covers all int keys */
+        int maxDepth = (32 + bits - 1) / bits;
+        for (int d = depth + 1; d < maxDepth; d++) {
+            long oi = newOrigin(i, i0, depth, d, bits);
+            long oj = newOrigin(j, j0, depth, d, bits);
+            if (oi != NO_ORIGIN && oj != NO_ORIGIN) {
+                grow(d, (int) oi, (int) oj, bits);
+                return;
+            }
+        }
+        rebuild(maxDepth, bits);
+    }
+
+    /**
+     * Same as {@link Grid#findNewShift}: origin of the range of {@code 2^(bits * newDepth)} keys that covers x
+     * and the current range, the current root must be the aligned subtree of the new range
+     *
+     * @param o current origin
+     * @return new origin or {@link #NO_ORIGIN} if the range of the new depth cannot cover both
+     */
+    private static long newOrigin(int x, int o, int oldDepth, int newDepth, int bits) {
+        long step = 1L << (bits * oldDepth);
+        long range = 1L << (bits * newDepth);
+        long lo = Math.min(o, x);
+        long hi = Math.max(o + step - 1, x);
+        if (hi - lo >= range) return NO_ORIGIN;
+
+        /* origin is o - k * step */
+        long kMin = (o - lo + step - 1) / step;
+        long kMax = Math.min((o + range - 1 - hi) / step, ((long) o - Integer.MIN_VALUE) / step);
+        if (kMin > kMax) return NO_ORIGIN;
+        long k = (o - ((lo + hi) / 2 - range / 2)) / step; /* centered */
+        return o - Math.max(kMin, Math.min(kMax, k)) * step;
+    }
+
+    /**
+     * Makes the current root a subtree of the new root
+     */
+    private void grow(int newDepth, int newI0, int newJ0, int bits) {
+        int mask = (1 << bits) - 1;
+        int size = 1 << bits;
+        int oi = i0 - newI0;
+        int oj = j0 - newJ0;
+        int oldDepth = depth;
+        Node oldRoot = root;
+
+        root = new Node();
+        i0 = newI0;
+        j0 = newJ0;
+        depth = newDepth;
+        span = 1L << (bits * newDepth);
+        cache = null;
+        cachei = -1;
+
+        int shift = bits * (newDepth - 1);
+        Node el = root;
+        for (int d = newDepth; d > oldDepth + 1; --d) {
+            el = el.getOrCreateChild((oi >>> shift) & mask, size).getOrCreateChild((oj >>> shift) & mask, size);
+            shift -= bits;
+        }
+        el.getOrCreateChild((oi >>> shift) & mask, size).setNotNull((oj >>> shift) & mask, oldRoot, size);
+    }
+
+    /**
+     * Reinserts all elements into the hierarchy of the max depth, which covers all int keys.
+     * Happens only when the span of the keys is comparable to the whole int range.
+     */
+    @SuppressWarnings("unchecked")
+    private void rebuild(int maxDepth, int bits) {
+        int[] n = {0};
+        queryImpl(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, bits,
+                (i, j, v) -> n[0]++);
+        int[] is = new int[n[0]];
+        int[] js = new int[n[0]];
+        Object[] vs = new Object[n[0]];
+        n[0] = 0;
+        queryImpl(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, bits, (i, j, v) -> {
+            is[n[0]] = i;
+            js[n[0]] = j;
+            vs[n[0]++] = v;
+        });
+
+        clear();
+        root = new Node();
+        i0 = Integer.MIN_VALUE;
+        j0 = Integer.MIN_VALUE;
+        depth = maxDepth;
+        span = 1L << (bits * maxDepth);
+        for (int k = 0; k < is.length; k++) setImpl(is[k], js[k], (T) vs[k], bits);
+    }
+
+    final void queryImpl(int i0, int j0, int i1, int j1, int bits, Grid.QueryFun<T> cb) {
+        if (root == null) return;
+        if (i1 < i0 || j1 < j0) return;
+        long ai0 = Math.max((long) i0 - this.i0, 0);
+        long aj0 = Math.max((long) j0 - this.j0, 0);
+        long ai1 = Math.min((long) i1 - this.i0, span - 1);
+        long aj1 = Math.min((long) j1 - this.j0, span - 1);
+        if (ai0 > ai1 || aj0 > aj1) return;
+        queryRec(root, (int) ai0, (int) aj0, (int) ai1, (int) aj1, depth, true, bits, cb);
+    }
+
+    /**
+     * Same as {@link Grid}'s queryRec
+     */
+    @SuppressWarnings("unchecked")
+    private void queryRec(Node n, int i0, int j0, int i1, int j1, int d, boolean col, int bits, Grid.QueryFun<T> cb) {
+        int mask = (1 << bits) - 1;
+        int shift = bits * (d - 1);
+        int s = (i0 >>> shift) & mask;
+        int e = (i1 >>> shift) & mask;
+
+        if (d == 1 && !col) {
+            int jBase = this.j0 + (i0 & ~mask);
+            if (n.n <= 2) {
+                for (int x = 0; x < n.n; x++) {
+                    int k = (n.keys >>> (KEY_BITS * x)) & KEY_MASK;
+                    if (k >= s && k <= e) cb.apply(this.i0 + j0, jBase + k, (T) n.c[x]);
+                }
+            } else {
+                for (int k = s; k <= e; k++) {
+                    Object el = n.c[k];
+                    if (el != null) cb.apply(this.i0 + j0, jBase + k, (T) el);
+                }
+            }
+            return;
+        }
+
+        int nextD = col ? d : d - 1;
+        int sub = (1 << shift) - 1;
+        int start = i0 & (~mask << shift);
+        if (n.n <= 2) {
+            for (int x = 0; x < n.n; x++) {
+                int k = (n.keys >>> (KEY_BITS * x)) & KEY_MASK;
+                if (k < s || k > e) continue;
+                queryRec((Node) n.c[x], j0, k == s ? i0 : start | (k << shift),
+                        j1, k == e ? i1 : start | (k << shift) | sub, nextD, !col, bits, cb);
+            }
+        } else {
+            for (int k = s; k <= e; k++) {
+                Object el = n.c[k];
+                if (el == null) continue;
+                queryRec((Node) el, j0, k == s ? i0 : start | (k << shift),
+                        j1, k == e ? i1 : start | (k << shift) | sub, nextD, !col, bits, cb);
+            }
+        }
+    }
+
+    public static final class Bits3<T> extends RadixGrid<T> {
+        static final int BITS = 3;
+
+        @Override
+        public T get(int i, int j) {
+            return getImpl(i, j, BITS);
+        }
+
+        @Override
+        public void set(int i, int j, T value) {
+            setImpl(i, j, value, BITS);
+        }
+
+        @Override
+        public void query(int i0, int j0, int i1, int j1, Grid.QueryFun<T> cb) {
+            queryImpl(i0, j0, i1, j1, BITS, cb);
+        }
+
+        @Override
+        public int getBits() {
+            return BITS;
+        }
+    }
+
+    public static final class Bits4<T> extends RadixGrid<T> {
+        static final int BITS = 4;
+
+        @Override
+        public T get(int i, int j) {
+            return getImpl(i, j, BITS);
+        }
+
+        @Override
+        public void set(int i, int j, T value) {
+            setImpl(i, j, value, BITS);
+        }
+
+        @Override
+        public void query(int i0, int j0, int i1, int j1, Grid.QueryFun<T> cb) {
+            queryImpl(i0, j0, i1, j1, BITS, cb);
+        }
+
+        @Override
+        public int getBits() {
+            return BITS;
+        }
+    }
+
+    public static final class Bits5<T> extends RadixGrid<T> {
+        static final int BITS = 5;
+
+        @Override
+        public T get(int i, int j) {
+            return getImpl(i, j, BITS);
+        }
+
+        @Override
+        public void set(int i, int j, T value) {
+            setImpl(i, j, value, BITS);
+        }
+
+        @Override
+        public void query(int i0, int j0, int i1, int j1, Grid.QueryFun<T> cb) {
+            queryImpl(i0, j0, i1, j1, BITS, cb);
+        }
+
+        @Override
+        public int getBits() {
+            return BITS;
+        }
+    }
+
+    public static final class Bits6<T> extends RadixGrid<T> {
+        static final int BITS = 6;
+
+        @Override
+        public T get(int i, int j) {
+            return getImpl(i, j, BITS);
+        }
+
+        @Override
+        public void set(int i, int j, T value) {
+            setImpl(i, j, value, BITS);
+        }
+
+        @Override
+        public void query(int i0, int j0, int i1, int j1, Grid.QueryFun<T> cb) {
+            queryImpl(i0, j0, i1, j1, BITS, cb);
+        }
+
+        @Override
+        public int getBits() {
+            return BITS;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.aivean.grid2d;
+
+import static com.aivean.grid2d.Grid.BITS;
+
+/**
+ * {@link Grid} for the data that is clustered in several regions far away from each other.
+ * <p>
+ * Single {@link Grid} covers the span of all its keys, so two distant clusters increase the depth of the hierarchy
+ * (and the cost of every access) up to the depth needed for the whole 32-bit key space.
+ * Instead, the key space is split into the square shards of {@code SIZE^shardDepth} x {@code SIZE^shardDepth}
+ * elements and every non-empty shard is a separate {@link Grid}, which is anchored at its own cluster,
+ * so its depth depends only on the span of the cluster (at most {@code shardDepth + 1}).
+ * <p>
+ * Shards are indexed by the coarse key {@code (i >> shift, j >> shift)} in another {@link Grid}
+ * (lookups of the few shards that are used at the same time are served from its block cache),
+ * last used shard is cached. Shards are created when the first element of their region is set
+ * and removed when the last one is removed, so the set of the shards follows the clusters as they appear,
+ * move and disappear; the cluster that crosses the border of the shards is split between them.
+ * <p>
+ * Same thread safety rules as for {@link Grid} apply.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public class ShardedGrid<T> {
+
+    private final int shift;
+    private final boolean denseTiles;
+    private final Grid<Grid<T>> shards = new Grid<>();
+    private int shardCount;
+
+    /* last used shard, null if unset */
+    private Grid<T> last;
+    private int lastI;
+    private int lastJ;
+
+    /**
+     * Shards of 32768x32768 elements
+     */
+    public ShardedGrid() {
+        this(3, false);
+    }
+
+    /**
+     * @param shardDepth shard is the subtree of this depth, i.e. 1 - 32x32 elements, 2 - 1024x1024, etc.
+     * @param denseTiles see {@link Grid#Grid(boolean)}
+     */
+    public ShardedGrid(int shardDepth, boolean denseTiles) {
+        if (shardDepth < 1 || shardDepth > 6) {
+            throw new IllegalArgumentException("shardDepth must be in [1, 6]: " + shardDepth);
+        }
+        this.shift = BITS * shardDepth;
+        this.denseTiles = denseTiles;
+    }
+
+    /**
+     * @return shard that contains (i, j), or null if it doesn't exist and create is false
+     */
+    private Grid<T> shard(int i, int j, boolean create) {
+        int si = i >> shift;
+        int sj = j >> shift;
+        if (last != null && lastI == si && lastJ == sj) return last;
+
+        Grid<T> s = shards.get(si, sj);
+        if (s == null) {
+            if (!create) return null;
+            s = new Grid<>(denseTiles);
+            shards.set(si, sj, s);
+            shardCount++;
+        }
+        last = s;
+        lastI = si;
+        lastJ = sj;
+        return s;
+    }
+
+    public T get(int i, int j) {
+        Grid<T> s = shard(i, j, false);
+        return s == null ? null : s.get(i, j);
+    }
+
+    public void set(int i, int j, T value) {
+        Grid<T> s = shard(i, j, value != null);
+        if (s == null) return;
+        s.set(i, j, value);
+        if (value == null && s.getDepth() == 0) { /* the last element of the shard was removed */
+            shards.set(i >> shift, j >> shift, null);
+            shardCount--;
+            last = null;
+        }
+    }
+
+    /**
+     * AABB query, see {@link GridReadOnlyView#query(int, int, int, int, Grid.QueryFun)}.
+     * Only the shards that intersect the region are visited.
+     */
+    public void query(int i0, int j0, int i1, int j1, Grid.QueryFun<T> cb) {
+        if (i1 < i0 || j1 < j0) return;
+        shards.query(i0 >> shift, j0 >> shift, i1 >> shift, j1 >> shift,
+                (si, sj, s) -> s.query(i0, j0, i1, j1, cb));
+    }
+
+    /**
+     * Short-circuiting AABB query, see {@link GridReadOnlyView#queryWhile(int, int, int, int, Grid.QueryWhileFun)}
+     */
+    public boolean queryWhile(int i0, int j0, int i1, int j1, Grid.QueryWhileFun<T> cb) {
+        if (i1 < i0 || j1 < j0) return true;
+        return shards.queryWhile(i0 >> shift, j0 >> shift, i1 >> shift, j1 >> shift,
+                (si, sj, s) -> s.queryWhile(i0, j0, i1, j1, cb));
+    }
+
+    /**
+     * @return number of non-empty shards
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * @return maximum depth of the shards
+     */
+    public int getDepth() {
+        int[] depth = {0};
+        shards.query(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                (si, sj, s) -> depth[0] = Math.max(depth[0], s.getDepth()));
+        return depth[0];
+    }
+
+    public void clear() {
+        shards.clear();
+        shardCount = 0;
+        last = null;
+    }
+}
@@ -0,0 +1,156 @@
+package com.aivean.grid2d;
+
+import static com.aivean.grid2d.Grid.BITS;
+
+/**
+ * Thread safe {@link Grid} for multiple concurrent writers.
+ * <p>
+ * Key space is partitioned into the fixed square partitions of {@code SIZE^partitionDepth} x {@code SIZE^partitionDepth}
+ * elements, i.e. the subtrees of the fixed level of the hierarchy. Every partition is a persistent {@link Grid}
+ * (like the state of the {@link ConcurrentGrid}): writers of the partition lock its monitor, copy the path
+ * to the changed element and publish the new version, so threads that write to different partitions don't contend.
+ * Readers never lock: they traverse the published version of the partition without the row cache.
+ * <p>
+ * Partitions are indexed by the {@link ConcurrentGrid}, so the lookup of the partition is lock-free
+ * and the expansion of the index (when new partition is added far away from the existing ones) doesn't block
+ * the access to the other partitions. Last used partition is cached per thread.
+ * Partitions are created on the first write and are never removed, except by {@link #clear()}, which replaces
+ * the index and retires the old partitions (threads that still have them cached look them up again).
+ * <p>
+ * Operations on the single element are atomic. AABB queries see a consistent version of every partition,
+ * but not across partitions (writes to the partitions that are not yet visited might be seen).
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public class StripedGrid<T> {
+
+    private final int shift;
+    private final ConcurrentGrid<Partition<T>> partitions = new ConcurrentGrid<>();
+    private final ThreadLocal<LastPartition<T>> last = ThreadLocal.withInitial(LastPartition::new);
+
+    /**
+     * Versions are published by the writers holding the monitor, retired partitions are removed from the index
+     * and must not be accessed
+     */
+    private static final class Partition<T> {
+        volatile Grid<T> version = new Grid<>(false, 1);
+        volatile boolean retired;
+    }
+
+    private static final class LastPartition<T> {
+        int pi;
+        int pj;
+        Partition<T> p;
+    }
+
+    /**
+     * Partitions of 1024x1024 elements
+     */
+    public StripedGrid() {
+        this(2);
+    }
+
+    /**
+     * @param partitionDepth partition is the subtree of this depth, i.e. 1 - 32x32 elements, 2 - 1024x1024, etc.
+     */
+    public StripedGrid(int partitionDepth) {
+        if (partitionDepth < 1 || partitionDepth > 6) {
+            throw new IllegalArgumentException("partitionDepth must be in [1, 6]: " + partitionDepth);
+        }
+        this.shift = BITS * partitionDepth;
+    }
+
+    /**
+     * @return partition that contains (i, j), or null if it doesn't exist and create is false
+     */
+    private Partition<T> partition(int i, int j, boolean create) {
+        int pi = i >> shift;
+        int pj = j >> shift;
+        LastPartition<T> l = last.get();
+        if (l.p != null && l.pi == pi && l.pj == pj && !l.p.retired) return l.p;
+
+        Partition<T> p = partitions.get(pi, pj);
+        if (p == null) {
+            if (!create) return null;
+            p = partitions.putIfAbsent(pi, pj, new Partition<>());
+        }
+        l.pi = pi;
+        l.pj = pj;
+        l.p = p;
+        return p;
+    }
+
+    public T get(int i, int j) {
+        while (true) {
+            Partition<T> p = partition(i, j, false);
+            if (p == null) return null;
+            /* the version is read before the flag: if the partition wasn't retired yet, the version is valid */
+            Grid<T> version = p.version;
+            if (!p.retired) return version.getUncached(i, j);
+        }
+    }
+
+    public void set(int i, int j, T value) {
+        while (true) {
+            Partition<T> p = partition(i, j, value != null);
+            if (p == null) return;
+            synchronized (p) {
+                if (!p.retired) {
+                    p.version = p.version.copyWith(i, j, value);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * AABB query, see {@link GridReadOnlyView#query(int, int, int, int, Grid.QueryFun)}.
+     * Partitions are queried one by one, each at its version published when the partition is reached,
+     * so the callback may modify the grid (the changes of the current partition are not seen).
+     */
+    public void query(int i0, int j0, int i1, int j1, Grid.QueryFun<T> cb) {
+        if (i1 < i0 || j1 < j0) return;
+        partitions.query(i0 >> shift, j0 >> shift, i1 >> shift, j1 >> shift, (pi, pj, p) -> {
+            Grid<T> version = p.version;
+            if (!p.retired) version.query(i0, j0, i1, j1, cb);
+        });
+    }
+
+    /**
+     * Short-circuiting AABB query, see {@link GridReadOnlyView#queryWhile(int, int, int, int, Grid.QueryWhileFun)}
+     * and {@link #query(int, int, int, int, Grid.QueryFun)}
+     */
+    public boolean queryWhile(int i0, int j0, int i1, int j1, Grid.QueryWhileFun<T> cb) {
+        if (i1 < i0 || j1 < j0) return true;
+        return partitions.queryWhile(i0 >> shift, j0 >> shift, i1 >> shift, j1 >> shift, (pi, pj, p) -> {
+            Grid<T> version = p.version;
+            return p.retired || version.queryWhile(i0, j0, i1, j1, cb);
+        });
+    }
+
+    /**
+     * Removes all elements and partitions. The index is replaced atomically, then the old partitions
+     * are retired one by one: a concurrent write either lands in the old partition and is removed,
+     * or is retried in the new one
+     */
+    public void clear() {
+        partitions.snapshotAndClear().query(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                (pi, pj, p) -> {
+                    synchronized (p) {
+                        p.retired = true;
+                        p.version = new Grid<>(false, 1);
+                    }
+                });
+        last.remove();
+    }
+
+    /**
+     * @return number of partitions in the index
+     */
+    int partitionCount() {
+        int[] count = {0};
+        partitions.query(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                (pi, pj, p) -> count[0]++);
+        return count[0];
+    }
+}
@@ -0,0 +1,24 @@
+package com.aivean.grid2d;
+
+/**
+ * Order of the elements in {@link GridReadOnlyView#query(int, int, int, int, TraversalOrder, Grid.QueryFun)}
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public enum TraversalOrder {
+    /**
+     * Ascending i, elements with the same i by ascending j
+     */
+    ROW_MAJOR,
+    /**
+     * Ascending j, elements with the same j by ascending i
+     */
+    COLUMN_MAJOR,
+    /**
+     * Z-order with base 32 digits: aligned 32x32 blocks are visited in the Z-order of their offsets
+     * from the origin of the grid (which depends on the range of the stored keys),
+     * elements of the block are visited row-major.
+     * This is the natural order of the hierarchy, so the query is as fast as the unordered one
+     */
+    Z_ORDER
+}
@@ -0,0 +1,81 @@
+package com.aivean.grid2d;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serializes values of the {@link Grid}, see {@link GridSerializer}.
+ * Values are written in the big-endian order (as by {@link DataOutput}),
+ * buffer passed to {@link #read(ByteBuffer)} is always big-endian.
+ *
+ * @param <T> value type
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+public interface ValueCodec<T> {
+
+    void write(DataOutput out, T value) throws IOException;
+
+    /**
+     * Reads value from the current position of the buffer and advances the position
+     *
+     * @return non-null value
+     */
+    T read(ByteBuffer in);
+
+    ValueCodec<Integer> INTEGER = new ValueCodec<Integer>() {
+        @Override
+        public void write(DataOutput out, Integer value) throws IOException {
+            out.writeInt(value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer in) {
+            return in.getInt();
+        }
+    };
+
+    ValueCodec<Long> LONG = new ValueCodec<Long>() {
+        @Override
+        public void write(DataOutput out, Long value) throws IOException {
+            out.writeLong(value);
+        }
+
+        @Override
+        public Long read(ByteBuffer in) {
+            return in.getLong();
+        }
+    };
+
+    ValueCodec<Double> DOUBLE = new ValueCodec<Double>() {
+        @Override
+        public void write(DataOutput out, Double value) throws IOException {
+            out.writeDouble(value);
+        }
+
+        @Override
+        public Double read(ByteBuffer in) {
+            return in.getDouble();
+        }
+    };
+
+    /**
+     * UTF-8 bytes prefixed by the length
+     */
+    ValueCodec<String> STRING = new ValueCodec<String>() {
+        @Override
+        public void write(DataOutput out, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public String read(ByteBuffer in) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+}
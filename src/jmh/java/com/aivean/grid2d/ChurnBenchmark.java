@@ -0,0 +1,71 @@
+package com.aivean.grid2d;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moving window: every tick adds the column of elements at the leading edge of the window
+ * and removes the column at the trailing edge, the window goes back and forth along the track.
+ * <p>
+ * Run with {@code -prof gc} to compare the allocation rate with and without {@link Grid#setNodePooling}.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1,
+        jvmArgs = {"-Xms2G"}
+)
+@State(Scope.Thread)
+public class ChurnBenchmark {
+    static final int WIDTH = 100;
+    static final int TRACK = 1 << 16;
+    static final Integer VALUE = 1;
+
+    @Param({"false", "true"})
+    boolean POOLING;
+
+    /* elements of the column, every STEP-th row */
+    @Param({"8", "256"})
+    int HEIGHT;
+
+    @Param({"1", "3"})
+    int STEP;
+
+    Grid<Integer> grid;
+    int lo;
+    int dir;
+
+    @Setup
+    public void setup() {
+        grid = new Grid<>();
+        grid.setNodePooling(POOLING);
+        for (int i = 0; i < WIDTH; i++) {
+            for (int j = 0; j < HEIGHT; j += STEP) grid.set(i, j, VALUE);
+        }
+        lo = 0;
+        dir = 1;
+    }
+
+    @Benchmark
+    public int movingWindowBenchmark() {
+        int add, remove;
+        if (dir > 0) {
+            add = lo + WIDTH;
+            remove = lo++;
+            if (lo == TRACK) dir = -1;
+        } else {
+            add = --lo;
+            remove = lo + WIDTH;
+            if (lo == 0) dir = 1;
+        }
+        for (int j = 0; j < HEIGHT; j += STEP) {
+            grid.set(add, j, VALUE);
+            grid.set(remove, j, null);
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,142 @@
+package com.aivean.grid2d;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read throughput under concurrent writes: 3 reader threads do random {@code get}s and AABB queries
+ * while 1 writer thread does random {@code set}s.
+ * <p>
+ * {@code locked*} groups use {@link Grid} guarded by a single monitor,
+ * {@code concurrent*} groups use {@link ConcurrentGrid}.
+ * Compare the {@code get}/{@code query} scores of the groups (per operation of the reader thread).
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1,
+        jvmArgs = {"-Xms2G"}
+)
+@State(Scope.Group)
+public class ConcurrentGridBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    int RANGE;
+
+    @Param({"10000"})
+    int POPULATION;
+
+    Grid<Integer> grid;
+    ConcurrentGrid<Integer> concurrentGrid;
+
+    @State(Scope.Thread)
+    public static class RandomIndexState {
+        int range;
+        Random rng;
+
+        @Setup
+        public void doSetup(ConcurrentGridBenchmark state) {
+            range = state.RANGE;
+            rng = new Random(Thread.currentThread().getId());
+        }
+
+        int next() {
+            return rng.nextInt(range);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        grid = new Grid<>();
+        concurrentGrid = new ConcurrentGrid<>();
+
+        Random rng = new Random(123);
+        for (int k = 0; k < POPULATION; k++) {
+            int i = rng.nextInt(RANGE);
+            int j = rng.nextInt(RANGE);
+            int v = rng.nextInt();
+            grid.set(i, j, v);
+            concurrentGrid.set(i, j, v);
+        }
+    }
+
+    @Benchmark
+    @Group("lockedGet")
+    @GroupThreads(3)
+    public Integer lockedGet(RandomIndexState s) {
+        int i = s.next();
+        int j = s.next();
+        synchronized (grid) {
+            return grid.get(i, j);
+        }
+    }
+
+    @Benchmark
+    @Group("lockedGet")
+    @GroupThreads(1)
+    public void lockedGetWriter(RandomIndexState s) {
+        int i = s.next();
+        int j = s.next();
+        synchronized (grid) {
+            grid.set(i, j, i);
+        }
+    }
+
+    @Benchmark
+    @Group("concurrentGet")
+    @GroupThreads(3)
+    public Integer concurrentGet(RandomIndexState s) {
+        return concurrentGrid.get(s.next(), s.next());
+    }
+
+    @Benchmark
+    @Group("concurrentGet")
+    @GroupThreads(1)
+    public void concurrentGetWriter(RandomIndexState s) {
+        int i = s.next();
+        concurrentGrid.set(i, s.next(), i);
+    }
+
+    @Benchmark
+    @Group("lockedQuery")
+    @GroupThreads(3)
+    public void lockedQuery(Blackhole bh) {
+        int r = RANGE;
+        synchronized (grid) {
+            grid.query(r / 3, r / 3, r * 2 / 3, r * 2 / 3, (i, j, v) -> bh.consume(v));
+        }
+    }
+
+    @Benchmark
+    @Group("lockedQuery")
+    @GroupThreads(1)
+    public void lockedQueryWriter(RandomIndexState s) {
+        int i = s.next();
+        int j = s.next();
+        synchronized (grid) {
+            grid.set(i, j, i);
+        }
+    }
+
+    @Benchmark
+    @Group("concurrentQuery")
+    @GroupThreads(3)
+    public void concurrentQuery(Blackhole bh) {
+        int r = RANGE;
+        concurrentGrid.query(r / 3, r / 3, r * 2 / 3, r * 2 / 3, (i, j, v) -> bh.consume(v));
+    }
+
+    @Benchmark
+    @Group("concurrentQuery")
+    @GroupThreads(1)
+    public void concurrentQueryWriter(RandomIndexState s) {
+        int i = s.next();
+        concurrentGrid.set(i, s.next(), i);
+    }
+}
@@ -5,8 +5,13 @@ import org.openjdk.jmh.infra.Blackhole;
 import org.tinspin.index.qthypercube2.QuadTreeKD2;
 import org.zoodb.index.critbit.CritBit64;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -29,6 +34,8 @@ public class GridBenchmark {
     int POPULATION;
 
     Grid<Integer> grid;
+    Grid<Integer> denseGrid;
+    IntGrid intGrid;
     CritBit64<Integer> critBit;
     Integer[][] arr;
     HashMap<Long, Integer> map;
@@ -76,6 +83,16 @@ public class GridBenchmark {
         }
     }
 
+    /**
+     * Query callback created once per thread: a lambda capturing the Blackhole would be allocated on every call.
+     * The values are accumulated in {@link #sink} that is consumed after the query.
+     */
+    @State(Scope.Thread)
+    public static class QuerySinkState {
+        int sink;
+        final Grid.QueryFun<Integer> consume = (i, j, v) -> sink += v;
+    }
+
     @State(Scope.Thread)
     public static class emptyStructuresState {
         int range;
@@ -95,9 +112,228 @@ public class GridBenchmark {
     }
 
 
+    @State(Scope.Thread)
+    public static class ChunkState {
+        static final int CHUNK = 64;
+
+        int range;
+        int i = 0;
+        int j = 0;
+        Grid<Integer> grid;
+        Integer[] chunk;
+
+        @Setup
+        public void doSetup(GridBenchmark state) {
+            range = Math.max(state.RANGE, CHUNK);
+            i = 0;
+            j = 0;
+            grid = new Grid<>();
+            chunk = new Integer[CHUNK * CHUNK];
+            for (int k = 0; k < chunk.length; k++) chunk[k] = k;
+        }
+
+        void next() {
+            j += CHUNK;
+            if (j + CHUNK > range) {
+                j = 0;
+                i = i + CHUNK + CHUNK > range ? 0 : i + CHUNK;
+            }
+        }
+    }
+
+    /**
+     * Grid with the 64x64 chunk at (0, 0) surrounded by its neighbors, chunk is reloaded before every invocation
+     */
+    @State(Scope.Thread)
+    public static class ChunkEvictionState {
+        static final int CHUNK = ChunkState.CHUNK;
+
+        Grid<Integer> grid;
+        Integer[] chunk;
+
+        @Setup
+        public void doSetup() {
+            grid = new Grid<>();
+            chunk = new Integer[CHUNK * CHUNK];
+            for (int k = 0; k < chunk.length; k++) chunk[k] = k;
+            for (int i = -CHUNK; i <= CHUNK; i += CHUNK) {
+                for (int j = -CHUNK; j <= CHUNK; j += CHUNK) {
+                    grid.setBlock(i, j, CHUNK, CHUNK, chunk);
+                }
+            }
+        }
+
+        @Setup(Level.Invocation)
+        public void reload() {
+            grid.setBlock(0, 0, CHUNK, CHUNK, chunk);
+        }
+    }
+
+    /**
+     * Fully populated 1024x1024 region and the pool with the given number of threads
+     */
+    @State(Scope.Benchmark)
+    public static class ParallelQueryState {
+        static final int SIDE = 1024;
+
+        @Param({"1", "2", "4", "8"})
+        int threads;
+
+        Grid<Integer> grid;
+        ForkJoinPool pool;
+
+        @Setup
+        public void doSetup() {
+            grid = new Grid<>();
+            grid.setBlock(0, 0, SIDE, SIDE, (i, j) -> i + j);
+            pool = new ForkJoinPool(threads);
+        }
+
+        @TearDown
+        public void tearDown() {
+            pool.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class PopulationState {
+        int[] is;
+        int[] js;
+        int[] vs;
+        Integer[] boxed;
+
+        @Setup
+        public void doSetup(GridBenchmark state) {
+            Random rng = new Random(123);
+            is = new int[state.POPULATION];
+            js = new int[state.POPULATION];
+            vs = new int[state.POPULATION];
+            boxed = new Integer[state.POPULATION];
+            for (int k = 0; k < state.POPULATION; k++) {
+                is[k] = rng.nextInt(state.RANGE);
+                js[k] = rng.nextInt(state.RANGE);
+                vs[k] = rng.nextInt();
+                boxed[k] = vs[k];
+            }
+        }
+    }
+
+
+    @State(Scope.Thread)
+    public static class TrackedGridState {
+        Grid<Integer> grid;
+
+        @Setup
+        public void doSetup(GridBenchmark state) {
+            grid = new Grid<>();
+            state.grid.query(0, 0, state.RANGE, state.RANGE, grid::set);
+            grid.setChangeTracking(true);
+        }
+    }
+
+    /**
+     * Copy of {@link #grid} with the given size of the block cache, 1 means that only the last block is cached
+     */
+    @State(Scope.Thread)
+    public static class BlockCacheState {
+        @Param({"1", "16"})
+        int BLOCK_CACHE;
+
+        Grid<Integer> grid;
+        int range;
+        int i;
+        int j;
+        Random rng = new Random(123);
+
+        @Setup
+        public void doSetup(GridBenchmark state) {
+            grid = new Grid<>(false, BLOCK_CACHE);
+            state.grid.query(0, 0, state.RANGE, state.RANGE, grid::set);
+            range = state.RANGE;
+        }
+
+        /**
+         * Column-major order: i changes first
+         */
+        void nextColumnMajor() {
+            i++;
+            if (i >= range) {
+                i = 0;
+                j = (j + 1) % range;
+            }
+        }
+
+        /**
+         * Random walk with steps of 1-2 cells in both directions
+         */
+        void nextRandomWalk() {
+            i = Math.floorMod(i + rng.nextInt(5) - 2, range);
+            j = Math.floorMod(j + rng.nextInt(5) - 2, range);
+        }
+    }
+
+    /**
+     * Batch of random keys (same sequence as {@link RandomIndexState}) for {@link #gridGetAllBenchmark}
+     */
+    @State(Scope.Thread)
+    public static class BatchState {
+        static final int BATCH = 4096;
+
+        int[] is = new int[BATCH];
+        int[] js = new int[BATCH];
+        Integer[] out = new Integer[BATCH];
+        int[] intOut = new int[BATCH];
+
+        @Setup
+        public void doSetup(GridBenchmark state) {
+            RandomIndexState keys = new RandomIndexState();
+            keys.doSetup(state);
+            for (int k = 0; k < BATCH; k++) {
+                keys.next();
+                is[k] = keys.i;
+                js[k] = keys.j;
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AggregatedGridState {
+        static final Aggregator<Integer, Long> SUM = Aggregator.of(v -> (long) v, Long::sum);
+        Grid<Integer> grid;
+
+        @Setup
+        public void doSetup(GridBenchmark state) {
+            grid = new Grid<>();
+            state.grid.query(0, 0, state.RANGE, state.RANGE, grid::set);
+            grid.enableAggregates(SUM);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class SerializedState {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer grid;
+        ByteBuffer intGrid;
+
+        @Setup
+        public void doSetup(GridBenchmark state) throws IOException {
+            DataOutputStream out = new DataOutputStream(bytes);
+            GridSerializer.write(state.grid, out, ValueCodec.INTEGER);
+            grid = ByteBuffer.wrap(bytes.toByteArray());
+            bytes.reset();
+            GridSerializer.write(state.intGrid, out);
+            intGrid = ByteBuffer.allocateDirect(bytes.size());
+            intGrid.put(bytes.toByteArray()).flip();
+            bytes.reset();
+        }
+    }
+
+
     @Setup
     public void setup() {
         grid = new Grid<>();
+        denseGrid = new Grid<>(true);
+        intGrid = new IntGrid();
         critBit = CritBit64.create();
         arr = RANGE <= 10000 ? new Integer[RANGE][RANGE] : new Integer[0][0]; // avoid OOM on large RANGEs
         map = new HashMap<>();
@@ -110,6 +346,8 @@ public class GridBenchmark {
             int v = rng.nextInt();
 
             grid.set(i, j, v);
+            denseGrid.set(i, j, v);
+            intGrid.set(i, j, v);
             critBit.put((long) i << 32 | (long) j, v);
             map.put((long) i << 32 | (long) j, v);
             if (RANGE <= 10000) {
@@ -152,6 +390,61 @@ public class GridBenchmark {
         bh.consume(grid.get(state.i, state.j));
     }
 
+    @Benchmark
+    public void intGridRandomGetBenchmark(Blackhole bh, RandomIndexState state) {
+        state.next();
+        bh.consume(intGrid.get(state.i, state.j));
+    }
+
+    /**
+     * 10 nearest elements to the random point, compare with {@link #quadTreeNearestBenchmark}
+     */
+    @Benchmark
+    public void gridNearestBenchmark(Blackhole bh, RandomIndexState state) {
+        state.next();
+        grid.nearest(state.i, state.j, 10, null, (i, j, v) -> bh.consume(v));
+    }
+
+    @Benchmark
+    public void quadTreeNearestBenchmark(Blackhole bh, RandomIndexState state) {
+        state.next();
+        quadTree.queryKNN(new double[]{(double) state.i, (double) state.j}, 10).forEachRemaining(bh::consume);
+    }
+
+    /**
+     * Elements within the radius of 1/10 of the range around the random point
+     */
+    @Benchmark
+    public void gridWithinRadiusBenchmark(Blackhole bh, RandomIndexState state) {
+        state.next();
+        grid.withinRadius(state.i, state.j, state.range / 10, (i, j, v) -> bh.consume(v));
+    }
+
+    /**
+     * Baseline for {@link #gridGetAllBenchmark}: the same batch of keys with single lookups, time is per key
+     */
+    @Benchmark
+    @OperationsPerInvocation(BatchState.BATCH)
+    public void gridBatchLoopGetBenchmark(Blackhole bh, BatchState state) {
+        for (int k = 0; k < BatchState.BATCH; k++) {
+            bh.consume(grid.get(state.is[k], state.js[k]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BatchState.BATCH)
+    public Integer[] gridGetAllBenchmark(BatchState state) {
+        grid.getAll(state.is, state.js, state.out);
+        return state.out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BatchState.BATCH)
+    public int[] intGridGetAllBenchmark(BatchState state) {
+        intGrid.getAll(state.is, state.js, state.intOut, 0);
+        return state.intOut;
+    }
+
     /**
      * <pre>
      * Benchmark                                (POPULATION)  (RANGE)  Mode  Cnt   Score   Error  Units
@@ -209,6 +502,12 @@ public class GridBenchmark {
         bh.consume(grid.get(state.i, state.j));
     }
 
+    @Benchmark
+    public void intGridSequentialGetBenchmark(Blackhole bh, SequentialIndexState state) {
+        state.next();
+        bh.consume(intGrid.get(state.i, state.j));
+    }
+
     /**
      * <pre>
      * Benchmark                                    (POPULATION)  (RANGE)  Mode  Cnt   Score   Error  Units
@@ -313,6 +612,132 @@ public class GridBenchmark {
         grid.set(state.i, state.j, state.i + state.j);
     }
 
+    /**
+     * Snapshot followed by 100 random writes (i.e. a replication tick), time is per write,
+     * compare with {@link #gridRandomSetBenchmark} for the copy-on-write overhead
+     */
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public Object gridSnapshotTickBenchmark(RandomIndexState state) {
+        Object snapshot = grid.snapshot();
+        for (int k = 0; k < 100; k++) {
+            state.next();
+            grid.set(state.i, state.j, k);
+        }
+        return snapshot;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public void gridRandomSetBenchmark(RandomIndexState state) {
+        for (int k = 0; k < 100; k++) {
+            state.next();
+            grid.set(state.i, state.j, k);
+        }
+    }
+
+    /**
+     * {@link #gridRandomSetBenchmark} with the change tracking enabled, followed by the drain of the changes
+     */
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public void gridTrackedRandomSetBenchmark(Blackhole bh, TrackedGridState tracked, RandomIndexState state) {
+        for (int k = 0; k < 100; k++) {
+            state.next();
+            tracked.grid.set(state.i, state.j, k);
+        }
+        tracked.grid.drainChanges((i, j, v) -> bh.consume(v));
+    }
+
+    @Benchmark
+    public int gridSerializeBenchmark(SerializedState state) throws IOException {
+        state.bytes.reset();
+        GridSerializer.write(grid, new DataOutputStream(state.bytes), ValueCodec.INTEGER);
+        return state.bytes.size();
+    }
+
+    /**
+     * Loading of the serialized grid, compare with {@link #gridReplayBenchmark}
+     */
+    @Benchmark
+    public Object gridDeserializeBenchmark(SerializedState state) {
+        return GridSerializer.read(state.grid.duplicate(), ValueCodec.INTEGER);
+    }
+
+    /**
+     * Baseline for {@link #gridDeserializeBenchmark}: rebuilding the grid element by element
+     */
+    @Benchmark
+    public Object gridReplayBenchmark() {
+        Grid<Integer> g = new Grid<>();
+        grid.query(0, 0, RANGE, RANGE, g::set);
+        return g;
+    }
+
+    @Benchmark
+    public Object intGridDeserializeBenchmark(SerializedState state) {
+        return GridSerializer.readIntGrid(state.intGrid.duplicate());
+    }
+
+    /**
+     * Random get from the zero-copy view of the serialized {@link IntGrid} (the view is created on every call),
+     * compare with {@link #intGridRandomGetBenchmark}
+     */
+    @Benchmark
+    public void mappedIntGridRandomGetBenchmark(Blackhole bh, SerializedState serialized, RandomIndexState state) {
+        state.next();
+        bh.consume(GridSerializer.mapIntGrid(serialized.intGrid.duplicate()).get(state.i, state.j));
+    }
+
+    /**
+     * Loads 64x64 chunk with individual puts, time is per element,
+     * compare with {@link #gridSetBlockBenchmark} and {@link #gridSequentialPutBenchmark}
+     */
+    @Benchmark
+    @OperationsPerInvocation(ChunkState.CHUNK * ChunkState.CHUNK)
+    public void gridChunkPutBenchmark(ChunkState state) {
+        state.next();
+        int n = ChunkState.CHUNK;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                state.grid.set(state.i + i, state.j + j, state.chunk[i * n + j]);
+            }
+        }
+    }
+
+    /**
+     * Loads 64x64 chunk with {@link Grid#setBlock(int, int, int, int, Object[])}, time is per element
+     */
+    @Benchmark
+    @OperationsPerInvocation(ChunkState.CHUNK * ChunkState.CHUNK)
+    public void gridSetBlockBenchmark(ChunkState state) {
+        state.next();
+        state.grid.setBlock(state.i, state.j, ChunkState.CHUNK, ChunkState.CHUNK, state.chunk);
+    }
+
+    /**
+     * Evicts 64x64 chunk with individual removals, time is per invocation,
+     * compare with {@link #gridClearRegionBenchmark}
+     */
+    @Benchmark
+    public void gridChunkRemoveBenchmark(ChunkEvictionState state) {
+        int n = ChunkEvictionState.CHUNK;
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                state.grid.set(i, j, null);
+            }
+        }
+    }
+
+    /**
+     * Evicts 64x64 chunk with {@link Grid#clearRegion(int, int, int, int)}, time is per invocation
+     */
+    @Benchmark
+    public void gridClearRegionBenchmark(ChunkEvictionState state) {
+        int n = ChunkEvictionState.CHUNK;
+        state.grid.clearRegion(0, 0, n - 1, n - 1);
+    }
+
     /**
      * <pre>
      * Benchmark                                    (POPULATION)  (RANGE)  Mode  Cnt    Score   Error  Units
@@ -372,19 +797,275 @@ public class GridBenchmark {
      * GridBenchmark.gridAABBBenchmark             10000  100000000  avgt    5  129764.745 ±  2404.556  ns/op
      * </pre>
      *
+     * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is expected to be 0 B/op on all densities,
+     * the query path doesn't allocate (see {@code GridTest.testQueryDoesNotAllocate}) and the callback
+     * is created once in {@link QuerySinkState}.
+     *
      * @param bh
      * @param state
      */
     @Benchmark
-    public void gridAABBBenchmark(Blackhole bh, SequentialIndexState state) {
+    public void gridAABBBenchmark(Blackhole bh, SequentialIndexState state, QuerySinkState sink) {
+        int r = state.range;
+        grid.query(
+                r / 3, r / 3,
+                r * 2 / 3, r * 2 / 3,
+                sink.consume
+        );
+        bh.consume(sink.sink);
+    }
+
+    /**
+     * Same region as {@link #gridAABBBenchmark} in the strict row-major order
+     */
+    @Benchmark
+    public void gridRowMajorAABBBenchmark(Blackhole bh, SequentialIndexState state, QuerySinkState sink) {
+        int r = state.range;
+        grid.query(
+                r / 3, r / 3,
+                r * 2 / 3, r * 2 / 3,
+                TraversalOrder.ROW_MAJOR,
+                sink.consume
+        );
+        bh.consume(sink.sink);
+    }
+
+    @Benchmark
+    public void gridColumnMajorAABBBenchmark(Blackhole bh, SequentialIndexState state, QuerySinkState sink) {
         int r = state.range;
         grid.query(
+                r / 3, r / 3,
+                r * 2 / 3, r * 2 / 3,
+                TraversalOrder.COLUMN_MAJOR,
+                sink.consume
+        );
+        bh.consume(sink.sink);
+    }
+
+    @Benchmark
+    public void intGridAABBBenchmark(Blackhole bh, SequentialIndexState state) {
+        int r = state.range;
+        intGrid.query(
                 r / 3, r / 3,
                 r * 2 / 3, r * 2 / 3,
                 (i, j, v) -> bh.consume(v)
         );
     }
 
+    /**
+     * Baseline for {@link #gridAggregatedSumAABBBenchmark}: sum of the region via the query
+     */
+    @Benchmark
+    public long gridSumAABBBenchmark(SequentialIndexState state) {
+        int r = state.range;
+        long[] sum = {0};
+        grid.query(
+                r / 3, r / 3,
+                r * 2 / 3, r * 2 / 3,
+                (i, j, v) -> sum[0] += v
+        );
+        return sum[0];
+    }
+
+    /**
+     * Same region as {@link #gridAABBBenchmark}, subtrees that lie fully inside of it are taken from the cache
+     */
+    @Benchmark
+    public Long gridAggregatedSumAABBBenchmark(AggregatedGridState aggregated, SequentialIndexState state) {
+        int r = state.range;
+        return aggregated.grid.aggregate(
+                r / 3, r / 3,
+                r * 2 / 3, r * 2 / 3,
+                AggregatedGridState.SUM
+        );
+    }
+
+    @Benchmark
+    public long gridAggregatedCountAABBBenchmark(AggregatedGridState aggregated, SequentialIndexState state) {
+        int r = state.range;
+        return aggregated.grid.count(r / 3, r / 3, r * 2 / 3, r * 2 / 3);
+    }
+
+    /**
+     * {@link #gridRandomSetBenchmark} with the aggregates enabled, followed by the aggregate of the whole grid,
+     * i.e. every write invalidates the path to its block
+     */
+    @Benchmark
+    @OperationsPerInvocation(100)
+    public Long gridAggregatedRandomSetBenchmark(AggregatedGridState aggregated, RandomIndexState state) {
+        for (int k = 0; k < 100; k++) {
+            state.next();
+            aggregated.grid.set(state.i, state.j, k);
+        }
+        return aggregated.grid.aggregate(0, 0, RANGE, RANGE, AggregatedGridState.SUM);
+    }
+
+    @Benchmark
+    public Integer gridColumnMajorGetBenchmark(BlockCacheState state) {
+        state.nextColumnMajor();
+        return state.grid.get(state.i, state.j);
+    }
+
+    @Benchmark
+    public Integer gridRandomWalkGetBenchmark(BlockCacheState state) {
+        state.nextRandomWalk();
+        return state.grid.get(state.i, state.j);
+    }
+
+    /**
+     * Vertical neighbors with single lookups, alternates between the blocks on the block boundaries
+     */
+    @Benchmark
+    public void gridVerticalNeighborsGetBenchmark(Blackhole bh, BlockCacheState state) {
+        state.nextColumnMajor();
+        bh.consume(state.grid.get(state.i - 1, state.j));
+        bh.consume(state.grid.get(state.i, state.j));
+        bh.consume(state.grid.get(state.i + 1, state.j));
+    }
+
+    /**
+     * Baseline for {@link #gridNeighborsBenchmark}: 8 independent lookups
+     */
+    @Benchmark
+    public void gridNaiveNeighborsBenchmark(Blackhole bh, RandomIndexState state) {
+        state.next();
+        int i = state.i, j = state.j;
+        for (int di = -1; di <= 1; di++) {
+            for (int dj = -1; dj <= 1; dj++) {
+                if (di != 0 || dj != 0) bh.consume(grid.get(i + di, j + dj));
+            }
+        }
+    }
+
+    @Benchmark
+    public void gridNeighborsBenchmark(Blackhole bh, RandomIndexState state) {
+        state.next();
+        grid.neighbors(state.i, state.j, 1, (i, j, v) -> bh.consume(v));
+    }
+
+    /**
+     * Baseline for {@link #gridForEachWithNeighborsBenchmark}: number of the live neighbors of every element
+     * of the {@link #gridAABBBenchmark} region with 8 lookups per element
+     */
+    @Benchmark
+    public int gridNaiveStencilBenchmark(SequentialIndexState state) {
+        int r = state.range;
+        int[] sum = {0};
+        grid.query(
+                r / 3, r / 3,
+                r * 2 / 3, r * 2 / 3,
+                (i, j, v) -> {
+                    for (int di = -1; di <= 1; di++) {
+                        for (int dj = -1; dj <= 1; dj++) {
+                            if ((di != 0 || dj != 0) && grid.get(i + di, j + dj) != null) sum[0]++;
+                        }
+                    }
+                }
+        );
+        return sum[0];
+    }
+
+    @Benchmark
+    public int gridForEachWithNeighborsBenchmark(SequentialIndexState state) {
+        int r = state.range;
+        int[] sum = {0};
+        grid.forEachWithNeighbors(
+                r / 3, r / 3,
+                r * 2 / 3, r * 2 / 3, 1,
+                (i, j, v, n) -> {
+                    for (int di = -1; di <= 1; di++) {
+                        for (int dj = -1; dj <= 1; dj++) {
+                            if ((di != 0 || dj != 0) && n.get(di, dj) != null) sum[0]++;
+                        }
+                    }
+                }
+        );
+        return sum[0];
+    }
+
+    /**
+     * "Is there anything in the region" check over the same region as {@link #gridAABBBenchmark},
+     * stops at the first element
+     */
+    @Benchmark
+    public boolean gridAnyAABBBenchmark(SequentialIndexState state) {
+        int r = state.range;
+        return !grid.queryWhile(
+                r / 3, r / 3,
+                r * 2 / 3, r * 2 / 3,
+                (i, j, v) -> false
+        );
+    }
+
+    /**
+     * Same region as {@link #gridAABBBenchmark}, pulled through {@link GridCursor}
+     */
+    @Benchmark
+    public void gridCursorAABBBenchmark(Blackhole bh, SequentialIndexState state) {
+        int r = state.range;
+        GridCursor<Integer> c = grid.cursor(
+                r / 3, r / 3,
+                r * 2 / 3, r * 2 / 3
+        );
+        while (c.next()) bh.consume(c.value());
+    }
+
+    @Benchmark
+    public void gridStreamAABBBenchmark(Blackhole bh, SequentialIndexState state) {
+        int r = state.range;
+        grid.stream(
+                r / 3, r / 3,
+                r * 2 / 3, r * 2 / 3,
+                false
+        ).forEach(bh::consume);
+    }
+
+    /**
+     * Builds the whole structure from scratch, i.e. POPULATION random puts.
+     * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} approximates the memory footprint of the populated grid
+     * (values are boxed outside of the measured code, so boxing is not counted for {@code Grid<Integer>}).
+     */
+    @Benchmark
+    public Object gridPopulateBenchmark(PopulationState state) {
+        Grid<Integer> g = new Grid<>();
+        for (int k = 0; k < state.is.length; k++) {
+            g.set(state.is[k], state.js[k], state.boxed[k]);
+        }
+        return g;
+    }
+
+    /**
+     * Same as {@link #gridPopulateBenchmark}, for {@code -prof gc} comparison
+     */
+    @Benchmark
+    public Object intGridPopulateBenchmark(PopulationState state) {
+        IntGrid g = new IntGrid();
+        for (int k = 0; k < state.is.length; k++) {
+            g.set(state.is[k], state.js[k], state.vs[k]);
+        }
+        return g;
+    }
+
+    /**
+     * Sequential baseline for {@link #gridParallelAABBBenchmark}, full 1024x1024 region
+     */
+    @Benchmark
+    public void gridDenseAABBBenchmark(Blackhole bh, ParallelQueryState state) {
+        int n = ParallelQueryState.SIDE;
+        state.grid.query(0, 0, n - 1, n - 1, (i, j, v) -> bh.consume(v));
+    }
+
+    /**
+     * {@link Grid#parallelQuery} of the full 1024x1024 region, scaling over {@code threads}
+     */
+    @Benchmark
+    public void gridParallelAABBBenchmark(Blackhole bh, ParallelQueryState state) {
+        int n = ParallelQueryState.SIDE;
+        state.pool.submit(() ->
+                state.grid.parallelQuery(0, 0, n - 1, n - 1, (i, j, v) -> bh.consume(v))
+        ).join();
+    }
+
     /**
      * <pre>
      * Benchmark                                          (POPULATION)  (RANGE)  Mode  Cnt         Score          Error  Units
@@ -413,6 +1094,30 @@ public class GridBenchmark {
         }
     }
 
+    /**
+     * Same as {@link #gridSequentialSquareAccessBenchmark}, but blocks that are at least 1/4 full are stored as dense tiles
+     */
+    @Benchmark
+    public void denseGridSequentialSquareAccessBenchmark(Blackhole bh, SequentialIndexState state) {
+        int r = state.range;
+        int r1 = r * 2 / 3;
+        for (int i = r / 3; i < r1; i++) {
+            for (int j = r / 3; j < r1; j++) {
+                bh.consume(denseGrid.get(i, j));
+            }
+        }
+    }
+
+    @Benchmark
+    public void denseGridAABBBenchmark(Blackhole bh, SequentialIndexState state) {
+        int r = state.range;
+        denseGrid.query(
+                r / 3, r / 3,
+                r * 2 / 3, r * 2 / 3,
+                (i, j, v) -> bh.consume(v)
+        );
+    }
+
     /**
      * <pre>
      * Benchmark                                                (POPULATION)  (RANGE)  Mode  Cnt         Score         Error  Units
@@ -0,0 +1,81 @@
+package com.aivean.grid2d;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory and latency of the {@link Grid} nodes:
+ * {@code POPULATION} random elements with the given density (from 10<sup>-4</sup> to 1, same as {@link GridBenchmark}),
+ * on the semi-sparse data most of the nodes have from 3 to 8 children.
+ * Heap footprint of the populated grid is printed after the setup.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1,
+        jvmArgs = {"-Xms2G"}
+)
+@State(Scope.Thread)
+public class NodeLayoutBenchmark {
+    static final int QUERY_SIZE = 100;
+
+    @Param({"0.0001", "0.001", "0.01", "0.03", "0.1", "0.25", "1"})
+    double DENSITY;
+
+    @Param({"1000000"})
+    int POPULATION;
+
+    Grid<Integer> grid;
+    int range;
+    int i;
+    int j;
+
+    static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Setup
+    public void setup() {
+        range = (int) Math.sqrt(POPULATION / DENSITY);
+        long before = usedHeap();
+        grid = new Grid<>();
+        Random rng = new Random(123);
+        for (int k = 0; k < POPULATION; k++) {
+            grid.set(rng.nextInt(range), rng.nextInt(range), k);
+        }
+        long heap = usedHeap() - before;
+        System.out.printf("%nGrid density %s: heap %d MB, %.1f bytes per element%n",
+                DENSITY, heap >> 20, heap / (double) POPULATION);
+    }
+
+    void next() {
+        j = (j * 13 + i * i * 17 + 1) % range;
+        i = (i * 13 + j * i * 17 + 1) % range;
+        if (i < 0) i += range;
+        if (j < 0) j += range;
+    }
+
+    @Benchmark
+    public Integer randomGetBenchmark() {
+        next();
+        return grid.get(i, j);
+    }
+
+    /**
+     * Sum of the random {@code QUERY_SIZE x QUERY_SIZE} region
+     */
+    @Benchmark
+    public int aabbBenchmark() {
+        next();
+        int[] sum = {0};
+        grid.query(i, j, i + QUERY_SIZE - 1, j + QUERY_SIZE - 1, (i, j, v) -> sum[0] += v);
+        return sum[0];
+    }
+}
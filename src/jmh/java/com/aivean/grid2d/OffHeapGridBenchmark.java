@@ -0,0 +1,149 @@
+package com.aivean.grid2d;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Grid}, {@link IntGrid} and {@link OffHeapIntGrid} on the large populations (density 1/4).
+ * Every structure is created in its own state, so only one of them is alive during the benchmark,
+ * heap and off-heap footprint is printed after the population.
+ * <p>
+ * 10<sup>8</sup> elements in the {@link Grid} need the heap of about 10G,
+ * run with {@code -p POPULATION=10000000} on the smaller machines.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1,
+        jvmArgs = {"-Xms2G", "-Xmx16G"}
+)
+@State(Scope.Thread)
+public class OffHeapGridBenchmark {
+    static final int QUERY_SIZE = 100;
+
+    @Param({"10000000", "100000000"})
+    int POPULATION;
+
+    int range;
+    int i;
+    int j;
+
+    @Setup
+    public void setup() {
+        range = (int) Math.sqrt(POPULATION * 4.0);
+    }
+
+    void next() {
+        j = (j * 13 + i * i * 17 + 1) % range;
+        i = (i * 13 + j * i * 17 + 1) % range;
+        if (i < 0) i += range;
+        if (j < 0) j += range;
+    }
+
+    interface Setter {
+        void set(int i, int j, int v);
+    }
+
+    static void populate(OffHeapGridBenchmark state, Setter setter) {
+        Random rng = new Random(123);
+        for (int k = 0; k < state.POPULATION; k++) {
+            setter.set(rng.nextInt(state.range), rng.nextInt(state.range), rng.nextInt());
+        }
+    }
+
+    static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @State(Scope.Thread)
+    public static class GridState {
+        Grid<Integer> grid;
+
+        @Setup
+        public void doSetup(OffHeapGridBenchmark state) {
+            long before = usedHeap();
+            grid = new Grid<>();
+            populate(state, grid::set);
+            System.out.printf("%nGrid: heap %d MB%n", (usedHeap() - before) >> 20);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class IntGridState {
+        IntGrid grid;
+
+        @Setup
+        public void doSetup(OffHeapGridBenchmark state) {
+            long before = usedHeap();
+            grid = new IntGrid();
+            populate(state, grid::set);
+            System.out.printf("%nIntGrid: heap %d MB%n", (usedHeap() - before) >> 20);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class OffHeapState {
+        OffHeapIntGrid grid;
+
+        @Setup
+        public void doSetup(OffHeapGridBenchmark state) {
+            long before = usedHeap();
+            grid = new OffHeapIntGrid();
+            populate(state, grid::set);
+            System.out.printf("%nOffHeapIntGrid: heap %d MB, off-heap %d MB%n",
+                    (usedHeap() - before) >> 20, grid.offHeapBytes() >> 20);
+        }
+    }
+
+    @Benchmark
+    public Integer gridRandomGetBenchmark(GridState s) {
+        next();
+        return s.grid.get(i, j);
+    }
+
+    @Benchmark
+    public int intGridRandomGetBenchmark(IntGridState s) {
+        next();
+        return s.grid.get(i, j);
+    }
+
+    @Benchmark
+    public int offHeapRandomGetBenchmark(OffHeapState s) {
+        next();
+        return s.grid.get(i, j);
+    }
+
+    /**
+     * Sum of the random {@code QUERY_SIZE x QUERY_SIZE} region
+     */
+    @Benchmark
+    public int gridAABBBenchmark(GridState s) {
+        next();
+        int[] sum = {0};
+        s.grid.query(i, j, i + QUERY_SIZE - 1, j + QUERY_SIZE - 1, (i, j, v) -> sum[0] += v);
+        return sum[0];
+    }
+
+    @Benchmark
+    public int intGridAABBBenchmark(IntGridState s) {
+        next();
+        int[] sum = {0};
+        s.grid.query(i, j, i + QUERY_SIZE - 1, j + QUERY_SIZE - 1, (i, j, v) -> sum[0] += v);
+        return sum[0];
+    }
+
+    @Benchmark
+    public int offHeapAABBBenchmark(OffHeapState s) {
+        next();
+        int[] sum = {0};
+        s.grid.query(i, j, i + QUERY_SIZE - 1, j + QUERY_SIZE - 1, (i, j, v) -> sum[0] += v);
+        return sum[0];
+    }
+}
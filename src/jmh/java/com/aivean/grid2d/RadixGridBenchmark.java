@@ -0,0 +1,93 @@
+package com.aivean.grid2d;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RadixGrid} with different branching factors ({@code 2^BITS} children per node) over the data density:
+ * {@code POPULATION} random elements in {@code RANGE x RANGE} region, i.e. from 1 (dense) to 10<sup>-4</sup> (sparse).
+ * Heap footprint of the populated grid is printed after the setup.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1,
+        jvmArgs = {"-Xms2G"}
+)
+@State(Scope.Thread)
+public class RadixGridBenchmark {
+    static final int QUERY_SIZE = 100;
+
+    @Param({"3", "4", "5", "6"})
+    int BITS;
+
+    @Param({"100", "1000", "10000"})
+    int RANGE;
+
+    @Param({"10000"})
+    int POPULATION;
+
+    RadixGrid<Integer> grid;
+    int i;
+    int j;
+
+    static long usedHeap() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Setup
+    public void setup() {
+        long before = usedHeap();
+        grid = RadixGrid.create(BITS);
+        Random rng = new Random(123);
+        for (int k = 0; k < POPULATION; k++) {
+            grid.set(rng.nextInt(RANGE), rng.nextInt(RANGE), k);
+        }
+        System.out.printf("%nRadixGrid bits %d: depth %d, heap %d KB%n",
+                BITS, grid.getDepth(), (usedHeap() - before) >> 10);
+    }
+
+    void next() {
+        j = (j * 13 + i * i * 17 + 1) % RANGE;
+        i = (i * 13 + j * i * 17 + 1) % RANGE;
+        if (i < 0) i += RANGE;
+        if (j < 0) j += RANGE;
+    }
+
+    @Benchmark
+    public Integer randomGetBenchmark() {
+        next();
+        return grid.get(i, j);
+    }
+
+    /**
+     * Set and remove of the random element, the hierarchy is expanded and pruned on every call
+     */
+    @Benchmark
+    public Integer randomSetRemoveBenchmark() {
+        next();
+        Integer old = grid.get(i, j);
+        grid.set(i, j, null);
+        grid.set(i, j, i);
+        grid.set(i, j, old);
+        return old;
+    }
+
+    /**
+     * Sum of the random {@code QUERY_SIZE x QUERY_SIZE} region
+     */
+    @Benchmark
+    public int aabbBenchmark() {
+        next();
+        int[] sum = {0};
+        grid.query(i, j, i + QUERY_SIZE - 1, j + QUERY_SIZE - 1, (i, j, v) -> sum[0] += v);
+        return sum[0];
+    }
+}
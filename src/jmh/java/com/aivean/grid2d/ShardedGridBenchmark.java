@@ -0,0 +1,106 @@
+package com.aivean.grid2d;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Several dense clusters of {@code RANGE x RANGE} elements far away from each other:
+ * single {@link Grid} has to cover the span of all clusters (depth 6 here),
+ * {@link ShardedGrid} keeps every cluster in its own shard (depth ≤ 4).
+ * <p>
+ * Clusters are {@link #CLUSTER_DISTANCE} apart along the diagonal: single {@link Grid} doesn't support
+ * the span of the keys of 2<sup>30</sup> and more, {@link ShardedGrid} has no such limit.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1,
+        jvmArgs = {"-Xms2G"}
+)
+@State(Scope.Thread)
+public class ShardedGridBenchmark {
+    static final int CLUSTER_DISTANCE = 1 << 26;
+    static final int QUERY_SIZE = 100;
+
+    @Param({"2", "8"})
+    int CLUSTERS;
+
+    @Param({"300", "1000"})
+    int RANGE;
+
+    Grid<Integer> grid;
+    ShardedGrid<Integer> shardedGrid;
+
+    Random rng;
+    int i;
+    int j;
+
+    @Setup
+    public void setup() {
+        grid = new Grid<>();
+        shardedGrid = new ShardedGrid<>();
+        rng = new Random(123);
+        for (int c = 0; c < CLUSTERS; c++) {
+            int base = -CLUSTER_DISTANCE * CLUSTERS / 2 + c * CLUSTER_DISTANCE;
+            for (int k = 0; k < RANGE * RANGE / 2; k++) {
+                int i = base + rng.nextInt(RANGE);
+                int j = base + rng.nextInt(RANGE);
+                grid.set(i, j, k);
+                shardedGrid.set(i, j, k);
+            }
+        }
+        System.out.printf("%nGrid depth: %d, ShardedGrid depth: %d, shards: %d%n",
+                grid.getDepth(), shardedGrid.getDepth(), shardedGrid.getShardCount());
+    }
+
+    /**
+     * Random element of the random cluster, i.e. the shard changes on almost every access
+     */
+    void next() {
+        int base = -CLUSTER_DISTANCE * CLUSTERS / 2 + rng.nextInt(CLUSTERS) * CLUSTER_DISTANCE;
+        i = base + rng.nextInt(RANGE);
+        j = base + rng.nextInt(RANGE);
+    }
+
+    @Benchmark
+    public Integer gridRandomGet() {
+        next();
+        return grid.get(i, j);
+    }
+
+    @Benchmark
+    public Integer shardedRandomGet() {
+        next();
+        return shardedGrid.get(i, j);
+    }
+
+    @Benchmark
+    public void gridRandomSet() {
+        next();
+        grid.set(i, j, i);
+    }
+
+    @Benchmark
+    public void shardedRandomSet() {
+        next();
+        shardedGrid.set(i, j, i);
+    }
+
+    @Benchmark
+    public void gridAABB(Blackhole bh) {
+        next();
+        grid.query(i, j, i + QUERY_SIZE, j + QUERY_SIZE, (i, j, v) -> bh.consume(v));
+    }
+
+    @Benchmark
+    public void shardedAABB(Blackhole bh) {
+        next();
+        shardedGrid.query(i, j, i + QUERY_SIZE, j + QUERY_SIZE, (i, j, v) -> bh.consume(v));
+    }
+}
@@ -0,0 +1,125 @@
+package com.aivean.grid2d;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-threaded writes: every thread sets random elements either in its own region
+ * ({@code *Disjoint}, regions are 4096 apart) or in the region shared by all threads ({@code *Overlapping}).
+ * {@code *Mixed} benchmarks read the shared region and write to it once per 8 operations.
+ * <p>
+ * {@code locked*} benchmarks use {@link Grid} guarded by a single monitor,
+ * {@code concurrent*} use {@link ConcurrentGrid}, {@code striped*} use {@link StripedGrid}.
+ * Run with different {@code -t} to see the scaling.
+ *
+ * @author Ivan Zaitsev https://github.com/Aivean/grid2d
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(value = 1,
+        jvmArgs = {"-Xms2G"}
+)
+@Threads(4)
+@State(Scope.Benchmark)
+public class StripedGridBenchmark {
+    static final int REGION_DISTANCE = 4096;
+
+    @Param({"100", "1000"})
+    int RANGE;
+
+    Grid<Integer> grid;
+    ConcurrentGrid<Integer> concurrentGrid;
+    StripedGrid<Integer> stripedGrid;
+    final AtomicInteger threadCounter = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int range;
+        int offset;
+        Random rng;
+        Integer value;
+
+        @Setup
+        public void doSetup(StripedGridBenchmark state) {
+            int t = state.threadCounter.getAndIncrement();
+            range = state.RANGE;
+            offset = t * REGION_DISTANCE;
+            rng = new Random(t);
+            value = t;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        grid = new Grid<>();
+        concurrentGrid = new ConcurrentGrid<>();
+        stripedGrid = new StripedGrid<>();
+    }
+
+    @Benchmark
+    public void lockedDisjoint(ThreadState s) {
+        int i = s.offset + s.rng.nextInt(s.range);
+        int j = s.rng.nextInt(s.range);
+        synchronized (grid) {
+            grid.set(i, j, s.value);
+        }
+    }
+
+    @Benchmark
+    public void lockedOverlapping(ThreadState s) {
+        int i = s.rng.nextInt(s.range);
+        int j = s.rng.nextInt(s.range);
+        synchronized (grid) {
+            grid.set(i, j, s.value);
+        }
+    }
+
+    @Benchmark
+    public void concurrentDisjoint(ThreadState s) {
+        concurrentGrid.set(s.offset + s.rng.nextInt(s.range), s.rng.nextInt(s.range), s.value);
+    }
+
+    @Benchmark
+    public void concurrentOverlapping(ThreadState s) {
+        concurrentGrid.set(s.rng.nextInt(s.range), s.rng.nextInt(s.range), s.value);
+    }
+
+    @Benchmark
+    public void stripedDisjoint(ThreadState s) {
+        stripedGrid.set(s.offset + s.rng.nextInt(s.range), s.rng.nextInt(s.range), s.value);
+    }
+
+    @Benchmark
+    public void stripedOverlapping(ThreadState s) {
+        stripedGrid.set(s.rng.nextInt(s.range), s.rng.nextInt(s.range), s.value);
+    }
+
+    @Benchmark
+    public Integer lockedMixed(ThreadState s) {
+        int i = s.rng.nextInt(s.range);
+        int j = s.rng.nextInt(s.range);
+        synchronized (grid) {
+            if ((i & 7) == 0) {
+                grid.set(i, j, s.value);
+                return null;
+            }
+            return grid.get(i, j);
+        }
+    }
+
+    @Benchmark
+    public Integer stripedMixed(ThreadState s) {
+        int i = s.rng.nextInt(s.range);
+        int j = s.rng.nextInt(s.range);
+        if ((i & 7) == 0) {
+            stripedGrid.set(i, j, s.value);
+            return null;
+        }
+        return stripedGrid.get(i, j);
+    }
+}
@@ -0,0 +1,121 @@
+package com.aivean.grid2d
+
+import org.testng.Assert
+import org.testng.annotations.Test
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.random.Random
+
+class ConcurrentGridTest {
+
+    private fun <T> GridReadOnlyView<T>.query(i0: Int, j0: Int, i1: Int, j1: Int): Set<Triple<Int, Int, T>> =
+            mutableSetOf<Triple<Int, Int, T>>().also { res -> query(i0, j0, i1, j1) { i, j, v -> res += Triple(i, j, v) } }
+
+    @Test
+    fun testRandomized() {
+        for (range in listOf(10, 100, 10000)) {
+            val rng = Random(range)
+            val g = ConcurrentGrid<Int>()
+            val eta = Grid<Int>()
+
+            repeat(range * 5) {
+                val i = rng.nextInt(-range, range)
+                val j = rng.nextInt(-range, range)
+                val v = if (rng.nextInt(3) == 0) null else rng.nextInt()
+                g[i, j] = v
+                eta[i, j] = v
+
+                Assert.assertTrue(g[i, j] == v)
+                Assert.assertEquals(g.depth, eta.depth)
+            }
+            Assert.assertEquals(g.query(-range, -range, range, range), eta.query(-range, -range, range, range))
+
+            eta.query(-range, -range, range, range) { i, j, _ -> g[i, j] = null }
+            Assert.assertEquals(g.depth, 0)
+        }
+    }
+
+    @Test
+    fun testSnapshot() {
+        val g = ConcurrentGrid<Int>()
+        g[0, 0] = 1
+        g[5, 5] = 2
+        val s = g.snapshot()
+
+        g[0, 0] = null
+        g[5, 5] = 3
+        g[100000, 0] = 4
+
+        Assert.assertEquals(s.query(-10, -10, 200000, 10), setOf(Triple(0, 0, 1), Triple(5, 5, 2)))
+        Assert.assertEquals(g.query(-10, -10, 200000, 10), setOf(Triple(5, 5, 3), Triple(100000, 0, 4)))
+    }
+
+    @Test
+    fun testConcurrentWrites() {
+        val g = ConcurrentGrid<Int>()
+        val writers = 4
+        val n = 10000
+        val done = AtomicInteger()
+        val failed = AtomicBoolean()
+
+        // every writer adds values 0..n-1 in order to its own region,
+        // so any consistent version of the region contains exactly the values 0..max
+        val threads = (0 until writers).map { w ->
+            thread {
+                for (k in 0 until n) g[w * 1000 + k % 100, k / 100] = k
+                done.incrementAndGet()
+            }
+        } + (0 until 2).map {
+            thread {
+                while (done.get() < writers) {
+                    for (w in 0 until writers) {
+                        var count = 0
+                        var max = -1
+                        g.query(w * 1000, 0, w * 1000 + 99, n / 100) { _, _, v ->
+                            count++
+                            max = maxOf(max, v)
+                        }
+                        if (count != max + 1) failed.set(true)
+                    }
+                }
+            }
+        }
+        threads.forEach { it.join() }
+
+        Assert.assertFalse(failed.get())
+        Assert.assertEquals(g.query(0, 0, writers * 1000, n).size, writers * n)
+    }
+
+    @Test
+    fun testConcurrentNeighbors() {
+        val g = ConcurrentGrid<Int>()
+        val side = 200
+        for (i in 0 until side) for (j in 0 until side) g[i, j] = i * side + j
+        val failed = AtomicBoolean()
+
+        // readers jump between the blocks, values encode the coordinates, so a neighbor from the wrong block is caught
+        (0 until 4).map { t ->
+            thread {
+                val rng = Random(t)
+                repeat(20000) {
+                    val ci = rng.nextInt(1, side - 1)
+                    val cj = rng.nextInt(1, side - 1)
+                    var count = 0
+                    g.neighbors(ci, cj, 1) { i, j, v ->
+                        count++
+                        if (v != i * side + j || maxOf(Math.abs(i - ci), Math.abs(j - cj)) != 1) failed.set(true)
+                    }
+                    if (count != 8) failed.set(true)
+                }
+                g.forEachWithNeighbors(1, 1, side - 2, side - 2, 1) { i, j, _, n ->
+                    for (di in -1..1) for (dj in -1..1) {
+                        if (n.get(di, dj) != (i + di) * side + j + dj) failed.set(true)
+                    }
+                }
+            }
+        }.forEach { it.join() }
+
+        Assert.assertFalse(failed.get())
+    }
+}
@@ -0,0 +1,131 @@
+package com.aivean.grid2d
+
+import org.testng.Assert
+import org.testng.annotations.Test
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import kotlin.random.Random
+
+class GridSerializerTest {
+
+    private fun serialize(write: (DataOutputStream) -> Unit): ByteBuffer {
+        val bytes = ByteArrayOutputStream()
+        write(DataOutputStream(bytes))
+        return ByteBuffer.wrap(bytes.toByteArray())
+    }
+
+    private fun <T> GridReadOnlyView<T>.all(): Set<Triple<Int, Int, T>> {
+        val res = mutableSetOf<Triple<Int, Int, T>>()
+        query(Int.MIN_VALUE, Int.MIN_VALUE, Int.MAX_VALUE, Int.MAX_VALUE) { i, j, v -> res += Triple(i, j, v) }
+        return res
+    }
+
+    @Test
+    fun testGridRoundtrip() {
+        for (range in listOf(10, 100, 10000)) {
+            for (dense in listOf(false, true)) {
+                val rng = Random(range)
+                val g = Grid<Int>(dense)
+                repeat(range * 5) {
+                    g[rng.nextInt(-range, range), rng.nextInt(-range, range)] = rng.nextInt()
+                }
+
+                val buf = serialize { GridSerializer.write(g, it, ValueCodec.INTEGER) }
+                val g2 = GridSerializer.read(buf, ValueCodec.INTEGER, dense)
+                Assert.assertFalse(buf.hasRemaining())
+                Assert.assertEquals(g2.all(), g.all())
+                Assert.assertEquals(g2.depth, g.depth)
+
+                g2[range * 10, -range * 10] = 1
+                Assert.assertTrue(g2[range * 10, -range * 10] == 1)
+            }
+        }
+    }
+
+    @Test
+    fun testStringCodec() {
+        val g = Grid<String>()
+        g[1, 2] = "a"
+        g[-1000, 5] = ""
+        g[300, 300] = "é中"
+
+        val g2 = GridSerializer.read(serialize { GridSerializer.write(g, it, ValueCodec.STRING) }, ValueCodec.STRING)
+        Assert.assertEquals(g2.all(), g.all())
+    }
+
+    @Test
+    fun testIntGridRoundtrip() {
+        val rng = Random(1)
+        val g = IntGrid()
+        repeat(10000) {
+            g[rng.nextInt(-5000, 5000), rng.nextInt(-5000, 5000)] = rng.nextInt()
+        }
+
+        val buf = serialize {
+            GridSerializer.write(g, it)
+            it.writeInt(42)
+        }
+        val g2 = GridSerializer.readIntGrid(buf)
+        Assert.assertEquals(buf.int, 42)
+
+        val expected = mutableSetOf<Triple<Int, Int, Int>>()
+        val actual = mutableSetOf<Triple<Int, Int, Int>>()
+        g.query(-5000, -5000, 5000, 5000) { i, j, v -> expected += Triple(i, j, v) }
+        g2.query(-5000, -5000, 5000, 5000) { i, j, v -> actual += Triple(i, j, v) }
+        Assert.assertEquals(actual, expected)
+    }
+
+    @Test
+    fun testMappedIntGrid() {
+        val rng = Random(2)
+        val g = IntGrid()
+        repeat(10000) {
+            g[rng.nextInt(-5000, 5000), rng.nextInt(-5000, 5000)] = rng.nextInt()
+        }
+
+        val file = File.createTempFile("grid2d", ".bin")
+        try {
+            RandomAccessFile(file, "rw").use { f ->
+                GridSerializer.write(g, f)
+                val m = GridSerializer.mapIntGrid(f.channel.map(FileChannel.MapMode.READ_ONLY, 0, f.length()))
+
+                for (i in -5010..5010 step 7) {
+                    for (j in -5010..5010 step 3) {
+                        Assert.assertEquals(m.contains(i, j), g.contains(i, j))
+                        Assert.assertEquals(m.getOrDefault(i, j, -1), g.getOrDefault(i, j, -1))
+                    }
+                }
+
+                repeat(100) {
+                    val i0 = rng.nextInt(-6000, 6000)
+                    val j0 = rng.nextInt(-6000, 6000)
+                    val i1 = i0 + rng.nextInt(1000)
+                    val j1 = j0 + rng.nextInt(1000)
+                    val expected = mutableListOf<Triple<Int, Int, Int>>()
+                    val actual = mutableListOf<Triple<Int, Int, Int>>()
+                    g.query(i0, j0, i1, j1) { i, j, v -> expected += Triple(i, j, v) }
+                    m.query(i0, j0, i1, j1) { i, j, v -> actual += Triple(i, j, v) }
+                    Assert.assertEquals(actual, expected)
+                }
+            }
+        } finally {
+            file.delete()
+        }
+    }
+
+    @Test
+    fun testWrongFormat() {
+        val g = Grid<Int>()
+        g[1, 1] = 1
+        val buf = serialize { GridSerializer.write(g, it, ValueCodec.INTEGER) }
+        try {
+            GridSerializer.readIntGrid(buf)
+            Assert.fail("IllegalArgumentException expected")
+        } catch (e: IllegalArgumentException) {
+        }
+    }
+}
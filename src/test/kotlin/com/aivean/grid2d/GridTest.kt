@@ -3,6 +3,10 @@ package com.aivean.grid2d
 import org.testng.Assert
 import org.testng.annotations.Test
 import org.zoodb.index.critbit.CritBit64
+import java.lang.management.ManagementFactory
+import java.math.BigInteger
+import java.util.concurrent.ConcurrentLinkedQueue
+import kotlin.math.abs
 import kotlin.random.Random
 
 class GridTest {
@@ -10,8 +14,8 @@ class GridTest {
     @Test
     fun testShift() {
         val shift = Grid.findNewShift(5, 0, 0, 1)
-        Assert.assertEquals(shift.d, 1)
-        Assert.assertEquals(shift.i, -14)
+        Assert.assertEquals(Grid.shiftDepth(shift), 1)
+        Assert.assertEquals(Grid.shiftI0(shift), -14)
     }
 
     @Test
@@ -138,7 +142,7 @@ class GridTest {
         }
     }
 
-    private fun <T> Grid<T>.query(i0: Int, j0: Int, i1: Int, j1: Int): List<Triple<Int, Int, T>> =
+    private fun <T> GridReadOnlyView<T>.query(i0: Int, j0: Int, i1: Int, j1: Int): List<Triple<Int, Int, T>> =
         mutableListOf<Triple<Int, Int, T>>().also {
             this@query.query(i0, j0, i1, j1) { i, j, v ->
                 it += Triple(i, j, v)
@@ -202,4 +206,628 @@ class GridTest {
             setOf(Triple(0, 0, 0))
         )
     }
-}
\ No newline at end of file
+
+    @Test
+    fun testDenseTiles() {
+        for (range in listOf(20, 50, 200)) {
+            val rng = Random(range)
+            val g = Grid<Int>(true)
+            val eta = Grid<Int>()
+            val off = rng.nextInt(-1000, 1000)
+
+            // alternate filling and emptying phases to trigger both promotion and demotion
+            for (phase in 0 until 4) {
+                val pSet = if (phase % 2 == 0) 0.9 else 0.1
+                repeat(range * range * 2) {
+                    val i = off + rng.nextInt(range)
+                    val j = off + rng.nextInt(range)
+                    val v = if (rng.nextDouble() < pSet) rng.nextInt() else null
+                    g[i, j] = v
+                    eta[i, j] = v
+                    Assert.assertTrue(g[i, j] == eta[i, j])
+                }
+                Assert.assertEquals(g.depth, eta.depth)
+                Assert.assertEquals(
+                    g.query(off - range, off - range, off + range, off + range).toSet(),
+                    eta.query(off - range, off - range, off + range, off + range).toSet()
+                )
+                Assert.assertEquals(
+                    g.query(off + range / 3, off + 1, off + range / 2, off + range - 1).toSet(),
+                    eta.query(off + range / 3, off + 1, off + range / 2, off + range - 1).toSet()
+                )
+            }
+
+            eta.query(off, off, off + range, off + range) { i, j, _ ->
+                g[i, j] = null
+            }
+            Assert.assertEquals(g.depth, 0)
+        }
+    }
+
+    @Test
+    fun testDenseTilePromotionThreshold() {
+        val g = Grid<Int>(true)
+        g[1000, 1000] = 1
+        // rows grow one column at a time, so the threshold is crossed between multiples of 8 per row
+        for (i in 0 until 20) for (j in 0 until 8) g[i, j] = i * 32 + j
+        Assert.assertTrue(g.getBlockOrNull(0, 0) is Grid.Node)
+        for (j in 8 until 15) for (i in 0 until 20) g[i, j] = i * 32 + j
+        Assert.assertTrue(g.getBlockOrNull(0, 0) is Grid.Tile)
+        Assert.assertEquals(g.count(0, 0, 31, 31), 300L)
+        for (i in 0 until 20) for (j in 0 until 15) Assert.assertEquals(g[i, j], i * 32 + j)
+    }
+
+    @Test
+    fun testSetBlock() {
+        for (denseTiles in listOf(false, true)) {
+            val rng = Random(if (denseTiles) 1 else 2)
+            repeat(200) {
+                val g = Grid<Int>(denseTiles)
+                val eta = Grid<Int>()
+                val base = rng.nextInt(-100000, 100000)
+                repeat(rng.nextInt(3) * 50) {
+                    val i = base + rng.nextInt(100)
+                    val j = base + rng.nextInt(100)
+                    val v = rng.nextInt()
+                    g[i, j] = v
+                    eta[i, j] = v
+                }
+
+                val i0 = base + rng.nextInt(-50, 100)
+                val j0 = base + rng.nextInt(-50, 100)
+                val iSize = rng.nextInt(90)
+                val jSize = rng.nextInt(90)
+                val density = if (rng.nextInt(5) == 0) 0.0 else rng.nextDouble()
+                val values = Array(iSize * jSize) { if (rng.nextDouble() < density) rng.nextInt() else null }
+
+                g.setBlock(i0, j0, iSize, jSize, values)
+                for (i in 0 until iSize) {
+                    for (j in 0 until jSize) {
+                        values[i * jSize + j]?.let { eta[i0 + i, j0 + j] = it }
+                    }
+                }
+
+                Assert.assertEquals(g.depth, eta.depth)
+                Assert.assertEquals(
+                    g.query(base - 100, base - 100, base + 200, base + 200).toSet(),
+                    eta.query(base - 100, base - 100, base + 200, base + 200).toSet()
+                )
+
+                eta.query(base - 100, base - 100, base + 200, base + 200) { i, j, _ ->
+                    g[i, j] = null
+                }
+                Assert.assertEquals(g.depth, 0)
+            }
+        }
+
+        val g = Grid<Int>()
+        g.setBlock(10, 20, 3, 4) { i, j -> i * 100 + j }
+        Assert.assertEquals(g.query(0, 0, 100, 100).toSet(),
+            (10..12).flatMap { i -> (20..23).map { j -> Triple(i, j, i * 100 + j) } }.toSet())
+    }
+
+    @Test
+    fun testClearRegion() {
+        for (denseTiles in listOf(false, true)) {
+            val rng = Random(if (denseTiles) 3 else 4)
+            repeat(300) {
+                val g = Grid<Int>(denseTiles)
+                val eta = Grid<Int>()
+                val base = rng.nextInt(-100000, 100000)
+                val spread = listOf(40, 100, 1000)[rng.nextInt(3)]
+                repeat((Math.min(spread * spread, 20000) * rng.nextDouble()).toInt()) {
+                    val i = base + rng.nextInt(spread)
+                    val j = base + rng.nextInt(spread)
+                    val v = rng.nextInt()
+                    g[i, j] = v
+                    eta[i, j] = v
+                }
+
+                val i0 = base + rng.nextInt(-50, spread + 50)
+                val j0 = base + rng.nextInt(-50, spread + 50)
+                val i1 = i0 + rng.nextInt(spread)
+                val j1 = j0 + rng.nextInt(spread)
+
+                g.clearRegion(i0, j0, i1, j1)
+                eta.query(i0, j0, i1, j1).forEach { (i, j, _) -> eta[i, j] = null }
+
+                Assert.assertEquals(g.depth, eta.depth)
+                Assert.assertEquals(
+                    g.query(base - 100, base - 100, base + spread + 100, base + spread + 100).toSet(),
+                    eta.query(base - 100, base - 100, base + spread + 100, base + spread + 100).toSet()
+                )
+            }
+        }
+
+        val g = Grid<Int>()
+        g.setBlock(0, 0, 100, 100) { i, j -> i + j }
+        g.clearRegion(-10, -10, 110, 110)
+        Assert.assertEquals(g.depth, 0)
+        Assert.assertNull(g[0, 0])
+    }
+
+    /**
+     * Grids with random elements in [0, spread) x [0, spread), from the dense to the very sparse ones,
+     * dense tiles are enabled for one of them
+     */
+    private fun randomGrids(rng: Random, elements: Int = 20000) =
+        sequenceOf(30, 300, 3000, 100000).map { spread ->
+            spread to Grid<Int>(spread == 300).also { g ->
+                repeat(elements) { g[rng.nextInt(spread), rng.nextInt(spread)] = it }
+            }
+        }
+
+    private data class Region(val i0: Int, val j0: Int, val i1: Int, val j1: Int)
+
+    /**
+     * Random AABB regions that start near [0, spread) x [0, spread) and can extend past it
+     */
+    private fun randomRegions(rng: Random, spread: Int, count: Int = 10) = generateSequence {
+        val i0 = rng.nextInt(-10, spread)
+        val j0 = rng.nextInt(-10, spread)
+        Region(i0, j0, i0 + rng.nextInt(spread), j0 + rng.nextInt(spread))
+    }.take(count)
+
+    @Test
+    fun testParallelQuery() {
+        val rng = Random(5)
+        for ((spread, g) in randomGrids(rng)) {
+            val view = g.createReadOnlyView()
+
+            for ((i0, j0, i1, j1) in randomRegions(rng, spread)) {
+                val res = ConcurrentLinkedQueue<Triple<Int, Int, Int>>()
+                view.parallelQuery(i0, j0, i1, j1) { i, j, v -> res += Triple(i, j, v) }
+                Assert.assertEquals(res.size, res.toSet().size)
+                Assert.assertEquals(res.toSet(), g.query(i0, j0, i1, j1).toSet())
+
+                res.clear()
+                g.parallelQuery(i0, j0, i1, j1, 2) { i, j, v -> res += Triple(i, j, v) }
+                Assert.assertEquals(res.toSet(), g.query(i0, j0, i1, j1).toSet())
+            }
+        }
+    }
+
+    @Test
+    fun testCursorAndSpliterator() {
+        val rng = Random(6)
+        for ((spread, g) in randomGrids(rng)) {
+            for ((i0, j0, i1, j1) in randomRegions(rng, spread)) {
+                val eta = g.query(i0, j0, i1, j1)
+
+                val res = mutableListOf<Triple<Int, Int, Int>>()
+                val c = g.cursor(i0, j0, i1, j1)
+                while (c.next()) res += Triple(c.i(), c.j(), c.value())
+                Assert.assertEquals(res.size, eta.size)
+                Assert.assertEquals(res.toSet(), eta.toSet())
+
+                res.clear()
+                val s = g.spliterator(i0, j0, i1, j1)
+                val parts = mutableListOf(s)
+                repeat(5) { s.trySplit()?.let { parts += it } }
+                parts.forEach { p -> p.forEachRemaining(Grid.QueryFun<Int> { i, j, v -> res += Triple(i, j, v) }) }
+                Assert.assertEquals(res.size, eta.size)
+                Assert.assertEquals(res.toSet(), eta.toSet())
+
+                Assert.assertEquals(g.stream(i0, j0, i1, j1, true).mapToLong { it.toLong() }.sum(),
+                        eta.map { it.third.toLong() }.sum())
+            }
+        }
+    }
+
+    @Test
+    fun testQueryWhile() {
+        val rng = Random(7)
+        for ((spread, g) in randomGrids(rng)) {
+            for ((i0, j0, i1, j1) in randomRegions(rng, spread)) {
+                val eta = g.query(i0, j0, i1, j1).toSet()
+
+                val res = mutableListOf<Triple<Int, Int, Int>>()
+                Assert.assertTrue(g.queryWhile(i0, j0, i1, j1) { i, j, v -> res += Triple(i, j, v); true })
+                Assert.assertEquals(res.size, eta.size)
+                Assert.assertEquals(res.toSet(), eta)
+
+                res.clear()
+                val limit = eta.size / 2
+                Assert.assertEquals(g.queryWhile(i0, j0, i1, j1) { i, j, v ->
+                    res += Triple(i, j, v)
+                    res.size <= limit
+                }, eta.isEmpty())
+                Assert.assertEquals(res.size, if (eta.isEmpty()) 0 else limit + 1)
+                Assert.assertTrue(eta.containsAll(res))
+            }
+        }
+    }
+
+    @Test
+    fun testQueryTraversalOrder() {
+        val rng = Random(17)
+        for ((spread, g) in randomGrids(rng)) {
+            for ((i0, j0, i1, j1) in randomRegions(rng, spread)) {
+                val eta = g.query(i0, j0, i1, j1)
+
+                fun ordered(order: TraversalOrder) = mutableListOf<Triple<Int, Int, Int>>().also { res ->
+                    g.query(i0, j0, i1, j1, order) { i, j, v -> res += Triple(i, j, v) }
+                }
+                Assert.assertEquals(ordered(TraversalOrder.Z_ORDER), eta)
+                Assert.assertEquals(ordered(TraversalOrder.ROW_MAJOR),
+                        eta.sortedWith(compareBy({ it.first }, { it.second })))
+                Assert.assertEquals(ordered(TraversalOrder.COLUMN_MAJOR),
+                        eta.sortedWith(compareBy({ it.second }, { it.first })))
+            }
+        }
+    }
+
+    @Test
+    fun testGetAll() {
+        val rng = Random(19)
+        for ((spread, g) in randomGrids(rng)) {
+            for (n in listOf(0, 1, 7, 100, 5000)) {
+                val iss = IntArray(n) { rng.nextInt(-10, spread + 10) }
+                val jss = IntArray(n) { rng.nextInt(-10, spread + 10) }
+                val out = arrayOfNulls<Int>(n)
+                g.getAll(iss, jss, out)
+                for (x in 0 until n) Assert.assertEquals(out[x], g[iss[x], jss[x]])
+            }
+        }
+
+        val out = arrayOf<Int?>(1)
+        Grid<Int>().getAll(intArrayOf(0), intArrayOf(0), out)
+        Assert.assertNull(out[0])
+    }
+
+    @Test
+    fun testQueryOutsideOfRange() {
+        val g = Grid<Int>()
+        for (i in 0 until 20) g[i, 0] = i
+        Assert.assertEquals(g.query(-100, -5, -50, 5), emptyList<Triple<Int, Int, Int>>())
+        Assert.assertEquals(g.query(-5, -100, 5, -50), emptyList<Triple<Int, Int, Int>>())
+        Assert.assertEquals(g.query(Int.MIN_VALUE, Int.MIN_VALUE, Int.MAX_VALUE, Int.MAX_VALUE).size, 20)
+    }
+
+    @Test
+    fun testQueryDoesNotAllocate() {
+        val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val rng = Random(8)
+        val g = Grid<Int>()
+        // sparse: most of the nodes are compressed
+        repeat(1000) {
+            g[rng.nextInt(1000000), rng.nextInt(1000000)] = it
+        }
+
+        var count = 0
+        val cb = Grid.QueryFun<Int> { _, _, _ -> count++ }
+        g.query(100000, 100000, 900000, 900000, cb)
+        val expected = count
+        Assert.assertTrue(expected > 0)
+
+        val threadId = Thread.currentThread().id
+        val before = threadBean.getThreadAllocatedBytes(threadId)
+        repeat(1000) {
+            g.query(100000, 100000, 900000, 900000, cb)
+        }
+        val allocated = threadBean.getThreadAllocatedBytes(threadId) - before
+
+        Assert.assertEquals(count, expected * 1001)
+        Assert.assertTrue(allocated < 1024, "allocated $allocated bytes")
+    }
+
+    @Test
+    fun testNodePooling() {
+        val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val g = Grid<Int>()
+        g.setNodePooling(true)
+        val width = 100
+        for (i in 0 until width) for (j in 0 until 20) g[i, j * 3] = 1
+        val snapshot = g.snapshot()
+
+        // moving window: add the leading column, remove the trailing one
+        var lo = 0
+        fun tick() {
+            for (j in 0 until 20) {
+                g[lo + width, j * 3] = 1
+                g[lo, j * 3] = null
+            }
+            lo++
+        }
+        repeat(10000) { tick() }
+
+        val threadId = Thread.currentThread().id
+        val before = threadBean.getThreadAllocatedBytes(threadId)
+        repeat(10000) { tick() }
+        val allocated = threadBean.getThreadAllocatedBytes(threadId) - before
+        Assert.assertTrue(allocated < 1024, "allocated $allocated bytes")
+
+        Assert.assertEquals(g.count(Int.MIN_VALUE, Int.MIN_VALUE, Int.MAX_VALUE, Int.MAX_VALUE), width * 20L)
+        Assert.assertEquals(g.count(lo, 0, lo + width - 1, 60), width * 20L)
+        // nodes shared with the snapshot are not reused
+        Assert.assertEquals(snapshot.count(Int.MIN_VALUE, Int.MIN_VALUE, Int.MAX_VALUE, Int.MAX_VALUE), width * 20L)
+        Assert.assertEquals(snapshot.count(0, 0, width - 1, 60), width * 20L)
+
+        // nodes cached by the views are not reused for other blocks
+        val g2 = Grid<Int>()
+        g2.setNodePooling(true)
+        g2[1, 1] = 1
+        g2[100, 100] = 2
+        g2[500, 500] = 3
+        val view = g2.createReadOnlyView()
+        Assert.assertEquals(view[1, 1], 1)
+        g2[1, 1] = null
+        g2[200, 201] = 42
+        Assert.assertNull(view[8, 9])
+        Assert.assertEquals(view[100, 100], 2)
+        Assert.assertEquals(g2[200, 201], 42)
+    }
+
+    @Test
+    fun testSnapshot() {
+        for (dense in listOf(false, true)) {
+            val rng = Random(9)
+            val g = Grid<Int>(dense)
+            g.setBlock(0, 0, 64, 64) { i, j -> i + j }
+            val s1 = g.snapshot()
+            val eta1 = s1.query(-1000, -1000, 1000, 1000).toSet()
+            Assert.assertEquals(eta1.size, 64 * 64)
+
+            repeat(1000) {
+                val i = rng.nextInt(-100, 100)
+                val j = rng.nextInt(-100, 100)
+                g[i, j] = if (rng.nextBoolean()) null else -1
+            }
+            g.clearRegion(10, 10, 20, 50)
+            val s2 = g.snapshot()
+            val eta2 = g.query(-1000, -1000, 1000, 1000).toSet()
+            g.setBlock(-50, -50, 100, 100) { _, _ -> -2 }
+            g[100000, 100000] = -3
+
+            Assert.assertEquals(s1.query(-1000, -1000, 1000, 1000).toSet(), eta1)
+            Assert.assertEquals(s2.query(-1000, -1000, 1000, 1000).toSet(), eta2)
+            Assert.assertTrue(s1[5, 7] == 12)
+            Assert.assertEquals(g.query(-50, -50, 49, 49).size, 100 * 100)
+        }
+    }
+
+    @Test
+    fun testChangeTracking() {
+        val g = Grid<Int>()
+        g[0, 0] = 0
+        g[100, 100] = 1
+        g.setChangeTracking(true)
+
+        g[5, 5] = 5
+        g[100, 100] = null
+        g[200, 200] = null
+        g.setBlock(64, 0, 2, 2) { i, j -> if (i - 64 == j) null else i }
+        g.clearRegion(-10, -10, 1, 1)
+
+        val changes = mutableSetOf<Triple<Int, Int, Int?>>()
+        g.drainChanges { i, j, v -> changes += Triple(i, j, v) }
+        Assert.assertEquals(changes, setOf(Triple(5, 5, 5), Triple(100, 100, null),
+                Triple(64, 1, 64), Triple(65, 0, 65), Triple(0, 0, null)))
+
+        g.drainChanges { _, _, _ -> Assert.fail("already drained") }
+
+        for (i in 0 until 64) g[i, i % 3] = i
+        g[1000, 1000] = 1
+        val regions = mutableListOf<List<Int>>()
+        g.dirtyRegions { i0, j0, i1, j1 -> regions += listOf(i0, j0, i1, j1) }
+        Assert.assertEquals(regions.toSet(), setOf(listOf(0, 0, 63, 31), listOf(992, 992, 1023, 1023)))
+
+        g.setChangeTracking(false)
+        g[1, 1] = 1
+        g.drainChanges { _, _, _ -> Assert.fail("tracking is disabled") }
+    }
+
+    @Test
+    fun testAggregates() {
+        val sum = Aggregator.of<Int, Long>({ it.toLong() }, { a, b -> a + b })
+        for (aggregator in listOf(sum, null)) {
+            val g = Grid<Int>(true)
+            g.enableAggregates(aggregator)
+            val eta = HashMap<Pair<Int, Int>, Int>()
+            val rng = Random(1)
+
+            repeat(5000) {
+                val i = rng.nextInt(-300, 300)
+                val j = rng.nextInt(-300, 300)
+                if (rng.nextInt(4) == 0) {
+                    g[i, j] = null
+                    eta.remove(i to j)
+                } else {
+                    g[i, j] = it
+                    eta[i to j] = it
+                }
+
+                if (it % 50 == 0) {
+                    val i0 = rng.nextInt(-400, 300)
+                    val j0 = rng.nextInt(-400, 300)
+                    val i1 = i0 + rng.nextInt(400)
+                    val j1 = j0 + rng.nextInt(400)
+                    val inside = eta.filterKeys { (i, j) -> i in i0..i1 && j in j0..j1 }.values
+                    Assert.assertEquals(g.count(i0, j0, i1, j1), inside.size.toLong())
+                    Assert.assertTrue(g.aggregate(i0, j0, i1, j1, sum) == inside.map { v -> v.toLong() }
+                            .reduceOrNull { a, b -> a + b })
+                }
+            }
+
+            val snapshot = g.snapshot()
+            val total = eta.size.toLong()
+            g.clearRegion(-100, -100, 100, 100)
+            Assert.assertEquals(snapshot.count(Int.MIN_VALUE, Int.MIN_VALUE, Int.MAX_VALUE, Int.MAX_VALUE), total)
+            Assert.assertEquals(g.count(Int.MIN_VALUE, Int.MIN_VALUE, Int.MAX_VALUE, Int.MAX_VALUE),
+                    eta.keys.count { (i, j) -> i !in -100..100 || j !in -100..100 }.toLong())
+        }
+    }
+
+    @Test
+    fun testNeighbors() {
+        val g = Grid<Int>()
+        for (i in -1..1) for (j in 30..32) g[i, j] = i * 100 + j
+        g[5, 5] = 0
+
+        val res = mutableSetOf<Triple<Int, Int, Int>>()
+        g.neighbors(0, 31, 1) { i, j, v -> res += Triple(i, j, v) }
+        Assert.assertEquals(res, (-1..1).flatMap { i -> (30..32).map { j -> Triple(i, j, i * 100 + j) } }
+                .filter { it.first != 0 || it.second != 31 }.toSet())
+
+        res.clear()
+        g.neighbors(5, 5, 2) { i, j, v -> res += Triple(i, j, v) }
+        Assert.assertTrue(res.isEmpty())
+    }
+
+    @Test
+    fun testNeighborsRandom() {
+        /* sparse and dense blocks, radii within one block, spanning the blocks and larger than the block */
+        val rng = Random(21)
+        for (density in listOf(0.002, 0.05, 0.8)) {
+            val g = Grid<Int>(density > 0.5)
+            val eta = HashMap<Pair<Int, Int>, Int>()
+            for (i in -70 until 70) for (j in -70 until 70) {
+                if (rng.nextDouble() < density) {
+                    g[i, j] = i * 1000 + j
+                    eta[i to j] = i * 1000 + j
+                }
+            }
+            for (radius in listOf(0, 1, 3, 17, 40)) {
+                repeat(20) {
+                    val ci = rng.nextInt(-80, 80)
+                    val cj = rng.nextInt(-80, 80)
+                    val res = mutableMapOf<Pair<Int, Int>, Int>()
+                    g.neighbors(ci, cj, radius) { i, j, v -> Assert.assertNull(res.put(i to j, v)) }
+                    Assert.assertEquals(res, eta.filterKeys { (i, j) ->
+                        abs(i - ci) <= radius && abs(j - cj) <= radius && (i != ci || j != cj)
+                    })
+                }
+                g.forEachWithNeighbors(-60, -60, 60, 60, radius) { i, j, v, n ->
+                    Assert.assertEquals(n.get(0, 0), v)
+                    repeat(5) {
+                        val di = rng.nextInt(-radius, radius + 1)
+                        val dj = rng.nextInt(-radius, radius + 1)
+                        Assert.assertEquals(n.get(di, dj), eta[i + di to j + dj])
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testNearestAndWithinRadius() {
+        val rng = Random(20)
+        for ((spread, g) in randomGrids(rng, 5000)) {
+            val all = g.query(Int.MIN_VALUE, Int.MIN_VALUE, Int.MAX_VALUE, Int.MAX_VALUE)
+            fun dist(t: Triple<Int, Int, Int>, i: Int, j: Int) =
+                    (t.first - i).toLong() * (t.first - i) + (t.second - j).toLong() * (t.second - j)
+
+            repeat(10) {
+                val i = rng.nextInt(-spread, spread * 2)
+                val j = rng.nextInt(-spread, spread * 2)
+                val r = rng.nextInt(spread)
+
+                val res = mutableSetOf<Triple<Int, Int, Int>>()
+                g.withinRadius(i, j, r) { x, y, v -> res += Triple(x, y, v) }
+                Assert.assertEquals(res, all.filter { dist(it, i, j) <= r.toLong() * r }.toSet())
+
+                val k = rng.nextInt(1, 20)
+                val nearest = mutableListOf<Triple<Int, Int, Int>>()
+                g.nearest(i, j, k, { it % 2 == 0 }) { x, y, v -> nearest += Triple(x, y, v) }
+                Assert.assertEquals(nearest.map { dist(it, i, j) },
+                        all.filter { it.third % 2 == 0 }.map { dist(it, i, j) }.sorted().take(k))
+            }
+        }
+    }
+
+    @Test
+    fun testNearestExactDistances() {
+        /* squared distances above 2^53 (not exact in double) and above 2^64 (far center) */
+        for ((center, base) in listOf(0 to 100_000_000, Int.MIN_VALUE to (1 shl 30) - 100)) {
+            val rng = Random(21)
+            fun dist(x: Int, y: Int) = BigInteger.valueOf(x.toLong() - center).pow(2) +
+                    BigInteger.valueOf(y.toLong() - center).pow(2)
+
+            for (dense in listOf(false, true)) {
+                val g = Grid<Int>(dense)
+                /* distances differ by 1 */
+                for (d in (0 until 64).shuffled(rng)) g[base, (if (center == 0) 0 else base) + d] = d
+                repeat(64) { g[base - rng.nextInt(64), base - rng.nextInt(64)] = it }
+                val all = g.query(Int.MIN_VALUE, Int.MIN_VALUE, Int.MAX_VALUE, Int.MAX_VALUE)
+                        .map { dist(it.first, it.second) }.sorted()
+
+                for (k in listOf(1, 5, 70, 200)) {
+                    val res = mutableListOf<BigInteger>()
+                    g.nearest(center, center, k, null) { x, y, _ -> res += dist(x, y) }
+                    Assert.assertEquals(res, all.take(k))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testForEachWithNeighbors() {
+        /* step of the game of life compared with the naive implementation */
+        val rng = Random(2)
+        for (dense in listOf(false, true)) {
+            val g = Grid<Boolean>(dense)
+            repeat(3000) { g[rng.nextInt(-50, 50), rng.nextInt(-50, 50)] = true }
+
+            val live = { i: Int, j: Int -> (-1..1).sumOf { di -> (-1..1).count { dj -> (di != 0 || dj != 0) && g[i + di, j + dj] != null } } }
+            val expected = mutableSetOf<Pair<Int, Int>>()
+            g.query(-40, -40, 40, 40) { i, j, _ -> if (live(i, j) in 2..3) expected += i to j }
+
+            val res = mutableSetOf<Pair<Int, Int>>()
+            g.forEachWithNeighbors(-40, -40, 40, 40, 1) { i, j, v, n ->
+                Assert.assertTrue(n.get(0, 0) == v)
+                val cnt = (-1..1).sumOf { di -> (-1..1).count { dj -> (di != 0 || dj != 0) && n.get(di, dj) != null } }
+                if (cnt in 2..3) res += i to j
+            }
+            Assert.assertEquals(res, expected)
+        }
+    }
+
+    @Test
+    fun testBlockCache() {
+        for (cacheSize in listOf(1, 2, 16)) {
+            val rng = Random(cacheSize)
+            val g = Grid<Int>(cacheSize == 16, cacheSize)
+            val eta = HashMap<Pair<Int, Int>, Int>()
+            var snapshot = g.snapshot()
+            var snapshotEta = HashMap(eta)
+
+            /* column-major sweeps and random jumps interleaved with the structural changes */
+            repeat(20000) {
+                val i = if (it % 3 == 0) rng.nextInt(-200, 200) else it % 200 - 100
+                val j = if (it % 3 == 0) rng.nextInt(-200, 200) else it / 200 % 64 * 3
+                when (rng.nextInt(100)) {
+                    in 0..49 -> {
+                        g[i, j] = it
+                        eta[i to j] = it
+                    }
+                    in 50..79 -> {
+                        g[i, j] = null
+                        eta.remove(i to j)
+                    }
+                    in 80..81 -> {
+                        g.clearRegion(i, j, i + 40, j + 40)
+                        eta.keys.removeIf { (x, y) -> x in i..i + 40 && y in j..j + 40 }
+                    }
+                    82 -> {
+                        snapshot = g.snapshot()
+                        snapshotEta = HashMap(eta)
+                    }
+                    83 -> {
+                        g[i * 1000, j * 1000] = it
+                        eta[i * 1000 to j * 1000] = it
+                    }
+                }
+                Assert.assertTrue(g[i, j] == eta[i to j])
+                Assert.assertTrue(g[i + 32, j] == eta[i + 32 to j])
+                Assert.assertTrue(snapshot[i, j] == snapshotEta[i to j])
+            }
+            for ((k, v) in eta) Assert.assertEquals(g[k.first, k.second], v)
+        }
+
+        try {
+            Grid<Int>(false, 3)
+            Assert.fail("cache size must be a power of 2")
+        } catch (e: IllegalArgumentException) {
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.aivean.grid2d
+
+import org.testng.Assert
+import org.testng.annotations.Test
+import kotlin.random.Random
+
+class OffHeapIntGridTest {
+
+    @Test
+    fun testSet() {
+        val g = OffHeapIntGrid()
+        Assert.assertFalse(g.contains(0, 0))
+        Assert.assertEquals(g[0, 0], 0)
+        Assert.assertEquals(g.getOrDefault(0, 0, -1), -1)
+
+        g[0, 0] = 0
+        Assert.assertTrue(g.contains(0, 0))
+        Assert.assertEquals(g.getOrDefault(0, 0, -1), 0)
+
+        g[-20, 2] = -20
+        g[0, 1000] = -100
+        Assert.assertEquals(g[-20, 2], -20)
+        Assert.assertEquals(g[0, 1000], -100)
+        Assert.assertEquals(g.depth, 3)
+
+        Assert.assertTrue(g.remove(0, 1000))
+        Assert.assertFalse(g.remove(0, 1000))
+        Assert.assertEquals(g.depth, 2)
+        Assert.assertTrue(g.remove(0, 0))
+        Assert.assertTrue(g.remove(-20, 2))
+        Assert.assertEquals(g.depth, 0)
+        Assert.assertEquals(g.offHeapBytes(), 0L)
+    }
+
+    @Test
+    fun testRandomized() {
+        for (range in listOf(10, 100, 10000)) {
+            val rng = Random(range)
+            val g = OffHeapIntGrid()
+            val eta = IntGrid()
+
+            repeat(range * 10) {
+                val i = rng.nextInt(-range, range)
+                val j = rng.nextInt(-range, range)
+                if (rng.nextInt(3) == 0) {
+                    Assert.assertEquals(g.remove(i, j), eta.remove(i, j))
+                } else {
+                    val v = rng.nextInt()
+                    g[i, j] = v
+                    eta[i, j] = v
+                }
+                Assert.assertEquals(g.contains(i, j), eta.contains(i, j))
+                Assert.assertEquals(g[i, j], eta[i, j])
+            }
+
+            repeat(100) {
+                val i0 = rng.nextInt(-range, range)
+                val j0 = rng.nextInt(-range, range)
+                val i1 = i0 + rng.nextInt(range)
+                val j1 = j0 + rng.nextInt(range)
+                val res = mutableListOf<Triple<Int, Int, Int>>()
+                val etaRes = mutableListOf<Triple<Int, Int, Int>>()
+                g.query(i0, j0, i1, j1) { i, j, v -> res += Triple(i, j, v) }
+                eta.query(i0, j0, i1, j1) { i, j, v -> etaRes += Triple(i, j, v) }
+                Assert.assertEquals(res, etaRes)
+            }
+            Assert.assertEquals(g.depth, eta.depth)
+        }
+    }
+}
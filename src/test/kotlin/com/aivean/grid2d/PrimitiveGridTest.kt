@@ -0,0 +1,128 @@
+package com.aivean.grid2d
+
+import org.testng.Assert
+import org.testng.annotations.Test
+import kotlin.random.Random
+
+class PrimitiveGridTest {
+
+    @Test
+    fun testIntGridSet() {
+        val g = IntGrid()
+        Assert.assertFalse(g.contains(0, 0))
+        Assert.assertEquals(g[0, 0], 0)
+        Assert.assertEquals(g.getOrDefault(0, 0, -1), -1)
+
+        g[0, 0] = 0
+        Assert.assertTrue(g.contains(0, 0))
+        Assert.assertEquals(g.getOrDefault(0, 0, -1), 0)
+
+        g[-20, 2] = -20
+        g[0, 1000] = -100
+        Assert.assertEquals(g[-20, 2], -20)
+        Assert.assertEquals(g[0, 1000], -100)
+        Assert.assertEquals(g.depth, 3)
+
+        Assert.assertTrue(g.remove(0, 1000))
+        Assert.assertFalse(g.remove(0, 1000))
+        Assert.assertEquals(g.depth, 2)
+        Assert.assertTrue(g.remove(0, 0))
+        Assert.assertTrue(g.remove(-20, 2))
+        Assert.assertEquals(g.depth, 0)
+    }
+
+    @Test
+    fun testLongAndFloatGrid() {
+        val lg = LongGrid()
+        val fg = FloatGrid()
+        lg[5, -5] = Long.MIN_VALUE
+        fg[5, -5] = Float.NaN
+        lg[100000, 5] = 1L
+        fg[100000, 5] = 1f
+
+        Assert.assertEquals(lg[5, -5], Long.MIN_VALUE)
+        Assert.assertTrue(fg[5, -5].isNaN())
+
+        val res = mutableSetOf<Triple<Int, Int, Long>>()
+        lg.query(0, -10, 10, 10) { i, j, v -> res += Triple(i, j, v) }
+        Assert.assertEquals(res, setOf(Triple(5, -5, Long.MIN_VALUE)))
+
+        val fres = mutableSetOf<Triple<Int, Int, Float>>()
+        fg.query(0, 0, 200000, 10) { i, j, v -> fres += Triple(i, j, v) }
+        Assert.assertEquals(fres, setOf(Triple(100000, 5, 1f)))
+    }
+
+    @Test
+    fun testGetAll() {
+        val rng = Random(19)
+        val g = IntGrid()
+        val lg = LongGrid()
+        repeat(20000) {
+            val i = rng.nextInt(3000)
+            val j = rng.nextInt(3000)
+            g[i, j] = it
+            lg[i, j] = it.toLong()
+        }
+
+        val iss = IntArray(5000) { rng.nextInt(-10, 3010) }
+        val jss = IntArray(5000) { rng.nextInt(-10, 3010) }
+        val out = IntArray(5000)
+        val lout = LongArray(5000)
+        g.getAll(iss, jss, out, -1)
+        lg.getAll(iss, jss, lout, -1)
+        for (x in iss.indices) {
+            Assert.assertEquals(out[x], g.getOrDefault(iss[x], jss[x], -1))
+            Assert.assertEquals(lout[x], out[x].toLong())
+        }
+    }
+
+    @Test
+    fun testIntGridRandomized() {
+        for (range in listOf(10, 100, 10000)) {
+            for (iter in 1..6) {
+                val rng = Random(iter + range)
+                val g = IntGrid()
+                val eta = Grid<Int>()
+
+                repeat(range * iter) {
+                    val i = rng.nextInt(-range, range)
+                    val j = rng.nextInt(-range, range)
+
+                    if (rng.nextBoolean()) {
+                        Assert.assertEquals(g.remove(i, j), eta[i, j] != null)
+                        eta[i, j] = null
+                    } else {
+                        val v = rng.nextInt()
+                        g[i, j] = v
+                        eta[i, j] = v
+                    }
+
+                    Assert.assertEquals(g.contains(i, j), eta[i, j] != null)
+                    Assert.assertEquals(g.getOrDefault(i, j, 0), eta[i, j] ?: 0)
+                    Assert.assertEquals(g.depth, eta.depth)
+                }
+
+                val rangeSqrt = Math.round(Math.sqrt(range.toDouble())).toInt()
+                repeat(rangeSqrt) {
+                    val i0 = rng.nextInt(-range, range)
+                    val j0 = rng.nextInt(-range, range)
+                    val i1 = i0 + rng.nextInt(rangeSqrt * 10)
+                    val j1 = j0 + rng.nextInt(rangeSqrt * 10)
+
+                    val etaSet = mutableSetOf<Triple<Int, Int, Int>>()
+                    val resList = mutableListOf<Triple<Int, Int, Int>>()
+                    eta.query(i0, j0, i1, j1) { i, j, v -> etaSet += Triple(i, j, v) }
+                    g.query(i0, j0, i1, j1) { i, j, v -> resList += Triple(i, j, v) }
+
+                    Assert.assertEquals(resList.size, etaSet.size)
+                    Assert.assertEquals(resList.toSet(), etaSet)
+                }
+
+                eta.query(-range, -range, range, range) { i, j, _ ->
+                    Assert.assertTrue(g.remove(i, j))
+                }
+                Assert.assertEquals(g.depth, 0)
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.aivean.grid2d
+
+import org.testng.Assert
+import org.testng.annotations.Test
+import kotlin.random.Random
+
+class RadixGridTest {
+
+    @Test
+    fun testRandomized() {
+        for (bits in 3..6) {
+            val rng = Random(bits)
+            val g = RadixGrid.create<Int>(bits)
+            Assert.assertEquals(g.bits, bits)
+            val eta = HashMap<Pair<Int, Int>, Int>()
+
+            repeat(20000) {
+                // mostly local keys, occasionally the whole int range
+                val i = if (it % 100 == 0) rng.nextInt() else rng.nextInt(-1000, 1000)
+                val j = if (it % 100 == 0) rng.nextInt() else rng.nextInt(-1000, 1000)
+                val v = if (rng.nextInt(3) == 0) null else it
+                g[i, j] = v
+                if (v == null) eta.remove(i to j) else eta[i to j] = v
+                Assert.assertTrue(g[i, j] == v)
+            }
+            for ((k, v) in eta) Assert.assertEquals(g[k.first, k.second], v)
+
+            val res = mutableListOf<Triple<Int, Int, Int>>()
+            g.query(-500, -300, 700, 900) { i, j, v -> res += Triple(i, j, v) }
+            val expected = eta.filter { (k, _) -> k.first in -500..700 && k.second in -300..900 }
+                    .map { (k, v) -> Triple(k.first, k.second, v) }.toSet()
+            Assert.assertEquals(res.size, expected.size)
+            Assert.assertEquals(res.toSet(), expected)
+
+            for ((i, j) in eta.keys) g[i, j] = null
+            Assert.assertEquals(g.depth, 0)
+        }
+    }
+
+    @Test
+    fun testDepth() {
+        for (bits in 3..6) {
+            val g = RadixGrid.create<Int>(bits)
+            g[0, 0] = 1
+            Assert.assertEquals(g.depth, 1)
+            g[(1 shl bits) - 1, (1 shl bits) - 1] = 2
+            Assert.assertEquals(g.depth, 1)
+            g[1 shl bits, 0] = 3
+            Assert.assertEquals(g.depth, 2)
+            // hierarchy collapses after removal
+            g[1 shl bits, 0] = null
+            Assert.assertEquals(g.depth, 1)
+            Assert.assertEquals(g[0, 0], 1)
+            Assert.assertEquals(g[(1 shl bits) - 1, (1 shl bits) - 1], 2)
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.aivean.grid2d
+
+import org.testng.Assert
+import org.testng.annotations.Test
+import kotlin.random.Random
+
+class ShardedGridTest {
+
+    @Test
+    fun testRandomized() {
+        for (shardDepth in 1..3) {
+            val rng = Random(shardDepth)
+            val g = ShardedGrid<Int>(shardDepth, shardDepth == 2)
+            val eta = HashMap<Pair<Int, Int>, Int>()
+            // clusters all over the key space, single Grid cannot cover their span
+            val clusters = List(8) { Pair(rng.nextInt(Int.MIN_VALUE, Int.MAX_VALUE - 3000), rng.nextInt(Int.MIN_VALUE, Int.MAX_VALUE - 3000)) }
+
+            repeat(20000) {
+                val (ci, cj) = clusters[rng.nextInt(clusters.size)]
+                val i = ci + rng.nextInt(3000)
+                val j = cj + rng.nextInt(3000)
+                val v = if (rng.nextInt(3) == 0) null else it
+                g[i, j] = v
+                if (v == null) eta.remove(i to j) else eta[i to j] = v
+                Assert.assertTrue(g[i, j] == v)
+            }
+            Assert.assertTrue(g.depth <= shardDepth + 1)
+
+            for ((ci, cj) in clusters) {
+                val res = mutableListOf<Triple<Int, Int, Int>>()
+                g.query(ci, cj, ci + 1000, cj + 1000) { i, j, v -> res += Triple(i, j, v) }
+                val expected = eta.filter { (k, _) -> k.first - ci in 0..1000 && k.second - cj in 0..1000 }
+                        .map { (k, v) -> Triple(k.first, k.second, v) }.toSet()
+                Assert.assertEquals(res.size, expected.size)
+                Assert.assertEquals(res.toSet(), expected)
+            }
+
+            // shards are removed together with the clusters
+            for ((i, j) in eta.keys) g[i, j] = null
+            Assert.assertEquals(g.shardCount, 0)
+            Assert.assertTrue(g.queryWhile(Int.MIN_VALUE, Int.MIN_VALUE, Int.MAX_VALUE, Int.MAX_VALUE) { _, _, _ -> false })
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.aivean.grid2d
+
+import org.testng.Assert
+import org.testng.annotations.Test
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.random.Random
+
+class StripedGridTest {
+
+    @Test
+    fun testRandomized() {
+        for (range in listOf(10, 100, 10000)) {
+            val rng = Random(range)
+            val g = StripedGrid<Int>(1)
+            val eta = Grid<Int>()
+
+            repeat(range * 5) {
+                val i = rng.nextInt(-range, range)
+                val j = rng.nextInt(-range, range)
+                val v = if (rng.nextInt(3) == 0) null else rng.nextInt()
+                g[i, j] = v
+                eta[i, j] = v
+                Assert.assertTrue(g[i, j] == v)
+            }
+
+            val res = mutableListOf<Triple<Int, Int, Int>>()
+            val etaRes = mutableSetOf<Triple<Int, Int, Int>>()
+            g.query(-range, -range, range, range) { i, j, v -> res += Triple(i, j, v) }
+            eta.query(-range, -range, range, range) { i, j, v -> etaRes += Triple(i, j, v) }
+            Assert.assertEquals(res.size, etaRes.size)
+            Assert.assertEquals(res.toSet(), etaRes)
+
+            g.clear()
+            Assert.assertTrue(g.queryWhile(-range, -range, range, range) { _, _, _ -> false })
+            Assert.assertEquals(g.partitionCount(), 0)
+            g[0, 0] = 1
+            Assert.assertEquals(g[0, 0], 1)
+            Assert.assertEquals(g.partitionCount(), 1)
+        }
+    }
+
+    @Test
+    fun testClearWhileWriting() {
+        val g = StripedGrid<Int>(1)
+        val writers = (0 until 4).map { t ->
+            thread {
+                val rng = Random(t)
+                repeat(20000) { g[rng.nextInt(200), rng.nextInt(200)] = t }
+            }
+        }
+        repeat(20) { g.clear() }
+        writers.forEach { it.join() }
+
+        // partitions cached by the writers must not diverge from the index
+        val queried = mutableMapOf<Pair<Int, Int>, Int>()
+        g.query(0, 0, 199, 199) { i, j, v -> queried[i to j] = v }
+        val read = mutableMapOf<Pair<Int, Int>, Int>()
+        for (i in 0 until 200) for (j in 0 until 200) g[i, j]?.let { read[i to j] = it }
+        Assert.assertEquals(read, queried)
+
+        g.clear()
+        Assert.assertEquals(g.partitionCount(), 0)
+    }
+
+    @Test
+    fun testConcurrentWrites() {
+        val g = StripedGrid<Int>(1)
+        val threads = 8
+        val n = 20000
+
+        (0 until threads).map { t ->
+            thread {
+                val rng = Random(t)
+                for (k in 0 until n) {
+                    // disjoint region of the thread and the region shared by all threads
+                    g[t * 100 + k % 100, k / 100] = t
+                    g[rng.nextInt(300), rng.nextInt(300) + 100000] = t
+                }
+            }
+        }.forEach { it.join() }
+
+        for (t in 0 until threads) {
+            for (k in 0 until n) Assert.assertTrue(g[t * 100 + k % 100, k / 100] == t)
+        }
+        var shared = 0
+        g.query(0, 100000, 300, 100300) { _, _, _ -> shared++ }
+        Assert.assertTrue(shared > 0)
+    }
+
+    @Test
+    fun testReadsWhileWriting() {
+        val g = StripedGrid<Int>(1)
+        val writers = 4
+        val done = AtomicInteger()
+        val failed = AtomicBoolean()
+
+        // every writer fills its own 32x32 partition with 0..1023 in order,
+        // so any published version of the partition contains exactly the values 0..max
+        val threads = (0 until writers).map { w ->
+            thread {
+                for (k in 0 until 1024) g[w * 32 + k / 32, k % 32] = k
+                done.incrementAndGet()
+            }
+        } + (0 until 2).map {
+            thread {
+                while (done.get() < writers) {
+                    for (w in 0 until writers) {
+                        var count = 0
+                        var max = -1
+                        g.query(w * 32, 0, w * 32 + 31, 31) { _, _, v ->
+                            count++
+                            max = maxOf(max, v)
+                        }
+                        if (count != max + 1) failed.set(true)
+                        if (max >= 0 && g[w * 32 + max / 32, max % 32] != max) failed.set(true)
+                    }
+                }
+            }
+        }
+        threads.forEach { it.join() }
+
+        Assert.assertFalse(failed.get())
+        for (w in 0 until writers) {
+            for (k in 0 until 1024) Assert.assertEquals(g[w * 32 + k / 32, k % 32], k)
+        }
+    }
+}